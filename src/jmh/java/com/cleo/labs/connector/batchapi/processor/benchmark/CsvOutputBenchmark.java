@@ -0,0 +1,87 @@
+package com.cleo.labs.connector.batchapi.processor.benchmark;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.ResultWriter;
+import com.cleo.labs.connector.batchapi.processor.Json;
+import com.cleo.labs.connector.batchapi.processor.template.CsvExpander;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Measures {@link CsvExpander} output of results through an output template,
+ * one result per operation (past the initial preview batch used to work
+ * out the column headers).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class CsvOutputBenchmark {
+
+    private static final int RESULTS = 1024; // results are recycled
+
+    private static final String TEMPLATE = "---\n"+
+            "- user: ${data.username}\n"+
+            "  email: ${data.email}\n"+
+            "  password: ${data.password}\n"+
+            "  group: ${data.authenticator}\n"+
+            "  status: ${data.result.status}\n"+
+            "";
+
+    private ObjectNode[] results;
+    private ResultWriter writer;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        results = new ObjectNode[RESULTS];
+        for (int i = 0; i < RESULTS; i++) {
+            ObjectNode result = Json.mapper.createObjectNode();
+            result.putObject("result")
+                .put("status", "success")
+                .put("message", "created demo"+i);
+            result.put("id", "000111222333-"+i)
+                .put("username", "demo"+i)
+                .put("email", "demo"+i+"@cleo.demo")
+                .put("password", "secret"+i)
+                .put("authenticator", "Users");
+            results[i] = result;
+        }
+        writer = new CsvExpander()
+                .template(TEMPLATE)
+                .getWriter(new PrintStream(ByteStreams.nullOutputStream()), null);
+        for (ObjectNode result : results) {
+            writer.write(result); // get past the preview
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public void writeResult() throws IOException {
+        writer.write(results[next]);
+        next = (next + 1) % RESULTS;
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        writer.close();
+    }
+}
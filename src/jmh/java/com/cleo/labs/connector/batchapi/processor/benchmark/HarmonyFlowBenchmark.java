@@ -0,0 +1,112 @@
+package com.cleo.labs.connector.batchapi.processor.benchmark;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cleo.labs.connector.batchapi.processor.ApiClient;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
+import com.cleo.labs.connector.batchapi.processor.FakeHarmony;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+
+/**
+ * Runs a generated CSV file of {@code rows} {@code sftp} connections (each
+ * with two actions) through {@link BatchProcessor} against an in-process
+ * {@link FakeHarmony} answering each request after {@code latency} milliseconds,
+ * one whole file per operation. All threads share one {@link ApiClient}.
+ * Before each {@code list}, {@code update} or {@code delete} operation the
+ * connections are added (untimed).
+ * <p/>
+ * The {@code update} file leaves out the actions, since updating a connection
+ * re-creates rather than updates its actions (which conflicts).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HarmonyFlowBenchmark {
+
+    @Param({"add", "list", "update", "delete"})
+    public String operation;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    @Param({"0", "5"})
+    public long latency;
+
+    @Param({"1000"})
+    public int rows;
+
+    private FakeHarmony harmony;
+    private ApiClient api;
+    private Path csv;
+    private Path noActions;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        harmony = new FakeHarmony().latency(latency);
+        // one (thread safe) client for all runs, so the connection pool stays warm
+        api = new ApiClient(harmony.url(), "admin", "admin", false);
+        csv = SampleData.csv("sftp", rows, Files.createTempFile("bench-flow-", ".csv"));
+        noActions = SampleData.csv("sftp", rows, Files.createTempFile("bench-flow-", ".csv"), row -> {
+            row.put("CreateSendName", "NA");
+            row.put("CreateReceiveName", "NA");
+            row.put("action_extra_alias", "");
+        });
+    }
+
+    private void process(Operation operation, Path file) throws IOException {
+        BatchProcessor processor = new BatchProcessor(profile -> api)
+                .setDefaultOperation(operation)
+                .setThreads(threads);
+        try {
+            processor.processFile(file.toString(), MoreFiles.asCharSource(file, Charset.defaultCharset()),
+                    new PrintStream(ByteStreams.nullOutputStream()));
+        } finally {
+            processor.close();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws IOException {
+        harmony.reset();
+        if (!operation.equals("add")) {
+            process(Operation.add, csv);
+        }
+    }
+
+    @Benchmark
+    public void flow() throws IOException {
+        Operation op = Operation.valueOf(operation);
+        process(op, op == Operation.update ? noActions : csv);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        harmony.close();
+        Files.deleteIfExists(csv);
+        Files.deleteIfExists(noActions);
+    }
+}
@@ -0,0 +1,96 @@
+package com.cleo.labs.connector.batchapi.processor.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.cleo.labs.connector.batchapi.processor.MacroEngine;
+import com.cleo.labs.connector.batchapi.processor.SquiggleMatcher;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Measures the building blocks of template expansion: scanning a string
+ * for {@code ${expressions}}, and expanding simple lookups, interpolated
+ * strings and JavaScript expressions against a new row of data.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class MacroEngineBenchmark {
+
+    private static final int ROWS = 1024; // rows are recycled
+
+    private static final String SCAN = "PUT -DEL ${outbox}/${CreateSendName}-${date('yyyyMMdd')} \"${x.replace('}','')}\" %inbox%";
+
+    private MacroEngine engine;
+    private Map<String,String>[] rows;
+    private int row;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Trial)
+    public void setup() throws ScriptException {
+        IntFunction<Map<String,String>> generator = SampleData.rows("sftp");
+        rows = new Map[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = generator.apply(i);
+        }
+        engine = new MacroEngine();
+        engine.put("started", true); // start the JavaScript engine up front
+        row = 0;
+    }
+
+    private void nextRow() throws ScriptException {
+        engine.data(rows[row]);
+        row = (row + 1) % ROWS;
+    }
+
+    @Benchmark
+    public void squiggleFind(Blackhole bh) {
+        SquiggleMatcher m = new SquiggleMatcher(SCAN);
+        while (m.find()) {
+            bh.consume(m.expression());
+        }
+    }
+
+    @Benchmark
+    public JsonNode expandLookup() throws ScriptException {
+        nextRow();
+        return engine.expand("${alias}");
+    }
+
+    @Benchmark
+    public JsonNode expandInterpolation() throws ScriptException {
+        nextRow();
+        return engine.expand("sftp://${username}@${host}:${port}/${inbox}");
+    }
+
+    @Benchmark
+    public JsonNode expandScript() throws ScriptException {
+        nextRow();
+        return engine.expand("${Schedule_Send=='polling'?'on file continuously':Schedule_Send}");
+    }
+
+    @Benchmark
+    public JsonNode expandTyped() throws ScriptException {
+        nextRow();
+        return engine.expand("${port:int}");
+    }
+}
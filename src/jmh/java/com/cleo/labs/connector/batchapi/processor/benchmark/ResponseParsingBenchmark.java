@@ -0,0 +1,103 @@
+package com.cleo.labs.connector.batchapi.processor.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cleo.labs.connector.batchapi.processor.ApiClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+/**
+ * Compares the way {@link ApiClient} used to handle a collection page of
+ * {@code resources} connections (buffer the body into a {@code String}
+ * and parse it with a YAML mapper) against the current JSON stream parse,
+ * and likewise for serializing a request body. Run with {@code -prof gc}
+ * to compare the allocation rates as well.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseParsingBenchmark {
+
+    @Param({"100", "1000"})
+    public int resources;
+
+    private static final ObjectMapper yaml = new ObjectMapper(new YAMLFactory());
+
+    private byte[] page;
+    private ObjectNode connection;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ObjectMapper json = new ObjectMapper();
+        ObjectNode response = json.createObjectNode();
+        response.put("totalResults", resources * 10);
+        response.put("startIndex", 0);
+        response.put("count", resources);
+        ArrayNode list = response.putArray("resources");
+        for (int i = 0; i < resources; i++) {
+            ObjectNode c = list.addObject();
+            c.put("id", "c0a8010a-1600-4e9c-a8e3-"+String.format("%012d", i));
+            c.put("alias", "partner"+i);
+            c.put("type", "sftp");
+            c.put("enabled", true);
+            c.with("connect").put("host", "partner"+i+".cleo.demo").put("port", 22).put("username", "user"+i);
+            c.with("outgoing").with("storage").put("outbox", "out").put("sentbox", "sent");
+            c.with("incoming").with("storage").put("inbox", "in").put("receivedbox", "received");
+            c.with("meta").put("resourceType", "connection").put("created", "2020-10-01T03:20:08.000Z");
+            c.with("_links").with("self").put("href", "/api/connections/"+c.get("id").asText());
+            c.with("_links").putArray("actions").addObject().put("href", "/api/actions/"+i);
+        }
+        page = json.writeValueAsBytes(response);
+        connection = (ObjectNode) list.get(0);
+    }
+
+    private HttpEntity entity() {
+        return new ByteArrayEntity(page, ContentType.APPLICATION_JSON);
+    }
+
+    @Benchmark
+    public JsonNode parseYamlString() throws IOException {
+        String body = EntityUtils.toString(entity());
+        return yaml.readTree(body);
+    }
+
+    @Benchmark
+    public JsonNode parseJsonStream() throws IOException {
+        return ApiClient.readJson(entity().getContent());
+    }
+
+    @Benchmark
+    public HttpEntity writeStringEntity() throws IOException {
+        return new StringEntity(connection.toString());
+    }
+
+    @Benchmark
+    public HttpEntity writeByteEntity() throws IOException {
+        return ApiClient.jsonEntity(connection);
+    }
+}
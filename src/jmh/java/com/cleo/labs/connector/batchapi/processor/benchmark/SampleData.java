@@ -0,0 +1,158 @@
+package com.cleo.labs.connector.batchapi.processor.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+
+/**
+ * Generates CSV files matching the columns of the built-in {@code default/*.yaml}
+ * templates, for benchmarking template expansion at scale.
+ */
+public class SampleData {
+
+    private static final Map<String, List<String>> HEADERS = new LinkedHashMap<>();
+    static {
+        HEADERS.put("authenticator", Arrays.asList("UserAlias", "FTP", "SSHFTP", "HTTP", "Access", "FolderPath",
+                "HomeDir", "DownloadFolder", "UploadFolder", "OtherFolder", "ArchiveSent", "ArchiveReceived"));
+        HEADERS.put("user", Arrays.asList("Host", "UserID", "Password", "WhitelistIP", "Email", "DefaultHomeDir",
+                "CustomHomeDir", "OtherFolder", "CreateCollectName", "ActionCollect", "Schedule_Send",
+                "CreateReceiveName", "ActionReceive", "Schedule_Receive", "HostNotes"));
+        HEADERS.put("as2", Arrays.asList("type", "alias", "url", "AS2From", "AS2To", "Subject", "encrypted", "signed",
+                "receipt", "receipt_sign", "receipt_type", "inbox", "outbox", "sentbox", "receivedbox",
+                "CreateSendName", "ActionSend", "Schedule_Send", "CreateReceiveName", "ActionReceive", "Schedule_Receive"));
+        HEADERS.put("sftp", Arrays.asList("type", "alias", "host", "port", "username", "password", "inbox", "outbox",
+                "sentbox", "receivedbox", "CreateSendName", "ActionSend", "Schedule_Send", "CreateReceiveName",
+                "ActionReceive", "Schedule_Receive", "action_extra_alias", "action_extra_commands", "action_extra_schedule"));
+        HEADERS.put("ftp", Arrays.asList("type", "alias", "host", "port", "username", "password", "channelmode",
+                "activelowport", "activehighport", "inbox", "outbox", "sentbox", "receivebox", "CreateSendName",
+                "ActionSend", "Schedule_Send", "CreateReceiveName", "ActionReceive", "Schedule_Receive"));
+    }
+
+    /**
+     * Returns the value for {@code column} in row {@code i}: plausible enough
+     * to drive every branch of the templates (and cheap to generate).
+     */
+    private static String value(String template, String column, int i) {
+        switch (column) {
+        case "type":
+            return template;
+        case "port":
+            return String.valueOf(10000 + i % 1000);
+        case "activelowport":
+            return "40000";
+        case "activehighport":
+            return "40100";
+        case "encrypted":
+        case "signed":
+        case "receipt":
+        case "receipt_sign":
+        case "FTP":
+        case "SSHFTP":
+        case "HTTP":
+            return i % 2 == 0 ? "Yes" : "No";
+        case "channelmode":
+            return i % 2 == 0 ? "active" : "passive";
+        case "receipt_type":
+            return "sync";
+        case "Access":
+            return "file";
+        case "Schedule_Send":
+        case "Schedule_Receive":
+        case "action_extra_schedule":
+            return i % 3 == 0 ? "polling" : "";
+        case "ActionSend":
+        case "ActionCollect":
+        case "action_extra_commands":
+            return "PUT -DEL *;LCOPY -REC %inbox%/* %inbox%/archive";
+        case "ActionReceive":
+            return "GET -DEL *";
+        case "WhitelistIP":
+            return "10.0.0." + (i % 250) + ";10.0.1." + (i % 250);
+        case "OtherFolder":
+            return "in;out;archive";
+        case "Email":
+            return "user" + i + "@cleo.demo";
+        case "Host":
+            return "Users" + (i % 10);
+        case "UserAlias":
+            return "Users" + i;
+        case "url":
+            return "http://partner" + i + ".cleo.demo:5080/as2";
+        default:
+            return column.toLowerCase() + "-" + i;
+        }
+    }
+
+    /**
+     * Returns the template names for which sample data can be generated.
+     * @return the template names
+     */
+    public static List<String> templates() {
+        return Arrays.asList(HEADERS.keySet().toArray(new String[HEADERS.size()]));
+    }
+
+    /**
+     * Returns a generator of rows for a built-in template.
+     * @param template the name of the template
+     * @return a function returning the values for row {@code i}
+     */
+    public static IntFunction<Map<String,String>> rows(String template) {
+        List<String> headers = HEADERS.get(template);
+        return i -> {
+            Map<String,String> row = new LinkedHashMap<>();
+            for (String column : headers) {
+                row.put(column, value(template, column, i));
+            }
+            return row;
+        };
+    }
+
+    /**
+     * Writes a CSV file with a header and {@code rows} rows for a built-in template.
+     * @param template the name of the template
+     * @param rows the number of rows to write
+     * @param file where to write
+     * @return {@code file}
+     * @throws IOException
+     */
+    public static Path csv(String template, int rows, Path file) throws IOException {
+        return csv(template, rows, file, row -> {});
+    }
+
+    /**
+     * Writes a CSV file with a header and {@code rows} rows for a built-in template,
+     * passing each row through {@code adjust} before it is written.
+     * @param template the name of the template
+     * @param rows the number of rows to write
+     * @param file where to write
+     * @param adjust modifies the values of each row (but must not add or remove columns)
+     * @return {@code file}
+     * @throws IOException
+     */
+    public static Path csv(String template, int rows, Path file, Consumer<Map<String,String>> adjust) throws IOException {
+        List<String> headers = HEADERS.get(template);
+        IntFunction<Map<String,String>> generator = rows(template);
+        Joiner joiner = Joiner.on(',');
+        try (BufferedWriter writer = Files.newBufferedWriter(file, Charsets.UTF_8)) {
+            writer.write(joiner.join(headers));
+            writer.newLine();
+            for (int i = 0; i < rows; i++) {
+                Map<String,String> row = generator.apply(i);
+                adjust.accept(row);
+                writer.write(joiner.join(row.values()));
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+}
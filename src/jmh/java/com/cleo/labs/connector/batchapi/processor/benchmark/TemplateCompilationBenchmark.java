@@ -0,0 +1,315 @@
+package com.cleo.labs.connector.batchapi.processor.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cleo.labs.connector.batchapi.processor.Json;
+import com.cleo.labs.connector.batchapi.processor.MacroEngine;
+import com.cleo.labs.connector.batchapi.processor.ProcessingException;
+import com.cleo.labs.connector.batchapi.processor.SquiggleMatcher;
+import com.cleo.labs.connector.batchapi.processor.template.TemplateExpander;
+import com.cleo.labs.connector.batchapi.processor.template.TemplateExpander.Expander;
+import com.cleo.labs.connector.batchapi.processor.template.TemplateExpander.ExpanderResult;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+/**
+ * Compares the way {@link TemplateExpander} used to expand each row (walking
+ * the template and matching every key against the {@code ${for}}, {@code ${if}},
+ * {@code ${var}} and {@code ${error}} patterns, see {@link FormerExpander})
+ * against the current expansion of a template compiled once into a tree of
+ * nodes. Both expand the same rows with the same {@link MacroEngine}, one row
+ * per operation, so the scores are rows/second.
+ * <p/>
+ * The {@code lookup} template is the first 15 columns of the {@code sftp}
+ * sample data as plain {@code ${column}} lookups, where the template walk is
+ * most of the cost; the others are the built-in {@code default/*.yaml}
+ * templates, where JavaScript evaluation may dominate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class TemplateCompilationBenchmark {
+
+    private static final int ROWS = 1024; // rows are recycled
+
+    @Param({"lookup", "sftp", "user"})
+    public String template;
+
+    private Map<String,String>[] rows;
+    private int row;
+    private MacroEngine engine;
+    private JsonNode parsed;
+    private FormerExpander former;
+    private TemplateExpander expander;
+    private Expander compiled;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ScriptException {
+        IntFunction<Map<String,String>> generator = SampleData.rows(template.equals("lookup") ? "sftp" : template);
+        rows = new Map[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = generator.apply(i);
+        }
+        row = 0;
+        if (template.equals("lookup")) {
+            ObjectNode lookup = Json.mapper.createObjectNode();
+            rows[0].keySet().stream().limit(15).forEach(column -> lookup.put(column, "${"+column+"}"));
+            parsed = lookup;
+        } else {
+            parsed = Json.mapper.readTree(Resources.toString(
+                    TemplateExpander.class.getResource("default/"+template+".yaml"), Charsets.UTF_8));
+        }
+        engine = new MacroEngine();
+        engine.eval("exists", "function exists(type,name,profile) { return false; }");
+        former = new FormerExpander(engine);
+        expander = new TemplateExpander(engine).template(parsed);
+        for (Map<String,String> line : rows) {
+            expander.line(line);
+        }
+        compiled = expander.expand();
+    }
+
+    @Benchmark
+    public JsonNode former() throws Exception {
+        engine.data(rows[row]);
+        row = (row + 1) % ROWS;
+        return former.expand(parsed);
+    }
+
+    @Benchmark
+    public ExpanderResult compiled() throws Exception {
+        if (!compiled.hasNext()) {
+            compiled = expander.expand();
+        }
+        ExpanderResult result = compiled.next();
+        if (!result.success()) {
+            throw result.exception();
+        }
+        return result;
+    }
+
+    /**
+     * The row expansion of {@link TemplateExpander} before templates were
+     * compiled, kept as it was for comparison: each key of the template is
+     * matched against the directive patterns on every row.
+     */
+    public static class FormerExpander {
+        private static final Pattern LOOP_PATTERN = Pattern.compile("\\$\\{for\\s+(column\\s+)?([a-zA-Z_]\\w*)\\s*:(.*)\\}");
+        private static final Pattern IF_PATTERN = Pattern.compile("\\$\\{(?:(else\\s+)?if(?:\\s[^:]*)?:(.*)|else(?:\\s.*)?)\\}");
+        private static final Pattern VAR_PATTERN = Pattern.compile("\\$\\{var\\s+([a-zA-Z_]\\w*)\\s*}");
+        private static final Pattern ERROR_PATTERN = Pattern.compile("\\$\\{error(?:\\s.*)?}");
+
+        private MacroEngine engine;
+
+        public FormerExpander(MacroEngine engine) {
+            this.engine = engine;
+        }
+
+        private static boolean matches(Pattern pattern, String key) {
+            return new SquiggleMatcher(key).singleton() != null && pattern.matcher(key).matches();
+        }
+
+        private static boolean matches(Pattern pattern, JsonNode node) {
+            return node.isObject() && node.size()==1 && matches(pattern, node.fieldNames().next());
+        }
+
+        private List<String> loopValues(String key) throws ScriptException {
+            Matcher matcher = LOOP_PATTERN.matcher(key);
+            matcher.matches();
+            String id = matcher.group(2);
+            String expr = matcher.group(3);
+            List<String> values = new ArrayList<>();
+            values.add(id);
+            if (matcher.group(1) != null) {
+                if (engine.data() != null) {
+                    Pattern pattern = Pattern.compile(expr);
+                    for (String column : engine.data().keySet()) {
+                        Matcher m = pattern.matcher(column);
+                        if (m.matches()) {
+                            values.add(m.groupCount() > 0 ? m.group(1) : column);
+                        }
+                    }
+                }
+            } else {
+                List<String> array = engine.asArray(expr);
+                if (array != null) {
+                    values.addAll(array);
+                }
+            }
+            return values;
+        }
+
+        private static class ElseTracker {
+            private boolean conditionOpen = false;
+            private boolean conditionSatisfied = false;
+            public boolean checkIf() {
+                conditionOpen = true;
+                conditionSatisfied = false;
+                return true;
+            }
+            public boolean checkElseIf() throws ProcessingException {
+                if (!conditionOpen) {
+                    throw new ProcessingException("${if} required before ${else if}");
+                }
+                return !conditionSatisfied;
+            }
+            public boolean checkElse() throws ProcessingException {
+                if (!conditionOpen) {
+                    throw new ProcessingException("${if} required before ${else}");
+                }
+                conditionOpen = false;
+                return !conditionSatisfied;
+            }
+            public void satisfy() {
+                conditionSatisfied = true;
+            }
+        }
+
+        private boolean isTrueCondition(String key, ElseTracker tracker) throws ScriptException, ProcessingException {
+            Matcher matcher = IF_PATTERN.matcher(key);
+            matcher.matches();
+            boolean ifElse = matcher.group(1) != null;
+            String expr = matcher.group(2);
+            if (expr == null) {
+                return tracker.checkElse();
+            }
+            if (!(ifElse ? tracker.checkElseIf() : tracker.checkIf())) {
+                return false;
+            }
+            boolean result = engine.isTrue(expr);
+            if (result) {
+                tracker.satisfy();
+            }
+            return result;
+        }
+
+        private static String varName(String key) {
+            Matcher matcher = VAR_PATTERN.matcher(key);
+            matcher.matches();
+            return matcher.group(1);
+        }
+
+        private static void arrayNodeMerge(ArrayNode result, JsonNode toAdd) {
+            if (toAdd == null) {
+                // do nothing
+            } else if (toAdd.isArray()) {
+                result.addAll((ArrayNode)toAdd);
+            } else {
+                result.add(toAdd);
+            }
+        }
+
+        public JsonNode expand(JsonNode node) throws Exception {
+            if (node.isArray()) {
+                ArrayNode result = Json.mapper.createArrayNode();
+                ElseTracker tracker = new ElseTracker();
+                for (int i=0; i<node.size(); i++) {
+                    JsonNode entry = node.get(i);
+                    if (matches(LOOP_PATTERN, entry)) {
+                        JsonNode body = entry.elements().next();
+                        List<String> values = loopValues(entry.fieldNames().next());
+                        String id = values.remove(0);
+                        for (int v=0; v<values.size(); v++) {
+                            engine.datum(id, values.get(v));
+                            arrayNodeMerge(result, expand(body));
+                        }
+                    } else if (matches(IF_PATTERN, entry)) {
+                        if (isTrueCondition(entry.fieldNames().next(), tracker)) {
+                            arrayNodeMerge(result, expand(entry.elements().next()));
+                        }
+                    } else if (matches(VAR_PATTERN, entry)) {
+                        engine.datum(varName(entry.fieldNames().next()), Json.asText(expand(entry)));
+                    } else if (matches(ERROR_PATTERN, entry)) {
+                        throw new ProcessingException(Json.asText(expand(entry)));
+                    } else {
+                        JsonNode expanded = expand(entry);
+                        if (expanded != null) {
+                            result.add(expanded);
+                        }
+                    }
+                }
+                return result.size() > 0 ? result : null;
+            } else if (node.isObject()) {
+                ObjectNode result = Json.mapper.createObjectNode();
+                ElseTracker tracker = new ElseTracker();
+                Iterator<Entry<String,JsonNode>> fields = node.fields();
+                while (fields.hasNext()) {
+                    Entry<String,JsonNode> field = fields.next();
+                    JsonNode entry = field.getValue();
+                    if (matches(IF_PATTERN, field.getKey())) {
+                        if (isTrueCondition(field.getKey(), tracker)) {
+                            JsonNode expanded = expand(entry);
+                            if (expanded == null) {
+                                // ignore
+                            } else if (expanded.isObject()) {
+                                result.setAll((ObjectNode)expanded);
+                            } else {
+                                throw new ProcessingException("invalid template condition--\"${if:}\" must be a nested object in an object: "+
+                                    field.getKey());
+                            }
+                        }
+                    } else if (matches(LOOP_PATTERN, field.getKey())) {
+                        List<String> values = loopValues(field.getKey());
+                        String id = values.remove(0);
+                        for (int v=0; v<values.size(); v++) {
+                            engine.datum(id, values.get(v));
+                            JsonNode expanded = expand(entry);
+                            if (expanded != null && expanded.isObject()) {
+                                result.setAll((ObjectNode)expanded);
+                            } else {
+                                throw new ProcessingException("invalid template condition--\"${for}\" must be a nested object in an object: "+
+                                    field.getKey());
+                            }
+                        }
+                    } else if (matches(VAR_PATTERN, field.getKey())) {
+                        engine.datum(varName(field.getKey()), Json.asText(expand(entry)));
+                    } else if (matches(ERROR_PATTERN, field.getKey())) {
+                        throw new ProcessingException(Json.asText(expand(entry)));
+                    } else {
+                        String key = engine.expand(field.getKey()).asText();
+                        JsonNode expanded = expand(entry);
+                        if (expanded != null) {
+                            result.set(key, expanded);
+                        }
+                    }
+                }
+                return result.size() > 0 ? result : null;
+            } else if (node.isTextual()) {
+                return engine.expand(node.asText());
+            } else {
+                return node;
+            }
+        }
+    }
+}
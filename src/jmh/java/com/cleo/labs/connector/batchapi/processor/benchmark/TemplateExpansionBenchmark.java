@@ -0,0 +1,85 @@
+package com.cleo.labs.connector.batchapi.processor.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cleo.labs.connector.batchapi.processor.template.TemplateExpander;
+import com.cleo.labs.connector.batchapi.processor.template.TemplateExpander.Expander;
+import com.cleo.labs.connector.batchapi.processor.template.TemplateExpander.ExpanderResult;
+
+/**
+ * Streams a generated CSV file of {@code rows} rows through a built-in
+ * template, one row per operation, so the score is rows/second. When the
+ * file is exhausted it is reopened (the cost is amortized over the file).
+ * <p/>
+ * Run with {@code -prof gc} (the default in the {@code jmh} profile) to
+ * report the allocation rate, and {@code -p rows=1000} to limit the sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class TemplateExpansionBenchmark {
+
+    @Param({"authenticator", "user", "as2", "sftp", "ftp"})
+    public String template;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int rows;
+
+    private Path csv;
+    private TemplateExpander expander;
+    private Expander file;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException, ScriptException {
+        csv = SampleData.csv(template, rows, Files.createTempFile("bench-"+template+"-", ".csv"));
+        expander = new TemplateExpander();
+        expander.eval("exists", "function exists(type,name,profile) { return false; }");
+        expander.template(TemplateExpander.class.getResource("default/"+template+".yaml"));
+        open();
+    }
+
+    private void open() throws IOException {
+        expander.loadCsv(csv);
+        file = expander.expand();
+    }
+
+    @Benchmark
+    public ExpanderResult expandRow() throws Exception {
+        if (!file.hasNext()) {
+            open();
+        }
+        ExpanderResult result = file.next();
+        if (!result.success()) {
+            throw result.exception();
+        }
+        return result;
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        file.close();
+        Files.deleteIfExists(csv);
+    }
+}
@@ -1,18 +1,57 @@
 package com.cleo.labs.connector.batchapi.processor;
 
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
@@ -21,24 +60,48 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustAllStrategy;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.util.EntityUtils;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CountingInputStream;
 
-public class ApiClient {
+public class ApiClient implements Closeable {
 
     public static String API_BASE = "/api";
     public static String AUTHENTICATION_URL = API_BASE+"/authentication";
@@ -48,24 +111,309 @@ public class ApiClient {
     public static String CERTS_URL = API_BASE+"/certs";
 
     private String baseUrl;
-    private String authToken;
+    private Session session;
     private boolean insecure;
     private boolean includeDefaults;
     private boolean traceRequests;
 
-    private HttpClient httpClient = null;
+    private HttpOptions httpOptions;
+    private CloseableHttpClient httpClient = null;
+    private boolean owner; // closes the connections and threads shared by copies
+    private ExecutorService prefetcher;
+    private AtomicInteger pageSize; // current (adaptive) page size, shared by copies
+    private int fixedPageSize;      // overrides pageSize when > 0
+    private Map<String, ConcurrencyLimiter> limiters; // by endpoint family, shared by copies
+    private AtomicReference<CloseableHttpAsyncClient> asyncClient; // built on first use, shared by copies
+    private ScheduledExecutorService timer; // schedules async retries
+    private Map<String, String> userIndex; // username to its authenticator's users href, shared by copies
+    private AtomicBoolean userIndexLoaded; // shared by copies
+    private Map<String, CompletableFuture<ObjectNode>> importedCerts; // by fingerprint, shared by copies
+    private Map<String, String> cachedCerts; // fingerprint to href from the certCache, not yet verified, shared by copies
+
+    // Harmony speaks JSON: parse it as such, straight from the response stream
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectReader reader = mapper.reader();
 
-    private static final ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+    /**
+     * Connection pool and timeout settings for the underlying HTTP client.
+     * Timeouts are in milliseconds, with 0 meaning "no timeout".
+     */
+    public static class HttpOptions {
+        private int maxConnections = 20;
+        private int maxConnectionsPerRoute = 20;
+        private int connectionTtl = 300000;
+        private int validateAfterInactivity = 2000;
+        private int connectTimeout = 30000;
+        private int socketTimeout = 0;
+        private int keepAlive = 30000;
+        private int prefetchPages = 4;
+        private int pageSize = 100;
+        private boolean adaptivePaging = false;
+        private int maxPageSize = 1000;
+        private int pageMillis = 2000;
+        private int maxPageBytes = 4*1024*1024;
+        private int retries = 3;
+        private int retryDelay = 500;
+        private int maxRetryDelay = 30000;
+        private boolean adaptiveConcurrency = false;
+        private int searchParallelism = 8;
+        private boolean preloadUserIndex = false;
+        private Path certCache = null;
+        private int initialConcurrency = 4;
+        private int maxConcurrency = 20;
+        public HttpOptions maxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+        public int maxConnections() {
+            return maxConnections;
+        }
+        public HttpOptions maxConnectionsPerRoute(int maxConnectionsPerRoute) {
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+            return this;
+        }
+        public int maxConnectionsPerRoute() {
+            return maxConnectionsPerRoute;
+        }
+        public HttpOptions connectionTtl(int connectionTtl) {
+            this.connectionTtl = connectionTtl;
+            return this;
+        }
+        public int connectionTtl() {
+            return connectionTtl;
+        }
+        public HttpOptions validateAfterInactivity(int validateAfterInactivity) {
+            this.validateAfterInactivity = validateAfterInactivity;
+            return this;
+        }
+        public int validateAfterInactivity() {
+            return validateAfterInactivity;
+        }
+        public HttpOptions connectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+        public int connectTimeout() {
+            return connectTimeout;
+        }
+        public HttpOptions socketTimeout(int socketTimeout) {
+            this.socketTimeout = socketTimeout;
+            return this;
+        }
+        public int socketTimeout() {
+            return socketTimeout;
+        }
+        public HttpOptions keepAlive(int keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+        public int keepAlive() {
+            return keepAlive;
+        }
+        public HttpOptions prefetchPages(int prefetchPages) {
+            this.prefetchPages = prefetchPages;
+            return this;
+        }
+        public int prefetchPages() {
+            return prefetchPages;
+        }
+        public HttpOptions pageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+        public int pageSize() {
+            return pageSize;
+        }
+        public HttpOptions adaptivePaging(boolean adaptivePaging) {
+            this.adaptivePaging = adaptivePaging;
+            return this;
+        }
+        public boolean adaptivePaging() {
+            return adaptivePaging;
+        }
+        public HttpOptions maxPageSize(int maxPageSize) {
+            this.maxPageSize = maxPageSize;
+            return this;
+        }
+        public int maxPageSize() {
+            return maxPageSize;
+        }
+        public HttpOptions pageMillis(int pageMillis) {
+            this.pageMillis = pageMillis;
+            return this;
+        }
+        public int pageMillis() {
+            return pageMillis;
+        }
+        public HttpOptions maxPageBytes(int maxPageBytes) {
+            this.maxPageBytes = maxPageBytes;
+            return this;
+        }
+        public int maxPageBytes() {
+            return maxPageBytes;
+        }
+        public HttpOptions retries(int retries) {
+            this.retries = retries;
+            return this;
+        }
+        public int retries() {
+            return retries;
+        }
+        public HttpOptions retryDelay(int retryDelay) {
+            this.retryDelay = retryDelay;
+            return this;
+        }
+        public int retryDelay() {
+            return retryDelay;
+        }
+        public HttpOptions maxRetryDelay(int maxRetryDelay) {
+            this.maxRetryDelay = maxRetryDelay;
+            return this;
+        }
+        public int maxRetryDelay() {
+            return maxRetryDelay;
+        }
+        public HttpOptions adaptiveConcurrency(boolean adaptiveConcurrency) {
+            this.adaptiveConcurrency = adaptiveConcurrency;
+            return this;
+        }
+        public boolean adaptiveConcurrency() {
+            return adaptiveConcurrency;
+        }
+        public HttpOptions initialConcurrency(int initialConcurrency) {
+            this.initialConcurrency = initialConcurrency;
+            return this;
+        }
+        public int initialConcurrency() {
+            return initialConcurrency;
+        }
+        public HttpOptions maxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+        public int maxConcurrency() {
+            return maxConcurrency;
+        }
+        public HttpOptions searchParallelism(int searchParallelism) {
+            this.searchParallelism = searchParallelism;
+            return this;
+        }
+        public int searchParallelism() {
+            return searchParallelism;
+        }
+        public HttpOptions preloadUserIndex(boolean preloadUserIndex) {
+            this.preloadUserIndex = preloadUserIndex;
+            return this;
+        }
+        public boolean preloadUserIndex() {
+            return preloadUserIndex;
+        }
+        public HttpOptions certCache(Path certCache) {
+            this.certCache = certCache;
+            return this;
+        }
+        public Path certCache() {
+            return certCache;
+        }
+    }
 
     public ApiClient(String url, String username, String password, boolean insecure) throws Exception {
+        this(url, username, password, insecure, new HttpOptions());
+    }
+
+    public ApiClient(String url, String username, String password, boolean insecure, HttpOptions httpOptions) throws Exception {
         this.baseUrl = url;
         this.insecure = insecure;
+        this.httpOptions = httpOptions;
         this.httpClient = getHttpClient();
-        this.authToken = authorize(username, password);
+        this.owner = true;
+        this.prefetcher = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "batchapi-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pageSize = new AtomicInteger(Math.max(httpOptions.pageSize(), 1));
+        this.fixedPageSize = 0;
+        this.limiters = new ConcurrentHashMap<>();
+        this.asyncClient = new AtomicReference<>();
+        this.userIndex = new ConcurrentHashMap<>();
+        this.userIndexLoaded = new AtomicBoolean(false);
+        this.importedCerts = new ConcurrentHashMap<>();
+        this.cachedCerts = new ConcurrentHashMap<>();
+        loadCertCache();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "batchapi-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.session = new Session(username, password);
+        this.session.token = authorize(session);
         this.includeDefaults = false;
         this.traceRequests = false;
     }
 
+    /**
+     * Copies a client, sharing its connections, token, adaptive page size,
+     * concurrency limits, user index and imported certs.
+     * @param other the client to copy
+     */
+    private ApiClient(ApiClient other) {
+        this.baseUrl = other.baseUrl;
+        this.insecure = other.insecure;
+        this.httpOptions = other.httpOptions;
+        this.httpClient = other.httpClient;
+        this.owner = false;
+        this.prefetcher = other.prefetcher;
+        this.pageSize = other.pageSize;
+        this.fixedPageSize = other.fixedPageSize;
+        this.limiters = other.limiters;
+        this.asyncClient = other.asyncClient;
+        this.userIndex = other.userIndex;
+        this.userIndexLoaded = other.userIndexLoaded;
+        this.importedCerts = other.importedCerts;
+        this.cachedCerts = other.cachedCerts;
+        this.timer = other.timer;
+        this.session = other.session;
+        this.includeDefaults = other.includeDefaults;
+        this.traceRequests = other.traceRequests;
+    }
+
+    /**
+     * Returns a client sharing this client's connections that lists
+     * collections {@code pageSize} resources at a time, overriding the
+     * {@link HttpOptions} (and adaptive paging).
+     * @param pageSize the page size, or 0 to return {@code this}
+     * @return a client with a fixed page size
+     */
+    public ApiClient withPageSize(int pageSize) {
+        if (pageSize <= 0) {
+            return this;
+        }
+        ApiClient copy = new ApiClient(this);
+        copy.fixedPageSize = pageSize;
+        return copy;
+    }
+
+    /**
+     * Returns a client sharing everything with this one, but whose
+     * {@link #close} leaves the shared connections and threads open:
+     * for lending a client to a {@link BatchProcessor}, which closes
+     * its clients, when the client is to outlive it.
+     * @return a client sharing this client's connections
+     */
+    public ApiClient borrowed() {
+        return new ApiClient(this);
+    }
+
+    /**
+     * Returns a non-blocking view of this client, sharing its token,
+     * options and concurrency limits (but not its connections).
+     * @return the non-blocking client
+     */
+    public Async async() {
+        return new Async();
+    }
+
     public ApiClient includeDefaults(boolean includeDefaults) {
         this.includeDefaults = includeDefaults;
         return this;
@@ -76,59 +424,495 @@ public class ApiClient {
         return this;
     }
 
-    private HttpClient getHttpClient() {
+    /**
+     * Builds the shared HTTP client on first use. The client pools keep-alive
+     * connections per {@link HttpOptions} and is safe for concurrent use by
+     * all the threads sharing this {@code ApiClient}, so a batch reuses a few
+     * warm TLS connections instead of handshaking for each request.
+     * @return the (possibly newly created) HTTP client
+     */
+    private CloseableHttpClient getHttpClient() {
         if (httpClient == null) {
+            SSLConnectionSocketFactory sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+            SSLContext trustAll = insecure ? trustAll() : null;
+            if (trustAll != null) {
+                sslSocketFactory = new SSLConnectionSocketFactory(trustAll, NoopHostnameVerifier.INSTANCE);
+            }
+            Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", sslSocketFactory)
+                    .build();
+            PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(registry, null, null, null,
+                    httpOptions.connectionTtl() > 0 ? httpOptions.connectionTtl() : -1, TimeUnit.MILLISECONDS);
+            pool.setMaxTotal(httpOptions.maxConnections());
+            pool.setDefaultMaxPerRoute(httpOptions.maxConnectionsPerRoute());
+            pool.setValidateAfterInactivity(httpOptions.validateAfterInactivity());
+            pool.setDefaultSocketConfig(SocketConfig.custom()
+                    .setSoTimeout(httpOptions.socketTimeout())
+                    .setSoKeepAlive(true)
+                    .setTcpNoDelay(true)
+                    .build());
             HttpClientBuilder builder = HttpClients.custom()
-                    .setDefaultRequestConfig(RequestConfig.custom().setCookieSpec(CookieSpecs.STANDARD).build());
-            if (insecure) {
-                try {
-                    builder.setSSLContext(new SSLContextBuilder().loadTrustMaterial(null, TrustAllStrategy.INSTANCE).build())
-                            .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE);
-                } catch (KeyManagementException | NoSuchAlgorithmException | KeyStoreException e) {
-                    // connection will fail anyway, so just print a warning
-                    System.err.println("warning: "+e.getMessage());
-                }
+                    .setConnectionManager(pool)
+                    .setDefaultRequestConfig(requestConfig())
+                    .setKeepAliveStrategy(keepAliveStrategy())
+                    .evictExpiredConnections();
+            if (httpOptions.keepAlive() > 0) {
+                builder.evictIdleConnections(httpOptions.keepAlive(), TimeUnit.MILLISECONDS);
             }
             httpClient = builder.build();
         }
         return httpClient;
     }
 
+    /**
+     * Builds the non-blocking HTTP client for {@link Async} on first use,
+     * pooling connections per {@link HttpOptions} like the blocking one.
+     * A single I/O dispatcher thread per core serves all the requests in
+     * flight, however many there are.
+     * @return the (possibly newly created and started) HTTP client
+     * @throws IOException if the I/O reactor can not be started
+     */
+    private CloseableHttpAsyncClient getAsyncClient() throws IOException {
+        synchronized (asyncClient) {
+            if (asyncClient.get() == null) {
+                SSLIOSessionStrategy sslStrategy = SSLIOSessionStrategy.getDefaultStrategy();
+                SSLContext trustAll = insecure ? trustAll() : null;
+                if (trustAll != null) {
+                    sslStrategy = new SSLIOSessionStrategy(trustAll, NoopHostnameVerifier.INSTANCE);
+                }
+                Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                        .register("http", NoopIOSessionStrategy.INSTANCE)
+                        .register("https", sslStrategy)
+                        .build();
+                ThreadFactory daemons = r -> {
+                    Thread thread = new Thread(r, "batchapi-async");
+                    thread.setDaemon(true);
+                    return thread;
+                };
+                IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                        .setConnectTimeout(httpOptions.connectTimeout())
+                        .setSoTimeout(httpOptions.socketTimeout())
+                        .setSoKeepAlive(true)
+                        .setTcpNoDelay(true)
+                        .build();
+                PoolingNHttpClientConnectionManager pool = new PoolingNHttpClientConnectionManager(
+                        new DefaultConnectingIOReactor(reactorConfig, daemons), null, registry, null, null,
+                        httpOptions.connectionTtl() > 0 ? httpOptions.connectionTtl() : -1, TimeUnit.MILLISECONDS);
+                pool.setMaxTotal(httpOptions.maxConnections());
+                pool.setDefaultMaxPerRoute(httpOptions.maxConnectionsPerRoute());
+                CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                        .setConnectionManager(pool)
+                        .setDefaultRequestConfig(requestConfig())
+                        .setKeepAliveStrategy(keepAliveStrategy())
+                        .setThreadFactory(daemons)
+                        .build();
+                client.start();
+                asyncClient.set(client);
+            }
+            return asyncClient.get();
+        }
+    }
+
+    /**
+     * Closes the connections of this client and stops its prefetching and
+     * retry threads, unless it is a copy (see {@link #withPageSize} and
+     * {@link #borrowed}), whose close does nothing: the copies of a client
+     * must not be used once it is closed.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (!owner) {
+            return;
+        }
+        prefetcher.shutdownNow();
+        timer.shutdownNow();
+        try {
+            synchronized (asyncClient) {
+                if (asyncClient.get() != null) {
+                    asyncClient.get().close();
+                }
+            }
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    private SSLContext trustAll() {
+        try {
+            return new SSLContextBuilder().loadTrustMaterial(null, TrustAllStrategy.INSTANCE).build();
+        } catch (KeyManagementException | NoSuchAlgorithmException | KeyStoreException e) {
+            // connection will fail anyway, so just print a warning
+            System.err.println("warning: "+e.getMessage());
+            return null;
+        }
+    }
+
+    private RequestConfig requestConfig() {
+        return RequestConfig.custom()
+                .setCookieSpec(CookieSpecs.STANDARD)
+                .setConnectTimeout(httpOptions.connectTimeout())
+                .setSocketTimeout(httpOptions.socketTimeout())
+                .build();
+    }
+
+    private ConnectionKeepAliveStrategy keepAliveStrategy() {
+        return (response, context) -> {
+            // honor the server's Keep-Alive timeout if it sends one
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : httpOptions.keepAlive();
+        };
+    }
+
     /*------------------------------------------------------------------------*
      * Authorization                                                          *
      *------------------------------------------------------------------------*/
 
-    private String authorize(String username, String password) throws Exception {
+    /**
+     * The credentials and current bearer token, shared by copies of a client
+     * so that a refreshed token is picked up by all of them.
+     */
+    private static class Session {
+        private String username;
+        private String password;
+        private volatile String token;
+        public Session(String username, String password) {
+            this.username = username;
+            this.password = password;
+            this.token = null;
+        }
+    }
+
+    private String authorize(Session session) throws Exception {
         HttpPost post = new HttpPost(this.baseUrl + AUTHENTICATION_URL);
         post.addHeader("content-type", "application/x-www-form-urlencoded");
         post.setEntity(new UrlEncodedFormEntity(Arrays.asList(new BasicNameValuePair("grant_type", "password"),
-                new BasicNameValuePair("username", username), new BasicNameValuePair("password", password))));
+                new BasicNameValuePair("username", session.username), new BasicNameValuePair("password", session.password))));
+
+        try {
+            HttpResponse response = send(post, 200, false);
+            return readJson(response.getEntity().getContent()).get("access_token").asText();
+        } finally {
+            post.reset();
+        }
+    }
 
-        ObjectNode result = execute(post, 200);
-        return result.get("access_token").asText();
+    /**
+     * Replaces an expired (rejected) token with a new one, unless another
+     * thread has done so already.
+     * @param expired the token that was rejected
+     * @throws Exception
+     */
+    private void reauthorize(String expired) throws Exception {
+        synchronized (session) {
+            if (expired.equals(session.token)) {
+                if (traceRequests) {
+                    System.err.println("token rejected: authenticating again");
+                }
+                session.token = authorize(session);
+            }
+        }
     }
 
     /*------------------------------------------------------------------------*
      * Basic HTTP Operations                                                  *
      *------------------------------------------------------------------------*/
 
-    private ObjectNode execute(HttpRequestBase request, int successCode) throws Exception {
-        if (this.authToken != null) {
-            request.addHeader("Authorization", "Bearer " + this.authToken);
+    /**
+     * Parses a JSON response body straight from its stream, without
+     * buffering it into a {@code String} first. Closing the stream
+     * releases the connection back to the pool.
+     * @param in the response body (may be {@code null})
+     * @return the parsed object, or {@code null} if there is none
+     * @throws IOException
+     */
+    public static ObjectNode readJson(InputStream in) throws IOException {
+        if (in == null) {
+            return null;
+        }
+        try (InputStream body = in) {
+            JsonNode node = reader.readTree(body);
+            return node != null && node.isObject() ? (ObjectNode) node : null;
+        }
+    }
+
+    /**
+     * Serializes a request body as UTF-8 JSON bytes.
+     * @param json the request body
+     * @return an entity for the request
+     * @throws IOException
+     */
+    public static HttpEntity jsonEntity(JsonNode json) throws IOException {
+        return new ByteArrayEntity(mapper.writeValueAsBytes(json), ContentType.APPLICATION_JSON);
+    }
+
+    /**
+     * Formats the error message for an unexpected response, including
+     * the {@code message} from the body if it has one.
+     * @param code the response code
+     * @param entity the response body (may be {@code null})
+     * @return the message
+     */
+    private static String failure(int code, HttpEntity entity) {
+        String message = String.format("Failed HTTP Request (%d)", code);
+        if (entity != null) {
+            try {
+                String text = Json.getSubElementAsText(readJson(entity.getContent()), "message");
+                if (text != null) {
+                    message += ": " + text;
+                }
+            } catch (Exception e) {
+                // leave it just as a code
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Returns the limiter for the endpoint family of {@code request}, the
+     * first path segment after {@code /api/} (so users share the limit of
+     * {@code authenticators}), creating it on first use. Returns {@code null}
+     * if {@link HttpOptions#adaptiveConcurrency()} is off, and for
+     * {@code authentication}, which must never wait behind a limit.
+     * @param request the request
+     * @return the limiter, or {@code null}
+     */
+    private ConcurrencyLimiter limiter(HttpRequestBase request) {
+        if (!httpOptions.adaptiveConcurrency()) {
+            return null;
+        }
+        String path = Strings.nullToEmpty(request.getURI().getPath());
+        if (!path.startsWith(API_BASE+"/") || path.startsWith(AUTHENTICATION_URL)) {
+            return null;
+        }
+        String family = path.substring(API_BASE.length()+1).replaceFirst("/.*", "");
+        return limiters.computeIfAbsent(family, f -> new ConcurrencyLimiter(f,
+                httpOptions.initialConcurrency(), 1, httpOptions.maxConcurrency()));
+    }
+
+    /**
+     * Returns the kind of {@code request} for {@link ConcurrencyLimiter#release},
+     * so that its latency is judged only against requests like it: its method,
+     * and for collections the page size requested, to the nearest power of 2.
+     * Running an action has no kind, as its latency is that of the action.
+     * @param request the request
+     * @return the kind, or {@code null} if its latency is not to be judged
+     */
+    private static String kind(HttpRequestBase request) {
+        String path = Strings.nullToEmpty(request.getURI().getPath());
+        if (path.endsWith("/run")) {
+            return null;
+        }
+        // collections are /api/x and /api/x/id/y, resources /api/x/id and /api/x/id/y/id
+        if (path.substring(Math.min(API_BASE.length()+1, path.length())).split("/").length % 2 == 0) {
+            return request.getMethod();
+        }
+        String kind = request.getMethod()+" collection";
+        Matcher count = COUNT.matcher(Strings.nullToEmpty(request.getURI().getRawQuery()));
+        if (count.find()) {
+            kind += "/"+Integer.highestOneBit(Math.max(Integer.parseInt(count.group(1)), 1));
+        }
+        return kind;
+    }
+
+    private static final Pattern COUNT = Pattern.compile("(?:^|&)count=(\\d{1,9})(?:&|$)");
+
+    /**
+     * A response body that releases its concurrency limit once it has been
+     * read (or discarded): that is, when its stream is closed.
+     */
+    private static class LimitedEntity extends HttpEntityWrapper {
+        private AtomicBoolean released = new AtomicBoolean();
+        private Runnable release;
+
+        public LimitedEntity(HttpEntity entity, Runnable release) {
+            super(entity);
+            this.release = release;
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                release.run();
+            }
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream in;
+            try {
+                in = super.getContent();
+            } catch (IOException | RuntimeException e) {
+                release();
+                throw e;
+            }
+            if (in == null) {
+                release();
+                return null;
+            }
+            return new FilterInputStream(in) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns the current limit of each endpoint family used so far, for
+     * example {@code connections: limit 12, 3 in flight}.
+     * @return the limits, one per family
+     */
+    public List<String> concurrencyLimits() {
+        List<String> result = new ArrayList<>();
+        limiters.values().forEach(limiter -> result.add(limiter.toString()));
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Executes {@code request} once, within the concurrency limit of its
+     * endpoint family if {@link HttpOptions#adaptiveConcurrency()} is on.
+     * I/O errors, {@code 429} and {@code 5xx} count against the limit, as
+     * does latency (see {@link #kind}). The request counts as in flight
+     * until its response body has been read, and so does its latency.
+     * @param request the request
+     * @return the response
+     * @throws IOException
+     * @throws InterruptedException while waiting for the limit
+     */
+    private HttpResponse exchange(HttpRequestBase request) throws IOException, InterruptedException {
+        ConcurrencyLimiter limiter = limiter(request);
+        if (limiter == null) {
+            return httpClient.execute(request);
         }
+        String kind = kind(request);
+        long started = limiter.acquire();
+        HttpResponse response;
         try {
-            HttpResponse response = httpClient.execute(request);
+            response = httpClient.execute(request);
+        } catch (IOException | RuntimeException e) {
+            limiter.release(started, true, kind);
+            throw e;
+        }
+        int code = response.getStatusLine().getStatusCode();
+        boolean dropped = code == 429 || code >= 500;
+        if (response.getEntity() == null) {
+            limiter.release(started, dropped, kind);
+        } else {
+            response.setEntity(new LimitedEntity(response.getEntity(), () -> limiter.release(started, dropped, kind)));
+        }
+        return response;
+    }
+
+    private static final Set<Integer> RETRY_CODES = ImmutableSet.of(429, 502, 503, 504);
+
+    /**
+     * Returns {@code true} if {@code request} can safely be sent again after
+     * it may (or may not) have been processed.
+     */
+    private static boolean idempotent(HttpRequestBase request) {
+        String method = request.getMethod();
+        return method.equals("GET") || method.equals("PUT") || method.equals("DELETE");
+    }
+
+    /**
+     * Returns how long to wait before retry number {@code attempt} (from 0):
+     * the {@code Retry-After} the server asked for, if any, or else an
+     * exponentially growing delay with random jitter (between half and all
+     * of {@code retryDelay * 2^attempt}). Either way the delay is at most
+     * {@code maxRetryDelay}, so that a server asking for a long wait can't
+     * stall the run.
+     * @param attempt the number of retries so far
+     * @param response the failed response, or {@code null} for an I/O error
+     * @return the delay in milliseconds
+     */
+    private long backoff(int attempt, HttpResponse response) {
+        Header retryAfter = response == null ? null : response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            String value = retryAfter.getValue().trim();
+            try {
+                return Math.min(TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value))), httpOptions.maxRetryDelay());
+            } catch (NumberFormatException e) {
+                Date date = DateUtils.parseDate(value);
+                if (date != null) {
+                    return Math.min(Math.max(0, date.getTime() - System.currentTimeMillis()), httpOptions.maxRetryDelay());
+                }
+            }
+        }
+        long delay = Math.min((long) httpOptions.retryDelay() << Math.min(attempt, 20), httpOptions.maxRetryDelay());
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Sends {@code request}, returning the response if it has the
+     * {@code successCode} (the caller must consume its entity).
+     * <p/>
+     * If the bearer token is rejected with a {@code 401} it is renewed and
+     * the request is sent again (once). Idempotent requests are retried up
+     * to {@link HttpOptions#retries()} times after an I/O error or a
+     * {@code 429}, {@code 502}, {@code 503} or {@code 504}, waiting as
+     * described for {@link #backoff(int, HttpResponse)}.
+     * @param request the request
+     * @param successCode the expected response code
+     * @param authenticate {@code true} to add the bearer token
+     * @return the response
+     * @throws UnexpectedCodeException for any other response code
+     * @throws Exception for an I/O error (after retries)
+     */
+    private HttpResponse send(HttpRequestBase request, int successCode, boolean authenticate) throws Exception {
+        boolean reauthorized = false;
+        int attempt = 0;
+        while (true) {
+            String token = session.token;
+            if (authenticate && token != null) {
+                request.setHeader("Authorization", "Bearer " + token);
+            }
+            HttpResponse response;
+            try {
+                response = exchange(request);
+            } catch (IOException e) {
+                if (!idempotent(request) || attempt >= httpOptions.retries()) {
+                    throw e;
+                }
+                retry(request, attempt++, null, e.toString());
+                continue;
+            }
             int code = response.getStatusLine().getStatusCode();
-            String body = response.getEntity() == null ? null : EntityUtils.toString(response.getEntity());
             if (code == successCode) {
-                return body==null ? null : (ObjectNode) mapper.readTree(body);
+                return response;
+            } else if (code == HttpURLConnection.HTTP_UNAUTHORIZED && authenticate && !reauthorized) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                reauthorize(token);
+                reauthorized = true;
+            } else if (RETRY_CODES.contains(code) && idempotent(request) && attempt < httpOptions.retries()) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                retry(request, attempt++, response, "HTTP "+code);
             } else {
-                String message = String.format("Failed HTTP Request (%d)", code);
-                if (body != null) {
-                    message += ": " + Json.getSubElementAsText(mapper.readTree(body), "message");
-                }
-                throw new UnexpectedCodeException(message, code);
+                throw new UnexpectedCodeException(failure(code, response.getEntity()), code);
             }
+            request.reset();
+        }
+    }
+
+    private void retry(HttpRequestBase request, int attempt, HttpResponse response, String reason) throws InterruptedException {
+        long delay = backoff(attempt, response);
+        if (traceRequests) {
+            System.err.println(request.getMethod()+" failed ("+reason+"): retry "+(attempt+1)+" in "+delay+"ms");
+        }
+        request.reset();
+        Thread.sleep(delay);
+    }
+
+    private ObjectNode execute(HttpRequestBase request, int successCode) throws Exception {
+        try {
+            HttpEntity entity = send(request, successCode, true).getEntity();
+            return entity == null ? null : readJson(entity.getContent());
         } finally {
             request.reset();
         }
@@ -158,7 +942,7 @@ public class ApiClient {
         HttpPost post = new HttpPost(uri);
         post.addHeader("content-type", "application/json");
         if (entity != null && !entity.isMissingNode()) {
-            post.setEntity(new StringEntity(entity.toString()));
+            post.setEntity(jsonEntity(entity));
         }
         if (traceRequests) {
             String href = uri.toString().replaceFirst("^.*?[^/](?=/[^/])", "");
@@ -168,7 +952,9 @@ public class ApiClient {
     }
 
     public ObjectNode put(JsonNode json, JsonNode object) throws Exception {
-        return put(json, Json.getHref(object));
+        ObjectNode updated = put(json, Json.getHref(object));
+        updated(object, updated);
+        return updated;
     }
 
     private ObjectNode put(JsonNode json, String href) throws Exception {
@@ -179,7 +965,7 @@ public class ApiClient {
         HttpPut put = new HttpPut(uri);
         put.addHeader("content-type", "application/json");
         if (entity != null && !entity.isMissingNode()) {
-            put.setEntity(new StringEntity(entity.toString()));
+            put.setEntity(jsonEntity(entity));
         }
         if (traceRequests) {
             String href = uri.toString().replaceFirst("^.*?[^/](?=/[^/])", "");
@@ -190,6 +976,7 @@ public class ApiClient {
 
     public void delete(JsonNode object) throws Exception {
         delete(Json.getHref(object));
+        deleted(object);
     }
 
     private void delete(String href) throws Exception {
@@ -204,7 +991,40 @@ public class ApiClient {
      * VersaLex API Collections                                               *
      *------------------------------------------------------------------------*/
 
-    public class JsonCollection implements Iterator<ObjectNode>, Iterable<ObjectNode> {
+    private static final int MIN_PAGE_SIZE = 10;
+
+    private static class Page {
+        private int startIndex;
+        private int count;
+        private int totalResults;
+        private ArrayNode resources;
+        private long millis;
+        private int bytes;
+    }
+
+    /**
+     * Iterates over a collection a page at a time. Once the first page
+     * reveals {@code totalResults}, up to {@link HttpOptions#prefetchPages()}
+     * of the following pages are requested in the background while the
+     * caller works through the current one, so a large listing costs a
+     * few round-trips of latency instead of one per page.
+     * <p/>
+     * Pages are still returned in order. If the server returns a short page
+     * the read-ahead pages no longer line up, so they are discarded and
+     * requested again from the right {@code startIndex}, and the page size
+     * is capped at what the server returned.
+     * <p/>
+     * With {@link HttpOptions#adaptivePaging()} the page size is doubled (up
+     * to {@link HttpOptions#maxPageSize()}) after each full page that came
+     * back in under half of {@link HttpOptions#pageMillis()} and
+     * {@link HttpOptions#maxPageBytes()}, and halved after a page that took
+     * longer or was larger than that. The size carries over to the next
+     * collection listed by the same client.
+     * <p/>
+     * A collection abandoned before the end must be {@link #close}d, so that
+     * the pages requested ahead are cancelled.
+     */
+    public class JsonCollection implements Iterator<ObjectNode>, Iterable<ObjectNode>, AutoCloseable {
         private String path;
         private String filter;
         private int totalResults = -1;
@@ -212,6 +1032,11 @@ public class ApiClient {
         private ArrayNode resources;
         private int index;
         private Exception exception = null;
+        private Deque<Future<Page>> pending = new ArrayDeque<>();
+        private int nextStart;
+        private int count;
+        private int cap = Integer.MAX_VALUE;
+        private boolean closed = false;
 
         public JsonCollection(String path) {
             this(path, null);
@@ -221,50 +1046,109 @@ public class ApiClient {
             this.path = path;
             this.filter = filter;
             startIndex = 0;
+            nextStart = 0;
+            count = fixedPageSize > 0 ? fixedPageSize : pageSize.get();
             fill();
         }
 
+        private Page fetch(int start, int count) throws Exception {
+            URIBuilder uri = new URIBuilder(baseUrl + path).addParameter("startIndex", String.valueOf(start));
+            if (!Strings.isNullOrEmpty(filter)) {
+                uri.addParameter("filter", filter);
+            }
+            uri.addParameter("count", String.valueOf(count));
+            HttpGet httpGet = new HttpGet(uri.build());
+            if (traceRequests) {
+                System.err.println("GET "+uri.toString().replaceFirst("^.*?[^/](?=/[^/])", ""));
+            }
+            long started = System.nanoTime();
+            CountingInputStream in;
+            ObjectNode responseJson;
+            try {
+                HttpResponse response = send(httpGet, 200, true);
+                in = new CountingInputStream(response.getEntity().getContent());
+                responseJson = readJson(in);
+            } finally {
+                httpGet.reset();
+            }
+            Page page = new Page();
+            page.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            page.bytes = (int) in.getCount();
+            page.startIndex = start;
+            page.count = count;
+            page.totalResults = Json.asInt(responseJson.get("totalResults"));
+            page.resources = (ArrayNode) responseJson.get("resources");
+            return page;
+        }
+
+        private void cancelPending() {
+            pending.forEach(f -> f.cancel(true));
+            pending.clear();
+            nextStart = startIndex;
+        }
+
+        private void prefetch() {
+            nextStart = Math.max(nextStart, startIndex);
+            while (pending.size() < httpOptions.prefetchPages() && nextStart < totalResults) {
+                final int start = nextStart;
+                final int size = count;
+                pending.add(prefetcher.submit(() -> fetch(start, size)));
+                nextStart += size;
+            }
+        }
+
+        /**
+         * Works out the size of the next page from how the last one went.
+         * @param page the last page
+         */
+        private void adapt(Page page) {
+            int size = page.count;
+            if (page.millis > httpOptions.pageMillis() || page.bytes > httpOptions.maxPageBytes()) {
+                size = Math.max(size / 2, MIN_PAGE_SIZE);
+            } else if (page.resources.size() >= page.count &&
+                    page.millis * 2 < httpOptions.pageMillis() && page.bytes * 2L < httpOptions.maxPageBytes()) {
+                size = Math.min(size * 2, Math.min(httpOptions.maxPageSize(), cap));
+            }
+            count = Math.max(size, 1);
+            pageSize.set(count);
+        }
+
         private void fill() {
             try {
-                URIBuilder uri = new URIBuilder(baseUrl + path).addParameter("startIndex", String.valueOf(startIndex));
-                if (!Strings.isNullOrEmpty(filter)) {
-                    uri.addParameter("filter", filter);
-                }
-                uri.addParameter("count", "100");
-                HttpGet httpGet = new HttpGet(uri.build());
-                if (authToken != null) {
-                    httpGet.addHeader("Authorization", "Bearer " + authToken);
-                }
-                if (traceRequests) {
-                    System.err.println("GET "+uri.toString().replaceFirst("^.*?[^/](?=/[^/])", ""));
-                }
-                HttpResponse response = httpClient.execute(httpGet);
-                int responseCode = response.getStatusLine().getStatusCode();
-                String responseBody = response.getEntity() == null ? null : EntityUtils.toString(response.getEntity());
-                if (responseCode != 200) {
-                    String msg = String.format("Failed HTTP Request (%d)", responseCode);
-                    if (responseBody != null) {
-                        try {
-                            msg += ": " + ((ObjectNode) mapper.readTree(EntityUtils.toString(response.getEntity()))
-                                    .get("message")).asText();
-                        } catch (Exception e) {
-                            // leave it just as a code
-                        }
-                    }
-                    throw new Exception(msg);
+                Future<Page> next = pending.poll();
+                Page page = next == null ? null : next.get();
+                if (page == null || page.startIndex != startIndex) {
+                    cancelPending();
+                    page = fetch(startIndex, count);
                 }
-                ObjectNode responseJson = (ObjectNode) mapper.readTree(responseBody);
-                totalResults = Json.asInt(responseJson.get("totalResults"));
-                resources = (ArrayNode) responseJson.get("resources");
+                totalResults = page.totalResults;
+                resources = page.resources;
                 startIndex += resources.size();
                 index = 0;
+                if (resources.size() > 0 && resources.size() < page.count && startIndex < totalResults) {
+                    // the server caps the page size: read ahead in its steps instead
+                    cap = resources.size();
+                    count = Math.min(count, cap);
+                    cancelPending();
+                }
+                if (fixedPageSize <= 0 && httpOptions.adaptivePaging()) {
+                    adapt(page);
+                }
+                prefetch();
+            } catch (ExecutionException e) {
+                cancelPending();
+                exception = e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
             } catch (Exception e) {
+                cancelPending();
                 exception = e;
             }
         }
 
         @Override
         public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
             if (exception == null && totalResults > 0 && index >= resources.size() && startIndex < totalResults) {
                 fill();
             }
@@ -297,6 +1181,15 @@ public class ApiClient {
         public Iterator<ObjectNode> iterator() {
             return this;
         }
+
+        /**
+         * Stops reading the collection, cancelling any pages requested ahead.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            cancelPending();
+        }
     }
 
     /*------------------------------------------------------------------------*
@@ -312,13 +1205,32 @@ public class ApiClient {
     }
 
     public ObjectNode createUser(ObjectNode userJson, ObjectNode authenticator) throws Exception {
-        return post(userJson, Json.getSubElementAsText(authenticator, "_links.users.href"));
+        String users = Json.getSubElementAsText(authenticator, "_links.users.href");
+        ObjectNode user = post(userJson, users);
+        indexUser(user, users);
+        return user;
     }
 
     public ObjectNode createAction(JsonNode actionJson) throws Exception {
         return post(actionJson, ACTIONS_URL);
     }
 
+    /**
+     * Imports a certificate, and any certificates bundled with it,
+     * returning the imported certificate (or the existing one, if it
+     * had already been imported).
+     * <p/>
+     * Each distinct certificate (by SHA-256 fingerprint) is imported only
+     * once per client (and its copies): the same certificate, or the same
+     * CA chain, referenced again is answered from memory. With
+     * {@link HttpOptions#certCache()}, the certificates imported are also
+     * remembered in a file, and so across runs: a certificate remembered
+     * from a previous run is checked (once) to be still there, and imported
+     * again if it is not.
+     * @param certJson an object with a {@code certificate} field
+     * @return the certificate resource (at least its {@code _links.self.href})
+     * @throws Exception
+     */
     public ObjectNode importOrGetCert(JsonNode certJson) throws Exception {
         CertUtils.CertWithBundle bundle;
         try {
@@ -329,7 +1241,74 @@ public class ApiClient {
         if (bundle.cert() == null) {
             throw new ProcessingException("unable to parse certificate");
         }
-        String base64 = CertUtils.base64(bundle.cert());
+        ObjectNode result = importOnce(bundle.cert(), true);
+        // now import the bundle, if any
+        for (X509Certificate cert : bundle.bundle()) {
+            importOnce(cert, false);
+        }
+        return result;
+    }
+
+    /**
+     * Imports {@code cert} unless it has been imported already (or is being
+     * imported by another thread, in which case this waits for it).
+     * @param cert the certificate
+     * @param needHref {@code false} if only the import matters, not the
+     *        resulting {@code href}
+     * @return the certificate resource, possibly without {@code href} if
+     *         {@code needHref} is {@code false}
+     * @throws Exception
+     */
+    private ObjectNode importOnce(X509Certificate cert, boolean needHref) throws Exception {
+        String fingerprint = CertUtils.fingerprint(cert);
+        CompletableFuture<ObjectNode> imported = new CompletableFuture<>();
+        while (true) {
+            CompletableFuture<ObjectNode> existing = importedCerts.putIfAbsent(fingerprint, imported);
+            if (existing == null) {
+                break;
+            }
+            ObjectNode result;
+            try {
+                result = existing.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            if (!needHref || Json.getHref(result) != null) {
+                return result.deepCopy();
+            }
+            // imported only as part of a bundle: import it again for the href
+            if (importedCerts.replace(fingerprint, existing, imported)) {
+                break;
+            }
+        }
+        try {
+            ObjectNode result = cachedCert(fingerprint, cert);
+            if (result != null) {
+                imported.complete(result);
+            } else {
+                result = importCert(cert, needHref);
+                imported.complete(result);
+                saveCertCache(fingerprint, Json.getHref(result));
+            }
+            return result.deepCopy();
+        } catch (Exception e) {
+            importedCerts.remove(fingerprint, imported);
+            imported.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Imports {@code cert}, falling back to finding the existing certificate
+     * by serial number if it was already imported.
+     * @param cert the certificate
+     * @param needHref {@code false} to skip finding the existing certificate
+     * @return the certificate resource, or an empty object if it already
+     *         existed and {@code needHref} is {@code false}
+     * @throws Exception
+     */
+    private ObjectNode importCert(X509Certificate cert, boolean needHref) throws Exception {
+        String base64 = CertUtils.base64(cert);
         ObjectNode importCert = Json.mapper.createObjectNode();
         importCert.put("requestType", "importCert");
         importCert.put("import", base64);
@@ -337,19 +1316,22 @@ public class ApiClient {
         try {
             result = post(importCert, CERTS_URL);
         } catch (UnexpectedCodeException e) {
-            if (e.code() == HttpURLConnection.HTTP_CONFLICT) {
-                String serial = bundle.cert().getSerialNumber().toString(16);
+            if (e.code() == HttpURLConnection.HTTP_CONFLICT && !needHref) {
+                return Json.mapper.createObjectNode();
+            } else if (e.code() == HttpURLConnection.HTTP_CONFLICT) {
+                String serial = cert.getSerialNumber().toString(16);
                 if (serial.length() % 2 == 1) {
                     serial = "0"+serial; // Harmony stores full octets, including leading 0
                 }
-                JsonCollection certs = new JsonCollection(CERTS_URL, "serialNumber eq \""+serial+"\"");
-                for (ObjectNode c : certs) {
-                    if (c.path("hasPrivateKey").asBoolean()) {
-                        continue;
-                    }
-                    if (base64.equals(Json.getSubElementAsText(c, "certificate"))) {
-                        result = c;
-                        break;
+                try (JsonCollection certs = new JsonCollection(CERTS_URL, "serialNumber eq \""+serial+"\"")) {
+                    for (ObjectNode c : certs) {
+                        if (c.path("hasPrivateKey").asBoolean()) {
+                            continue;
+                        }
+                        if (base64.equals(Json.getSubElementAsText(c, "certificate"))) {
+                            result = c;
+                            break;
+                        }
                     }
                 }
             }
@@ -357,23 +1339,77 @@ public class ApiClient {
                 throw e;
             }
         }
-        // now import the bundle, if any, ignoring conflict exceptions
-        for (X509Certificate cert : bundle.bundle()) {
-            importCert.removeAll();
-            importCert.put("requestType", "importCert");
-            importCert.put("import", CertUtils.base64(cert));
-            try {
-                post(importCert, CERTS_URL);
-            } catch (UnexpectedCodeException e) {
-                if (e.code() != HttpURLConnection.HTTP_CONFLICT) {
-                    throw e;
-                }
+        return result;
+    }
+
+    /**
+     * Returns the certificate a previous run imported, if the
+     * {@link HttpOptions#certCache()} file remembers one for
+     * {@code fingerprint} and it is still there: the certificate may
+     * have been deleted since, or the file be from another server.
+     * @param fingerprint the certificate fingerprint
+     * @param cert the certificate
+     * @return the certificate resource, or {@code null} to import it
+     * @throws Exception
+     */
+    private ObjectNode cachedCert(String fingerprint, X509Certificate cert) throws Exception {
+        String href = cachedCerts.remove(fingerprint);
+        if (href == null) {
+            return null;
+        }
+        ObjectNode result;
+        try {
+            result = get(href);
+        } catch (UnexpectedCodeException e) {
+            if (e.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
             }
+            throw e;
+        }
+        if (result == null || !CertUtils.base64(cert).equals(Json.getSubElementAsText(result, "certificate"))) {
+            return null; // something else now
         }
-        // return result
         return result;
     }
 
+    /**
+     * Loads the certificates imported in previous runs from the
+     * {@link HttpOptions#certCache()} file, if there is one: a properties
+     * file mapping each fingerprint to the {@code href} of the certificate
+     * (the last one, if it was imported again). They are verified on
+     * first use, see {@link #cachedCert}.
+     * @throws IOException
+     */
+    private void loadCertCache() throws IOException {
+        Path certCache = httpOptions.certCache();
+        if (certCache != null && Files.exists(certCache)) {
+            Properties hrefs = new Properties();
+            try (Reader reader = Files.newBufferedReader(certCache, StandardCharsets.UTF_8)) {
+                hrefs.load(reader);
+            }
+            for (String fingerprint : hrefs.stringPropertyNames()) {
+                cachedCerts.put(fingerprint, hrefs.getProperty(fingerprint));
+            }
+        }
+    }
+
+    /**
+     * Appends a newly imported certificate to the {@link HttpOptions#certCache()}
+     * file, if there is one.
+     * @param fingerprint the certificate fingerprint
+     * @param href the certificate {@code href}, or {@code null} if unknown
+     * @throws IOException
+     */
+    private void saveCertCache(String fingerprint, String href) throws IOException {
+        Path certCache = httpOptions.certCache();
+        if (certCache != null && href != null) {
+            synchronized (importedCerts) {
+                Files.write(certCache, (fingerprint+"="+href+"\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        }
+    }
+
     private ObjectNode getResource(String resourcePath, String keyAttribute, String key) throws Exception {
         List<ObjectNode> list = getResources(resourcePath, keyAttribute + " eq \"" + key + "\"");
         if (list != null && !list.isEmpty()) {
@@ -383,10 +1419,11 @@ public class ApiClient {
     }
 
     private List<ObjectNode> getResources(String resourcePath, String filter) throws Exception {
-        JsonCollection resources = new JsonCollection("/api/" + resourcePath, filter);
         List<ObjectNode> list = new ArrayList<>();
-        resources.forEachRemaining(list::add);
-        resources.throwException();
+        try (JsonCollection resources = new JsonCollection("/api/" + resourcePath, filter)) {
+            resources.forEachRemaining(list::add);
+            resources.throwException();
+        }
         return list;
     }
 
@@ -402,8 +1439,100 @@ public class ApiClient {
         return getUser(null, username);
     }
 
+    /*- user index -----------------------------------------------------------*/
+
+    private void indexUser(ObjectNode user, String users) {
+        String username = Json.getSubElementAsText(user, "username");
+        if (username != null && users != null) {
+            userIndex.put(username, users);
+        }
+    }
+
+    /**
+     * Keeps the user index up to date after {@code object} is updated
+     * (blocking or not): the username may have changed.
+     * @param object the resource, as it was
+     * @param updated the resource, as updated
+     */
+    private void updated(JsonNode object, ObjectNode updated) {
+        String username = Json.getSubElementAsText(object, "username");
+        if (username != null) {
+            String users = userIndex.remove(username);
+            if (users != null) {
+                indexUser(updated, users);
+            }
+        }
+    }
+
+    /**
+     * Keeps the user index up to date after {@code object} is deleted
+     * (blocking or not): deleting an authenticator deletes its users.
+     * @param object the deleted resource
+     */
+    private void deleted(JsonNode object) {
+        String username = Json.getSubElementAsText(object, "username");
+        String users = Json.getSubElementAsText(object, "_links.users.href");
+        if (username != null) {
+            userIndex.remove(username);
+        } else if (users != null) {
+            userIndex.values().removeIf(users::equals);
+        }
+    }
+
+    /**
+     * Fills the user index with the users of all authenticators, once, if
+     * {@link HttpOptions#preloadUserIndex()} is set.
+     * @throws Exception
+     */
+    private void preloadUserIndex() throws Exception {
+        if (httpOptions.preloadUserIndex() && userIndexLoaded.compareAndSet(false, true)) {
+            getUsers(null, null, false);
+        }
+    }
+
+    /**
+     * Returns {@code true} if {@code username} is in the user index, so that
+     * {@link #getUser(String)} will search only its authenticator.
+     * @param username the username
+     * @return {@code true} if the username is indexed
+     * @throws Exception
+     */
+    public boolean isUserIndexed(String username) throws Exception {
+        preloadUserIndex();
+        return userIndex.containsKey(username);
+    }
+
+    /**
+     * Looks up a user by username, optionally limited to the authenticators
+     * matching {@code authfilter}.
+     * <p/>
+     * Usernames are unique across authenticators, so as users are seen in
+     * listings, searches and updates, and as they are created, the
+     * authenticator of each is remembered in a user index (or all at
+     * once with {@link HttpOptions#preloadUserIndex()}). Users found in
+     * the index are then looked up in their authenticator alone, instead of
+     * searching all the authenticators. Users deleted through this client
+     * (or through the authenticator) are removed from the index, and if a
+     * user is no longer where the index says, all authenticators are searched.
+     * @param authfilter the authenticator filter, or {@code null} for all
+     * @param username the username
+     * @return the user, or {@code null} if not found
+     * @throws Exception
+     */
     public ObjectNode getUser(String authfilter, String username) throws Exception {
-        List<ObjectNode> users = getUsers(authfilter, "username eq \"" + username + "\"", true);
+        String filter = "username eq \"" + username + "\"";
+        if (authfilter == null) {
+            preloadUserIndex();
+            String users = userIndex.get(username);
+            if (users != null) {
+                List<ObjectNode> found = searchUsers(users, filter);
+                if (!found.isEmpty()) {
+                    return found.get(0);
+                }
+                userIndex.remove(username, users);
+            }
+        }
+        List<ObjectNode> users = getUsers(authfilter, filter, true);
         if (users.size() > 0) {
             return users.get(0);
         }
@@ -414,20 +1543,79 @@ public class ApiClient {
         return getUsers(authfilter, filter, false);
     }
 
-    public List<ObjectNode> getUsers(String authfilter, String filter, boolean stopAtOne) throws Exception {
+    private List<ObjectNode> searchUsers(ObjectNode authenticator, String filter) throws Exception {
+        return searchUsers(Json.getSubElementAsText(authenticator, "_links.users.href"), filter);
+    }
+
+    private List<ObjectNode> searchUsers(String usersHref, String filter) throws Exception {
         List<ObjectNode> list = new ArrayList<>();
-        List<ObjectNode> authenticators = getAuthenticators(authfilter);
-        for (ObjectNode authenticator : authenticators) {
-            JsonCollection users = new JsonCollection(Json.getSubElementAsText(authenticator, "_links.users.href"),
-                    filter);
+        try (JsonCollection users = new JsonCollection(usersHref, filter)) {
             users.forEachRemaining(list::add);
-            if (users.exception() != null) {
-                throw users.exception();
+            users.throwException();
+        }
+        list.forEach(user -> indexUser(user, usersHref));
+        return list;
+    }
+
+    /**
+     * Lists the users matching {@code filter} in the authenticators matching
+     * {@code authfilter}, searching up to {@link HttpOptions#searchParallelism()}
+     * authenticators at a time. The users are returned in authenticator order,
+     * unless {@code stopAtOne}, when the users of the first authenticator
+     * found to have any are returned, and the remaining searches are
+     * cancelled (so when looking up a username, which is unique across
+     * authenticators, this costs about one round-trip instead of one per
+     * authenticator).
+     * @param authfilter the authenticator filter, or {@code null} for all
+     * @param filter the user filter, or {@code null} for all
+     * @param stopAtOne {@code true} to stop at the first authenticator with users
+     * @return the users
+     * @throws Exception
+     */
+    public List<ObjectNode> getUsers(String authfilter, String filter, boolean stopAtOne) throws Exception {
+        List<ObjectNode> authenticators = getAuthenticators(authfilter);
+        int parallelism = Math.min(httpOptions.searchParallelism(), authenticators.size());
+        if (parallelism <= 1) {
+            List<ObjectNode> list = new ArrayList<>();
+            for (ObjectNode authenticator : authenticators) {
+                list.addAll(searchUsers(authenticator, filter));
+                if (stopAtOne && !list.isEmpty()) {
+                    break;
+                }
             }
-            if (stopAtOne && !list.isEmpty()) {
-                break;
+            return list;
+        }
+        CompletionService<List<ObjectNode>> searches = new ExecutorCompletionService<>(prefetcher);
+        Map<Future<List<ObjectNode>>, Integer> submitted = new HashMap<>();
+        List<List<ObjectNode>> found = new ArrayList<>(Collections.nCopies(authenticators.size(), null));
+        try {
+            int next = 0;
+            int done = 0;
+            while (done < authenticators.size()) {
+                // keep up to parallelism searches going
+                while (next < authenticators.size() && next - done < parallelism) {
+                    ObjectNode authenticator = authenticators.get(next);
+                    submitted.put(searches.submit(() -> searchUsers(authenticator, filter)), next);
+                    next++;
+                }
+                Future<List<ObjectNode>> search = searches.take();
+                done++;
+                List<ObjectNode> users;
+                try {
+                    users = search.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                if (stopAtOne && !users.isEmpty()) {
+                    return users;
+                }
+                found.set(submitted.remove(search), users);
             }
+        } finally {
+            submitted.keySet().forEach(search -> search.cancel(true));
         }
+        List<ObjectNode> list = new ArrayList<>();
+        found.forEach(list::addAll);
         return list;
     }
 
@@ -447,6 +1635,42 @@ public class ApiClient {
         return getResources(resourcePath, filter);
     }
 
+    /**
+     * Returns the number of resources in a collection matching {@code filter},
+     * reading a single resource to learn {@code totalResults}.
+     * @param path the collection path, e.g. the {@code href} of the users of an authenticator
+     * @param filter the filter, or {@code null} for all resources
+     * @return the number of resources
+     * @throws Exception
+     */
+    public int count(String path, String filter) throws Exception {
+        URIBuilder uri = new URIBuilder(baseUrl + path).addParameter("startIndex", "0");
+        if (!Strings.isNullOrEmpty(filter)) {
+            uri.addParameter("filter", filter);
+        }
+        uri.addParameter("count", "1");
+        HttpGet httpGet = new HttpGet(uri.build());
+        if (traceRequests) {
+            System.err.println("GET "+uri.toString().replaceFirst("^.*?[^/](?=/[^/])", ""));
+        }
+        try {
+            HttpResponse response = send(httpGet, 200, true);
+            return Math.max(Json.asInt(readJson(response.getEntity().getContent()).get("totalResults")), 0);
+        } finally {
+            httpGet.reset();
+        }
+    }
+
+    /**
+     * Returns the connections matching {@code filter} as they are read, page
+     * by page, instead of all at once as {@link #getConnections} does.
+     * @param filter the filter, or {@code null} for all connections
+     * @return the connections (check {@link JsonCollection#throwException()} at the end)
+     */
+    public JsonCollection streamConnections(String filter) {
+        return new JsonCollection(includeDefaults ? CONNECTIONS_URL+"?includeDefaults=true" : CONNECTIONS_URL, filter);
+    }
+
     public List<ObjectNode> getActions(String filter) throws Exception {
         return getResources("actions", filter);
     }
@@ -477,4 +1701,415 @@ public class ApiClient {
         }
     }
 
+    /*------------------------------------------------------------------------*
+     * Non-blocking Operations                                                *
+     *------------------------------------------------------------------------*/
+
+    /**
+     * The non-blocking counterpart of the {@code ApiClient} operations, each
+     * returning a {@link CompletableFuture} instead of waiting for the
+     * response, so that many requests can be in flight without a thread
+     * each. A failed request completes its future exceptionally with the
+     * same exception the blocking operation would throw.
+     * <p/>
+     * Requests are retried, re-authorized and limited (with
+     * {@link HttpOptions#adaptiveConcurrency()}) as for the blocking
+     * operations, waiting on timers and futures instead of threads (only
+     * logging in again blocks, on the read-ahead threads). Collections are
+     * listed by requesting the first page, and then all the remaining pages
+     * at once, at the client's current page size.
+     */
+    public class Async {
+
+        private Async() {
+        }
+
+        /**
+         * Returns the blocking client this is a view of.
+         * @return the blocking client
+         */
+        public ApiClient blocking() {
+            return ApiClient.this;
+        }
+
+        private CompletableFuture<HttpResponse> execute(HttpRequestBase request) {
+            CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+            try {
+                getAsyncClient().execute(request, new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(HttpResponse response) {
+                        future.complete(response);
+                    }
+                    @Override
+                    public void failed(Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                    @Override
+                    public void cancelled() {
+                        future.cancel(false);
+                    }
+                });
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        /**
+         * Executes {@code request} once, within the concurrency limit of its
+         * endpoint family (see the blocking {@code exchange}).
+         */
+        private CompletableFuture<HttpResponse> exchange(HttpRequestBase request) {
+            ConcurrencyLimiter limiter = limiter(request);
+            if (limiter == null) {
+                return execute(request);
+            }
+            // the response body has been received in full by the time it completes
+            String kind = kind(request);
+            return limiter.acquireAsync().thenCompose(started -> execute(request).whenComplete((response, e) -> {
+                int code = response == null ? 0 : response.getStatusLine().getStatusCode();
+                limiter.release(started, e != null || code == 429 || code >= 500, kind);
+            }));
+        }
+
+        /**
+         * Sends {@code request} as the blocking {@code send} does, completing with the response if it has the {@code successCode}.
+         */
+        private CompletableFuture<HttpResponse> send(HttpRequestBase request, int successCode, int attempt, boolean reauthorized) {
+            String token = session.token;
+            if (token != null) {
+                request.setHeader("Authorization", "Bearer " + token);
+            }
+            return exchange(request).handle((response, e) -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause != null) {
+                    if (cause instanceof IOException && idempotent(request) && attempt < httpOptions.retries()) {
+                        return retry(request, successCode, attempt, reauthorized, null, cause.toString());
+                    }
+                    return ApiClient.<HttpResponse>failed(cause);
+                }
+                int code = response.getStatusLine().getStatusCode();
+                if (code == successCode) {
+                    return CompletableFuture.completedFuture(response);
+                } else if (code == HttpURLConnection.HTTP_UNAUTHORIZED && !reauthorized) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    return CompletableFuture.runAsync(() -> {
+                        try {
+                            reauthorize(token);
+                        } catch (Exception x) {
+                            throw new CompletionException(x);
+                        }
+                    }, prefetcher).thenCompose(v -> send(request, successCode, attempt, true));
+                } else if (RETRY_CODES.contains(code) && idempotent(request) && attempt < httpOptions.retries()) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    return retry(request, successCode, attempt, reauthorized, response, "HTTP "+code);
+                }
+                return ApiClient.<HttpResponse>failed(new UnexpectedCodeException(failure(code, response.getEntity()), code));
+            }).thenCompose(f -> f);
+        }
+
+        private CompletableFuture<HttpResponse> retry(HttpRequestBase request, int successCode, int attempt, boolean reauthorized,
+                HttpResponse response, String reason) {
+            long delay = backoff(attempt, response);
+            if (traceRequests) {
+                System.err.println(request.getMethod()+" failed ("+reason+"): retry "+(attempt+1)+" in "+delay+"ms");
+            }
+            CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+            timer.schedule(() -> {
+                send(request, successCode, attempt+1, reauthorized).whenComplete((r, e) -> {
+                    if (e != null) {
+                        future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    } else {
+                        future.complete(r);
+                    }
+                });
+            }, delay, TimeUnit.MILLISECONDS);
+            return future;
+        }
+
+        private CompletableFuture<ObjectNode> execute(HttpRequestBase request, int successCode) {
+            return send(request, successCode, 0, false).thenApply(response -> {
+                try {
+                    HttpEntity entity = response.getEntity();
+                    return entity == null ? null : readJson(entity.getContent());
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        }
+
+        public CompletableFuture<ObjectNode> get(JsonNode object) {
+            return get(Json.getHref(object));
+        }
+
+        public CompletableFuture<ObjectNode> get(String href) {
+            if (traceRequests) {
+                System.err.println("GET "+href);
+            }
+            return execute(new HttpGet(baseUrl + href), 200);
+        }
+
+        /**
+         * Counts the resources in a collection without waiting, as {@link ApiClient#count} does.
+         * @param path the collection path
+         * @param filter the filter, or {@code null} for all resources
+         * @return the number of resources matching {@code filter}, when it is known
+         */
+        public CompletableFuture<Integer> count(String path, String filter) {
+            URIBuilder uri;
+            try {
+                uri = new URIBuilder(baseUrl + path).addParameter("startIndex", "0");
+            } catch (URISyntaxException e) {
+                return failed(e);
+            }
+            if (!Strings.isNullOrEmpty(filter)) {
+                uri.addParameter("filter", filter);
+            }
+            uri.addParameter("count", "1");
+            HttpGet httpGet;
+            try {
+                httpGet = new HttpGet(uri.build());
+            } catch (URISyntaxException e) {
+                return failed(e);
+            }
+            if (traceRequests) {
+                System.err.println("GET "+uri.toString().replaceFirst("^.*?[^/](?=/[^/])", ""));
+            }
+            return execute(httpGet, 200).thenApply(json -> Math.max(Json.asInt(json.get("totalResults")), 0));
+        }
+
+        public CompletableFuture<ObjectNode> post(JsonNode entity, JsonNode object) {
+            return post(entity, Json.getHref(object));
+        }
+
+        private CompletableFuture<ObjectNode> post(JsonNode entity, String href) {
+            return post(entity, baseUrl + href, 201);
+        }
+
+        private CompletableFuture<ObjectNode> post(JsonNode entity, String url, int success) {
+            HttpPost post = new HttpPost(url);
+            post.addHeader("content-type", "application/json");
+            try {
+                if (entity != null && !entity.isMissingNode()) {
+                    post.setEntity(jsonEntity(entity));
+                }
+            } catch (IOException e) {
+                return failed(e);
+            }
+            if (traceRequests) {
+                String href = url.replaceFirst("^.*?[^/](?=/[^/])", "");
+                System.err.println("POST "+href+":\n"+(entity==null ? "" : entity.toPrettyString()));
+            }
+            return execute(post, success);
+        }
+
+        public CompletableFuture<ObjectNode> put(JsonNode entity, JsonNode object) {
+            String href = Json.getHref(object);
+            HttpPut put = new HttpPut(baseUrl + href);
+            put.addHeader("content-type", "application/json");
+            try {
+                if (entity != null && !entity.isMissingNode()) {
+                    put.setEntity(jsonEntity(entity));
+                }
+            } catch (IOException e) {
+                return failed(e);
+            }
+            if (traceRequests) {
+                System.err.println("PUT "+href+":\n"+(entity==null ? "" : entity.toPrettyString()));
+            }
+            return execute(put, 200).thenApply(updated -> {
+                updated(object, updated);
+                return updated;
+            });
+        }
+
+        public CompletableFuture<Void> delete(JsonNode object) {
+            return delete(Json.getHref(object)).thenRun(() -> deleted(object));
+        }
+
+        private CompletableFuture<Void> delete(String href) {
+            if (traceRequests) {
+                System.err.println("DELETE "+href);
+            }
+            return execute(new HttpDelete(baseUrl + href), 204).thenApply(result -> null);
+        }
+
+        public CompletableFuture<ObjectNode> createConnection(JsonNode connectionJson) {
+            return post(connectionJson, CONNECTIONS_URL);
+        }
+
+        public CompletableFuture<ObjectNode> createAuthenticator(JsonNode authenticatorJson) {
+            return post(authenticatorJson, AUTHENTICATORS_URL);
+        }
+
+        public CompletableFuture<ObjectNode> createUser(ObjectNode userJson, ObjectNode authenticator) {
+            String users = Json.getSubElementAsText(authenticator, "_links.users.href");
+            return post(userJson, users).thenApply(user -> {
+                indexUser(user, users);
+                return user;
+            });
+        }
+
+        public CompletableFuture<ObjectNode> createAction(JsonNode actionJson) {
+            return post(actionJson, ACTIONS_URL);
+        }
+
+        public CompletableFuture<ObjectNode> runAction(ObjectNode action) {
+            return runAction(action, null);
+        }
+
+        public CompletableFuture<ObjectNode> runAction(ObjectNode action, ObjectNode options) {
+            String path = Json.getSubElementAsText(action, "_links.run.href");
+            String timeout = Json.getSubElementAsText(options, "timeout");
+            String messagesCount = Json.getSubElementAsText(options, "messagesCount");
+            try {
+                URIBuilder uri = new URIBuilder(baseUrl + path);
+                if (!Strings.isNullOrEmpty(timeout)) {
+                    uri.addParameter("timeout", timeout);
+                }
+                if (!Strings.isNullOrEmpty(messagesCount)) {
+                    uri.addParameter("messagesCount", messagesCount);
+                }
+                return post(null, uri.build().toString(), 200);
+            } catch (URISyntaxException e) {
+                return failed(e);
+            }
+        }
+
+        private CompletableFuture<Page> page(String path, String filter, int start, int count) {
+            try {
+                URIBuilder uri = new URIBuilder(baseUrl + path).addParameter("startIndex", String.valueOf(start));
+                if (!Strings.isNullOrEmpty(filter)) {
+                    uri.addParameter("filter", filter);
+                }
+                uri.addParameter("count", String.valueOf(count));
+                if (traceRequests) {
+                    System.err.println("GET "+uri.toString().replaceFirst("^.*?[^/](?=/[^/])", ""));
+                }
+                return execute(new HttpGet(uri.build()), 200).thenApply(responseJson -> {
+                    Page page = new Page();
+                    page.startIndex = start;
+                    page.count = count;
+                    page.totalResults = Json.asInt(responseJson.get("totalResults"));
+                    page.resources = (ArrayNode) responseJson.get("resources");
+                    return page;
+                });
+            } catch (URISyntaxException e) {
+                return failed(e);
+            }
+        }
+
+        /**
+         * Lists a collection: requests the first page and then, once its
+         * {@code totalResults} is known, all the remaining pages at once
+         * (in steps of the first page's size if the server returned fewer
+         * than asked for). If a page comes back short, the pages after it
+         * no longer line up, so the listing carries on from there.
+         * @param path the collection path
+         * @param filter the filter, or {@code null}
+         * @return a future completing with the resources, in order
+         */
+        public CompletableFuture<List<ObjectNode>> list(String path, String filter) {
+            int count = fixedPageSize > 0 ? fixedPageSize : pageSize.get();
+            List<ObjectNode> list = new ArrayList<>();
+            return page(path, filter, 0, count).thenCompose(first -> {
+                first.resources.forEach(resource -> list.add((ObjectNode) resource));
+                int size = first.resources.size();
+                int step = size > 0 && size < count ? size : count;
+                return rest(path, filter, size, step, first.totalResults, list);
+            });
+        }
+
+        private CompletableFuture<List<ObjectNode>> rest(String path, String filter, int start, int step, int totalResults,
+                List<ObjectNode> list) {
+            if (start >= totalResults) {
+                return CompletableFuture.completedFuture(list);
+            }
+            List<CompletableFuture<Page>> pages = new ArrayList<>();
+            for (int next = start; next < totalResults; next += step) {
+                pages.add(page(path, filter, next, step));
+            }
+            return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[pages.size()])).thenCompose(v -> {
+                int next = start;
+                int total = totalResults;
+                for (CompletableFuture<Page> future : pages) {
+                    Page page = future.join();
+                    page.resources.forEach(resource -> list.add((ObjectNode) resource));
+                    next += page.resources.size();
+                    total = page.totalResults;
+                    if (page.resources.size() < page.count) {
+                        break;
+                    }
+                }
+                if (next == start) {
+                    return CompletableFuture.completedFuture(list); // the collection shrank: nothing more to get
+                }
+                return rest(path, filter, next, step, total, list);
+            });
+        }
+
+        private CompletableFuture<ObjectNode> first(CompletableFuture<List<ObjectNode>> list) {
+            return list.thenApply(resources -> resources.isEmpty() ? null : resources.get(0));
+        }
+
+        private String connectionsPath() {
+            return CONNECTIONS_URL + (includeDefaults ? "?includeDefaults=true" : "");
+        }
+
+        public CompletableFuture<ObjectNode> getConnection(String alias) {
+            return first(list(connectionsPath(), "alias eq \"" + alias + "\""));
+        }
+
+        public CompletableFuture<List<ObjectNode>> getConnections(String filter) {
+            return list(connectionsPath(), filter);
+        }
+
+        public CompletableFuture<ObjectNode> getAuthenticator(String alias) {
+            return first(list(AUTHENTICATORS_URL, "alias eq \"" + alias + "\""));
+        }
+
+        public CompletableFuture<List<ObjectNode>> getAuthenticators(String filter) {
+            return list(AUTHENTICATORS_URL, filter);
+        }
+
+        public CompletableFuture<ObjectNode> getUser(String username) {
+            return first(getUsers(null, "username eq \"" + username + "\""));
+        }
+
+        /**
+         * Lists the users of all the authenticators matching
+         * {@code authfilter} concurrently.
+         * @param authfilter the authenticator filter, or {@code null}
+         * @param filter the user filter, or {@code null}
+         * @return a future completing with the users, in authenticator order
+         */
+        public CompletableFuture<List<ObjectNode>> getUsers(String authfilter, String filter) {
+            return getAuthenticators(authfilter).thenCompose(authenticators -> {
+                List<CompletableFuture<List<ObjectNode>>> users = new ArrayList<>();
+                for (ObjectNode authenticator : authenticators) {
+                    String usersHref = Json.getSubElementAsText(authenticator, "_links.users.href");
+                    users.add(list(usersHref, filter).thenApply(list -> {
+                        list.forEach(user -> indexUser(user, usersHref));
+                        return list;
+                    }));
+                }
+                return CompletableFuture.allOf(users.toArray(new CompletableFuture<?>[users.size()])).thenApply(v -> {
+                    List<ObjectNode> list = new ArrayList<>();
+                    users.forEach(u -> list.addAll(u.join()));
+                    return list;
+                });
+            });
+        }
+
+        public CompletableFuture<List<ObjectNode>> getActions(String filter) {
+            return list(ACTIONS_URL, filter);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
 }
@@ -1,19 +1,30 @@
 package com.cleo.labs.connector.batchapi.processor;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
 import com.cleo.labs.connector.batchapi.processor.template.CsvExpander;
@@ -22,6 +33,8 @@ import com.cleo.labs.connector.batchapi.processor.template.TemplateExpander.Expa
 import com.cleo.labs.connector.batchapi.processor.versalex.StubVersaLex;
 import com.cleo.labs.connector.batchapi.processor.versalex.VersaLex;
 import com.fasterxml.jackson.core.JsonGenerator.Feature;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SequenceWriter;
@@ -31,6 +44,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CharSource;
+import com.google.common.io.MoreFiles;
 
 public class BatchProcessor {
     public enum Operation {
@@ -39,7 +54,8 @@ public class BatchProcessor {
         update ("updating"),
         delete ("deleted"),
         preview ("previewed"),
-        run ("run");
+        run ("run"),
+        sync ("synced");
 
         private String tag;
         private Operation(String tag) {
@@ -53,7 +69,8 @@ public class BatchProcessor {
     public enum OutputFormat {yaml, json, csv};
 
     private ApiClientFactory factory;
-    private ApiClient api;
+    private ThreadLocal<ApiClient> api = new ThreadLocal<>();
+    private ThreadLocal<String> profile = new ThreadLocal<>();
     private String exportPassword;
     private Operation defaultOperation;
     private String template;
@@ -62,6 +79,17 @@ public class BatchProcessor {
     private OutputFormat outputFormat;
     private String outputTemplate;
     private Path logOutput;
+    private int threads;
+    private RequestExecutor executor;
+    private PrintStream statsOutput;
+    private int lookupBatch;
+    private LookupBatcher lookups;
+    private ResourceCache resources;
+    private boolean syncDelete;
+    private SyncSnapshot syncs;
+    private Path journalPath;
+    private boolean resume;
+    private Journal journal;
     private VersaLex versalex;
     private boolean csvInput; // set to true if CSV input is found
 
@@ -119,6 +147,66 @@ public class BatchProcessor {
         return this;
     }
 
+    public BatchProcessor setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public BatchProcessor setStatsOutput(PrintStream statsOutput) {
+        this.statsOutput = statsOutput;
+        return this;
+    }
+
+    /**
+     * Sets the number of user, authenticator or connection names to look
+     * up together with a combined filter (see {@link LookupBatcher}), or
+     * {@code 1} (the default) to look up each name as it is needed.
+     * @param lookupBatch the number of names to look up together
+     * @return this
+     */
+    public BatchProcessor setLookupBatch(int lookupBatch) {
+        this.lookupBatch = lookupBatch;
+        return this;
+    }
+
+    /**
+     * Sets the bounds of the cache of authenticators, connections, actions
+     * and certs shared by all requests (see {@link ResourceCache}).
+     * @param maximumSize the maximum number of resources to keep
+     * @param ttl the number of seconds to keep each resource
+     * @return this
+     */
+    public BatchProcessor setResourceCache(long maximumSize, long ttl) {
+        this.resources = new ResourceCache(maximumSize, ttl);
+        return this;
+    }
+
+    /**
+     * Sets whether {@code sync} requests delete the existing resources, in
+     * the scopes they sync, that no request names (see {@link SyncSnapshot}).
+     * Off by default: {@code sync} then only creates and updates.
+     * @param syncDelete {@code true} to delete unnamed resources
+     * @return this
+     */
+    public BatchProcessor setSyncDelete(boolean syncDelete) {
+        this.syncDelete = syncDelete;
+        return this;
+    }
+
+    /**
+     * Sets the file in which to record the outcome of each request (see
+     * {@link Journal}), and whether to resume the run recorded there,
+     * skipping the requests it completed, or to start the journal over.
+     * @param journalPath the journal file, or {@code null} for none (the default)
+     * @param resume {@code true} to resume the run recorded in the journal
+     * @return this
+     */
+    public BatchProcessor setJournal(Path journalPath, boolean resume) {
+        this.journalPath = journalPath;
+        this.resume = resume;
+        return this;
+    }
+
     private void loadVersaLex() {
         try {
             Class<?> clazz = Class.forName("com.cleo.labs.connector.batchapi.processor.versalex.RealVersaLex");
@@ -135,6 +223,24 @@ public class BatchProcessor {
         if (versalex != null) {
             versalex.disconnect();
         }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ignore) {
+                // already written to disk at the end of each file
+            }
+            journal = null;
+        }
+        synchronized (apiClientCache) {
+            for (ApiClient client : apiClientCache.values()) {
+                try {
+                    client.close();
+                } catch (IOException ignore) {
+                    // nothing left to send
+                }
+            }
+            apiClientCache.clear();
+        }
     }
 
     public enum ResourceClass {
@@ -165,48 +271,40 @@ public class BatchProcessor {
 
     private Map<String,ApiClient> apiClientCache = new HashMap<>();
     private void setApi(String profileName) throws Exception {
-        api = apiClientCache.get(profileName);
-        if (api == null) {
-            api = factory.getApiClient(profileName);
-            apiClientCache.put(profileName, api);
+        ApiClient client;
+        synchronized (apiClientCache) {
+            client = apiClientCache.get(profileName);
+            if (client == null) {
+                client = factory.getApiClient(profileName);
+                apiClientCache.put(profileName, client);
+            }
         }
+        api.set(client);
+        profile.set(profileName);
+    }
+
+    private ApiClient api() {
+        return api.get();
     }
 
 	/*------------------------------------------------------------------------*
 	 * For bulk user endpoints we want to avoid looking up authenticators for *
-	 * the users, so we maintain a cache (by authenticator alias/name and     *
-	 * HATEOAS link) of authenticators to reduce the noise).                  *
+	 * the users (and actions and certs for everything), so we maintain a     *
+	 * cache (by alias/name and HATEOAS link) of these to reduce the noise.   *
 	 *------------------------------------------------------------------------*/
 
-    private Map<String, ObjectNode> authenticatorNameCache = new HashMap<>();
-    private Map<String, ObjectNode> authenticatorLinkCache = new HashMap<>();
-
     private ObjectNode getAuthenticatorByName(String alias) throws Exception {
-        ObjectNode authenticator;
-        if (authenticatorNameCache.containsKey(alias)) {
-            authenticator = authenticatorNameCache.get(alias);
-        } else {
-            authenticator = api.getAuthenticator(alias);
-            if (authenticator != null) {
-                authenticatorNameCache.put(alias, authenticator);
-                authenticatorLinkCache.put(Json.getHref(authenticator), authenticator);
-            }
-        }
-        return authenticator;
+        return resources.get(profile.get(), ResourceCache.Kind.authenticator, alias,
+                () -> api().getAuthenticator(alias));
     }
 
-    private ObjectNode getAuthenticatorByLink(String link) throws Exception {
-        ObjectNode authenticator;
-        if (authenticatorLinkCache.containsKey(link)) {
-            authenticator = authenticatorLinkCache.get(link);
-        } else {
-            authenticator = api.get(link);
-            if (authenticator != null) {
-                authenticatorNameCache.put(Json.getSubElementAsText(authenticator, "alias"), authenticator);
-                authenticatorLinkCache.put(Json.getHref(authenticator), authenticator);
-            }
-        }
-        return authenticator;
+    private ObjectNode getConnectionByName(String alias) throws Exception {
+        return resources.get(profile.get(), ResourceCache.Kind.connection, alias,
+                () -> api().getConnection(alias));
+    }
+
+    private ObjectNode getByLink(String link) throws Exception {
+        return resources.get(profile.get(), link, () -> api().get(link));
     }
 
     /**
@@ -262,15 +360,18 @@ public class BatchProcessor {
                         JsonNode existing = updated.get(actionName);
                         if (existing == null) {
                             if (!operation.equals(Operation.delete)) {
-                                ObjectNode newAction = api.createAction(action);
+                                ObjectNode newAction = api().createAction(action);
+                                resources.put(profile.get(), newAction);
                                 updated.set(actionName, newAction);
                             }
                         } else {
                             if (operation.equals(Operation.delete)) {
-                                api.delete(existing);
+                                api().delete(existing);
+                                resources.invalidate(profile.get(), Json.getHref(existing));
                                 updated.remove(actionName);
                             } else {
-                                ObjectNode newAction = api.put(actions, existing);
+                                ObjectNode newAction = api().put(actions, existing);
+                                resources.put(profile.get(), newAction);
                                 updated.replace(actionName, newAction);
                             }
                         }
@@ -289,9 +390,17 @@ public class BatchProcessor {
     /**
      * Updates an Official form {@code original} (as returned from {@link #processList})
      * with requested updates in Batch form (taken from {@code request.entry}).
+     * <p/>
+     * If the updates would leave the object as it is, nothing is sent, and
+     * {@code null} is returned instead. The API never returns passwords, so
+     * an update with a password (a user's {@code accept.password} or a
+     * connection's {@code connect.password}) is always sent. A user's
+     * {@code pwdhash} is compared with the one stored in VersaLex, if it is
+     * connected, and is left out if it is the same.
      * @param original the Official form object to update
      * @param updates the Batch form updates
-     * @return the updated object in Official form (next step: call {@link #createActions})
+     * @return the updated object in Official form (next step: call {@link #createActions}),
+     *         or {@code null} if it was unchanged
      * @throws Exception
      */
     private ObjectNode updateResource(ObjectNode original, ObjectNode updates) throws Exception {
@@ -306,6 +415,9 @@ public class BatchProcessor {
             pwdhash = Json.getSubElementAsText(updates, "pwdhash");
             // official get/post/put responses never have a pwdhash
             // if updates has a password, we'll save it for later
+            if (pwdhash != null && pwdhash.equals(Json.getSubElementAsText(userOfficial2Batch(original), "pwdhash"))) {
+                pwdhash = null; // already set in VersaLex
+            }
         } else if (type.equals("connection")) {
             officialUpdates = connectionBatch2Official(updates);
             password = Json.getSubElementAsText(officialUpdates, "connect.password");
@@ -319,9 +431,13 @@ public class BatchProcessor {
         } else {
             throw new ProcessingException("can't update "+original.toString());
         }
+        ObjectNode unchanged = updated.deepCopy();
         Json.mergeUpdates(updated, officialUpdates);
         //cleanup(updated);
-        ObjectNode officialResult = api.put(updated, original);
+        if (pwdhash == null && password == null && Json.sameAs(updated, unchanged)) {
+            return null;
+        }
+        ObjectNode officialResult = api().put(updated, original);
         if (type.equals("user")) {
             ObjectNode batchResult = userOfficial2Batch(officialResult);
             if (pwdhash != null) {
@@ -379,7 +495,7 @@ public class BatchProcessor {
         add.actions = (ObjectNode)add.entry.remove("actions");
 
         // now delete the original
-        api.delete(original); // and add the update
+        api().delete(original); // and add the update
         List<ObjectNode> tempResults = new ArrayList<>();
         ArrayNode tempPasswords = Json.mapper.createArrayNode();
         processAddUser(add, tempResults, tempPasswords);
@@ -394,6 +510,9 @@ public class BatchProcessor {
                 alias = Json.getSubElementAsText(object, "connection");
                 if (alias == null) {
                     alias = Json.getSubElementAsText(object, "action");
+                    if (alias == null) {
+                        alias = Json.getSubElementAsText(object, "alias");
+                    }
                 }
             }
         }
@@ -497,7 +616,7 @@ public class BatchProcessor {
         // inject Authenticator
         JsonNode authenticatorlink = official.path("_links").path("authenticator");
         if (!authenticatorlink.isMissingNode()) {
-            ObjectNode authenticator = getAuthenticatorByLink(Json.getSubElementAsText(authenticatorlink, "href"));
+            ObjectNode authenticator = getByLink(Json.getSubElementAsText(authenticatorlink, "href"));
             String alias = Json.getSubElementAsText(authenticator, "alias");
             String pwdhash = versalex.get(alias, username, "Pwdhash");
             if (alias != null) {
@@ -786,21 +905,76 @@ public class BatchProcessor {
      * certificate field is found, the certificate is chased from the API and
      * the certificate contents are formatted as a folded base64 cert with header
      * and trailer (see {@link CertUtils#export(String)}).
+     * <p/>
+     * Certificates are shared by many resources, so each is chased only
+     * once and kept in the {@link ResourceCache} (see {@link #exportCert(String)}),
+     * and the certificates not yet cached are all chased at once.
      * @param batch the Batch form object to search for certificate fields and to update
      * @throws Exception
      */
     private void certsExpandOfficial2Batch(ObjectNode batch) throws Exception {
+        List<ObjectNode> fields = new ArrayList<>();
+        findCertFields(batch, fields);
+        List<CompletableFuture<String>> certs = new ArrayList<>();
+        for (ObjectNode field : fields) {
+            certs.add(exportCert(Json.getSubElementAsText(field, "href")));
+        }
+        for (int i = 0; i < fields.size(); i++) {
+            try {
+                fields.get(i).put("certificate", certs.get(i).get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    private void findCertFields(ObjectNode batch, List<ObjectNode> fields) {
         for (JsonNode field : batch) {
             String href = Json.getSubElementAsText(field, "href");
             if (href != null && href.startsWith("/api/certs/")) {
-                ObjectNode cert = api.get(href);
-                ((ObjectNode)field).put("certificate", CertUtils.export(Json.getSubElementAsText(cert, "certificate")));
+                fields.add((ObjectNode)field);
             } else if (field.isObject()) {
-                certsExpandOfficial2Batch((ObjectNode)field);
+                findCertFields((ObjectNode)field, fields);
             }
         }
     }
 
+    /**
+     * Certificates being chased, by profile and {@code href}, so that a cert
+     * needed by several fields at once is chased only once. Entries are
+     * removed as soon as the chase completes: the certs themselves are kept
+     * in the {@link ResourceCache}.
+     */
+    private Map<String, CompletableFuture<ObjectNode>> pendingCerts = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the certificate at {@code href} formatted for export. The
+     * cert resource is taken from the {@link ResourceCache} if it is there,
+     * or chased (without waiting) and cached when it arrives. A failure is
+     * not remembered, so that the next request needing it tries again.
+     * @param href the certificate {@code href}
+     * @return the formatted certificate, when it is ready
+     */
+    private CompletableFuture<String> exportCert(String href) {
+        String profileName = profile.get();
+        CompletableFuture<ObjectNode> cert;
+        ObjectNode cached = resources.getIfPresent(profileName, href);
+        if (cached != null) {
+            cert = CompletableFuture.completedFuture(cached);
+        } else {
+            String key = Strings.nullToEmpty(profileName)+"|"+href;
+            ApiClient client = api();
+            CompletableFuture<ObjectNode> chase = pendingCerts.computeIfAbsent(key, k -> client.async().get(href));
+            cert = chase.whenComplete((official, e) -> {
+                if (e == null) {
+                    resources.put(profileName, official);
+                }
+                pendingCerts.remove(key, chase);
+            });
+        }
+        return cert.thenApply(official -> CertUtils.export(Json.getSubElementAsText(official, "certificate")));
+    }
+
     /**
      * Looks for Batch form fields that contain (public key) certificate references
      * in an Official form object as it is being prepared and converts those
@@ -822,7 +996,7 @@ public class BatchProcessor {
                 ObjectNode object = (ObjectNode)field;
                 String cert = Json.getSubElementAsText(object, "certificate");
                 if (cert != null) {
-                    ObjectNode imported = api.importOrGetCert(object);
+                    ObjectNode imported = api().importOrGetCert(object);
                     object.put("href", Json.getHref(imported));
                     object.remove("certificate");
                 } else {
@@ -898,11 +1072,19 @@ public class BatchProcessor {
      * @throws Exception
      */
     private ObjectNode injectActions(ObjectNode resource) throws Exception {
+        return injectActions(resource, Collections.emptyMap());
+    }
+
+    private ObjectNode injectActions(ObjectNode resource, Map<String, ObjectNode> prefetched) throws Exception {
         JsonNode actionlinks = resource.path("_links").path("actions");
         if (!actionlinks.isMissingNode()) {
             ObjectNode actions = Json.mapper.createObjectNode();
             for (JsonNode actionlink : actionlinks) {
-                ObjectNode action = api.get(Json.getSubElementAsText(actionlink, "href"));
+                String href = Json.getSubElementAsText(actionlink, "href");
+                ObjectNode action = prefetched.get(href);
+                if (action == null) {
+                    action = getByLink(href);
+                }
                 actions.set(Json.getSubElementAsText(action, "alias"), action);
             }
             if (actions.size() > 0) {
@@ -912,20 +1094,127 @@ public class BatchProcessor {
         return resource;
     }
 
+    /**
+     * Injects actions into each of a list of resources, as
+     * {@link #injectActions(ObjectNode)} does for one, but reading the actions
+     * of many resources together (see {@link #prefetchActions(List)}).
+     * @param list the Official form objects to extend
+     * @throws Exception
+     */
+    private void injectActions(List<ObjectNode> list) throws Exception {
+        Map<String, ObjectNode> prefetched = prefetchActions(list);
+        for (ObjectNode resource : list) {
+            injectActions(resource, prefetched);
+        }
+    }
+
+    /**
+     * Reads the actions of a list of users, authenticators or connections
+     * with as few action listings as possible, filtering on the aliases
+     * (or usernames) of the resources having actions, as many at a time as
+     * fit in a combined {@code or} filter. Actions are indexed by {@code href}
+     * (and also cached). Any action missed is read on its own later.
+     * @param list the Official form objects whose actions to read
+     * @return the actions found, by {@code href}
+     * @throws Exception
+     */
+    private Map<String, ObjectNode> prefetchActions(List<ObjectNode> list) throws Exception {
+        Map<String, ObjectNode> prefetched = new HashMap<>();
+        String type = null;
+        List<String> names = new ArrayList<>();
+        for (ObjectNode resource : list) {
+            if (resource.path("_links").path("actions").size() == 0) {
+                continue;
+            }
+            String resourceType = Json.getSubElementAsText(resource, "meta.resourceType", "");
+            if (type == null) {
+                type = resourceType;
+            }
+            String name = Json.getSubElementAsText(resource, type.equals("user") ? "username" : "alias");
+            if (resourceType.equals(type) && name != null) {
+                names.add(name);
+            }
+        }
+        if (names.size() < 2) {
+            return prefetched; // nothing to gain
+        }
+        String attribute;
+        switch (type) {
+        case "user":
+            attribute = "authenticator.user.username";
+            break;
+        case "authenticator":
+            attribute = "authenticator.alias";
+            break;
+        default:
+            attribute = "connection.alias";
+        }
+        StringBuilder filter = new StringBuilder();
+        for (int i = 0; i <= names.size(); i++) {
+            String term = i < names.size() ? attribute+" eq \""+names.get(i)+"\"" : null;
+            if (filter.length() > 0 && (term == null ||
+                    LookupBatcher.encodedLength(filter+" or "+term) > LOOKUP_FILTER_LENGTH)) {
+                for (ObjectNode action : api().getActions(filter.toString())) {
+                    prefetched.put(Json.getHref(action), action);
+                    resources.put(profile.get(), action);
+                }
+                filter.setLength(0);
+            }
+            if (term != null) {
+                filter.append(filter.length() > 0 ? " or " : "").append(term);
+            }
+        }
+        return prefetched;
+    }
+
+    /**
+     * Returns the API client to use for listing resources for {@code request},
+     * taking into account any {@code pagesize} it requested.
+     * @param request the request
+     * @return the API client
+     */
+    private ApiClient lister(Request request) {
+        return api().withPageSize(request.pageSize);
+    }
+
+    /**
+     * Looks up the single resource named by {@code request}, through the
+     * {@link LookupBatcher} if lookups are batched.
+     * @param request the request
+     * @param authfilter for users, the authenticator filter (or {@code null})
+     * @return the resource, or {@code null} if not found
+     * @throws Exception
+     */
+    private ObjectNode lookup(Request request, String authfilter) throws Exception {
+        if (lookups != null && !(request.resourceClass == ResourceClass.user && authfilter == null &&
+                api().isUserIndexed(request.resource))) {
+            // (an indexed user is a single request anyway)
+            return lookups.lookup(api(), request.profile, request.resourceClass, authfilter, request.resource);
+        }
+        switch (request.resourceClass) {
+        case user:
+            return api().getUser(authfilter, request.resource);
+        case authenticator:
+            return api().getAuthenticator(request.resource);
+        default:
+            return api().getConnection(request.resource);
+        }
+    }
+
     private List<ObjectNode> listUsers(Request request) throws Exception {
         List<ObjectNode> list;
         String authenticator = Json.getSubElementAsText(request.entry, "authenticator");
         if (request.resourceFilter != null) {
             String filter = request.resourceFilter.replace(NAMETOKEN, "username");
             String authfilter = Strings.isNullOrEmpty(authenticator) ? null : "alias eq \""+authenticator+"\"";
-            list = api.getUsers(authfilter, filter);
+            list = lister(request).getUsers(authfilter, filter);
             if (list.isEmpty()) {
                 throw new NotFoundException("filter \""+filter+"\" returned no users"+
                     (Strings.isNullOrEmpty(authenticator) ? "" : " in "+authenticator));
             }
         } else {
             String authfilter = Strings.isNullOrEmpty(authenticator) ? null : "alias eq \""+authenticator+"\"";
-            ObjectNode single = api.getUser(authfilter, request.resource);
+            ObjectNode single = lookup(request, authfilter);
             if (single == null) {
                 throw new NotFoundException("user "+request.resource+" not found"+
                     (Strings.isNullOrEmpty(authenticator) ? "" : " in "+authenticator));
@@ -933,9 +1222,7 @@ public class BatchProcessor {
             list = Arrays.asList(single);
         }
         if (request.operation != Operation.add) {
-            for (ObjectNode user : list) {
-                injectActions(user);
-            }
+            injectActions(list);
         }
         return list;
     }
@@ -946,32 +1233,31 @@ public class BatchProcessor {
         List<ObjectNode> list;
         if (request.resourceFilter != null) {
             String filter = request.resourceFilter.replace(NAMETOKEN, "alias");
-            list = api.getAuthenticators(filter);
+            list = lister(request).getAuthenticators(filter);
             if (list.isEmpty()) {
                 throw new NotFoundException("filter \""+filter+"\" returned no authenticators");
             }
         } else {
-            ObjectNode single = api.getAuthenticator(request.resource);
+            ObjectNode single = lookup(request, null);
             if (single == null) {
                 throw new NotFoundException("authenticator "+request.resource+" not found");
             }
             list = Arrays.asList(single);
         }
+        if (request.operation != Operation.add) {
+            injectActions(list);
+        }
         for (ObjectNode authenticator : list) {
-            if (request.operation != Operation.add) {
-                injectActions(authenticator);
-            }
             // collect users, if requested
             if (includeUsers) {
                 List<ObjectNode> userlist = new ArrayList<>();
                 String userlink = Json.getSubElementAsText(authenticator, "_links.users.href");
-                ApiClient.JsonCollection users = api.new JsonCollection(userlink);
-                while (users.hasNext()) {
-                    ObjectNode user = users.next();
-                    if (request.operation != Operation.add) {
-                        injectActions(user);
-                    }
-                    userlist.add(user);
+                try (ApiClient.JsonCollection users = lister(request).new JsonCollection(userlink)) {
+                    users.forEachRemaining(userlist::add);
+                    users.throwException();
+                }
+                if (request.operation != Operation.add) {
+                    injectActions(userlist);
                 }
                 authenticator.putArray(USERSTOKEN).addAll(userlist);
             }
@@ -983,21 +1269,19 @@ public class BatchProcessor {
         List<ObjectNode> list;
         if (request.resourceFilter != null) {
             String filter = request.resourceFilter.replace(NAMETOKEN, "alias");
-            list = api.getConnections(filter);
+            list = lister(request).getConnections(filter);
             if (list.isEmpty()) {
                 throw new NotFoundException("filter \""+filter+"\" returned no connections");
             }
         } else {
-            ObjectNode single = api.getConnection(request.resource);
+            ObjectNode single = lookup(request, null);
             if (single == null) {
                 throw new NotFoundException("connection "+request.resource+" not found");
             }
             list = Arrays.asList(single);
         }
         if (request.operation != Operation.add) {
-            for (ObjectNode connection : list) {
-                injectActions(connection);
-            }
+            injectActions(list);
         }
         return list;
     }
@@ -1035,7 +1319,7 @@ public class BatchProcessor {
             }
         }
         String filter = clauses.stream().collect(Collectors.joining(" and "));
-        return api.getActions(filter);
+        return lister(request).getActions(filter);
     }
 
 	/*------------------------------------------------------------------------*
@@ -1134,7 +1418,7 @@ public class BatchProcessor {
 
 	/*- add processors -------------------------------------------------------*/
 
-    private void processAddUser(Request request, List<ObjectNode> results, ArrayNode passwords) throws Exception {
+    private ObjectNode processAddUser(Request request, List<ObjectNode> results, ArrayNode passwords) throws Exception {
         // get or create the authenticator identified by "authenticator"
         String alias = Json.getSubElementAsText(request.entry, "authenticator");
         if (alias == null) {
@@ -1161,7 +1445,7 @@ public class BatchProcessor {
         } else {
             password = Json.getSubElementAsText(officialRequest, "accept.password");
         }
-        ObjectNode officialResult = api.createUser(officialRequest, authenticator);
+        ObjectNode officialResult = api().createUser(officialRequest, authenticator);
         if (officialResult == null) {
             throw new ProcessingException("user not created");
         }
@@ -1178,11 +1462,12 @@ public class BatchProcessor {
             createActions(request.actions, officialResult);
         }
         results.add(insertResult(userOfficial2Batch(officialResult), true, "created "+request.resource, request));
+        return officialResult;
     }
 
-    private void processAddAuthenticator(Request request, List<ObjectNode> results) throws Exception {
+    private ObjectNode processAddAuthenticator(Request request, List<ObjectNode> results) throws Exception {
         ObjectNode officialRequest = authenticatorBatch2Official(request.entry);
-        ObjectNode officialResult = api.createAuthenticator(officialRequest);
+        ObjectNode officialResult = api().createAuthenticator(officialRequest);
         if (officialResult == null) {
             throw new ProcessingException("error: authenticator not created");
         }
@@ -1190,9 +1475,10 @@ public class BatchProcessor {
             createActions(request.actions, officialResult);
         }
         results.add(insertResult(authenticatorOfficial2Batch(officialResult), true, "created "+request.resource, request));
+        return officialResult;
     }
 
-    private void processAddConnection(Request request, List<ObjectNode> results) throws Exception {
+    private ObjectNode processAddConnection(Request request, List<ObjectNode> results) throws Exception {
         ObjectNode officialRequest = connectionBatch2Official(request.entry);
         // decrypt the password if it's encrypted
         String password = OpenSSLCrypt.decrypt(exportPassword,
@@ -1200,7 +1486,7 @@ public class BatchProcessor {
         if (password != null) {
             Json.setSubElement(officialRequest, "connect.password", password);
         }
-        ObjectNode officialResult = api.createConnection(officialRequest);
+        ObjectNode officialResult = api().createConnection(officialRequest);
         if (officialResult == null) {
             throw new ProcessingException("error: connection not created");
         }
@@ -1209,11 +1495,12 @@ public class BatchProcessor {
             // protect the password in the result output, even if it was clearText in the request
             Json.setSubElement(batchResult, "connect.password", OpenSSLCrypt.encrypt(exportPassword, password));
         }
-        api.deleteActions(officialResult);
+        api().deleteActions(officialResult);
         if (request.actions != null) {
             createActions(request.actions, officialResult);
         }
         results.add(insertResult(batchResult, true, "created "+request.resource, request));
+        return officialResult;
     }
 
     private void processAddAction(Request request, List<ObjectNode> results) throws Exception {
@@ -1236,16 +1523,25 @@ public class BatchProcessor {
         results.add(insertResult(actionOfficial2Batch((ObjectNode)actions.get(alias)), true, "created "+alias, request));
     }
 
-    private void processAdd(Request request, List<ObjectNode> results, ArrayNode passwords) throws Exception {
+    /**
+     * Process an add request, appending to {@code results}.
+     * @param request the request
+     * @param results where results are appended
+     * @param passwords where generated passwords are appended
+     * @return the created user, authenticator or connection in Official form,
+     *         or {@code null} for an action
+     * @throws Exception
+     */
+    private ObjectNode processAdd(Request request, List<ObjectNode> results, ArrayNode passwords) throws Exception {
         if (request.action != null || request.actionFilter != null) {
             processAddAction(request, results);
-            return;
+            return null;
         } else if (request.resourceClass == ResourceClass.user) {
-            processAddUser(request, results, passwords);
+            return processAddUser(request, results, passwords);
         } else if (request.resourceClass == ResourceClass.authenticator) {
-            processAddAuthenticator(request, results);
+            return processAddAuthenticator(request, results);
         } else if (request.resourceClass == ResourceClass.connection) {
-            processAddConnection(request, results);
+            return processAddConnection(request, results);
         } else {
             throw new ProcessingException("unrecognized request");
         }
@@ -1291,15 +1587,22 @@ public class BatchProcessor {
         for (int i=0; i<toUpdate.size(); i++) {
             try {
                 ObjectNode updated;
+                boolean changed = true;
                 if (movingUsers) {
                     updated = moveUser(toUpdate.get(i), update);
                 } else {
                     updated = updateResource(toUpdate.get(i), update);
-                    createActions(request.actions, updated);
+                    changed = updated != null;
+                    if (updated == null) {
+                        updated = toUpdate.get(i);
+                    }
+                    if (request.actions != null && request.actions.size() > 0) {
+                        changed |= syncActions(request.actions, toUpdate.get(i), updated, false);
+                    }
                 }
                 results.add(tempResults.get(i));
-                String message = String.format("%s %s updated",
-                    request.resourceClass.name(), getObjectName(updated));
+                String message = String.format("%s %s %s",
+                    request.resourceClass.name(), getObjectName(updated), changed ? "updated" : "unchanged");
                 if (toUpdate.size() > 1) {
                     message += String.format(" (%d of %d)", i+1, toUpdate.size());
                 }
@@ -1310,6 +1613,259 @@ public class BatchProcessor {
         }
     }
 
+	/*- sync processors ------------------------------------------------------*/
+
+    /**
+     * Returns the {@link SyncSnapshot} scope of a sync request: for users the
+     * authenticator, and for authenticators and connections the type.
+     * @param resourceClass the class: user, authenticator or connection
+     * @param type the specific type (ignored for users)
+     * @param authenticator the authenticator (for users)
+     * @return the scope, or {@code null} if there is none
+     */
+    private static String syncScope(ResourceClass resourceClass, String type, String authenticator) {
+        return resourceClass == ResourceClass.user ? authenticator : type;
+    }
+
+    /**
+     * Lists the existing resources in a sync scope, in Official form.
+     * @param resourceClass the class: user, authenticator or connection
+     * @param scope for users the authenticator, else the type
+     * @return the resources
+     * @throws Exception
+     */
+    private List<ObjectNode> listSyncScope(ResourceClass resourceClass, String scope) throws Exception {
+        switch (resourceClass) {
+        case user:
+            return api().getUsers("alias eq \""+scope+"\"", null);
+        case authenticator:
+            return api().getAuthenticators("type eq \""+scope+"\"");
+        default:
+            return api().getConnections("type eq \""+scope+"\"");
+        }
+    }
+
+    /**
+     * Process a sync request, appending to {@code results}.
+     * <p/>
+     * The request describes the desired state of a user, authenticator or
+     * connection, and its actions. The resource is found among the existing
+     * resources of its scope, listed once for all the sync requests (see
+     * {@link SyncSnapshot}), and then:
+     * <ul><li>if it does not exist, it is added, as for {@code add}</li>
+     *     <li>if it exists but differs, it is updated, as for {@code update}</li>
+     *     <li>otherwise it is left alone and reported as "unchanged"</li></ul>
+     * Requested actions are reconciled with the existing ones in the same
+     * way (see {@link #syncActions}).
+     * @param request the request
+     * @param results where results are appended
+     * @param passwords where generated passwords are appended
+     * @throws Exception
+     */
+    private void processSync(Request request, List<ObjectNode> results, ArrayNode passwords) throws Exception {
+        if (request.action != null || request.actionFilter != null) {
+            throw new ProcessingException("sync applies to users, authenticators and connections: sync actions through \"actions\"");
+        }
+        String scope = syncScope(request.resourceClass, request.resourceType,
+                Json.getSubElementAsText(request.entry, "authenticator"));
+        if (scope == null) {
+            throw new ProcessingException("\"authenticator\" required when syncing a user");
+        }
+        SyncSnapshot.Lister lister = () -> listSyncScope(request.resourceClass, scope);
+        ObjectNode existing = syncs.find(request.profile, request.resourceClass, scope, request.resource, lister);
+        ObjectNode synced;
+        if (existing == null) {
+            synced = processAdd(request, results, passwords);
+        } else {
+            synced = updateResource(existing, request.entry.deepCopy());
+            boolean changed = synced != null;
+            if (synced == null) {
+                synced = existing;
+            }
+            if (request.actions != null && request.actions.size() > 0) {
+                changed |= syncActions(request.actions, existing, synced, syncDelete);
+            }
+            String message = String.format("%s %s %s",
+                    request.resourceClass.name(), request.resource, changed ? "updated" : "unchanged");
+            results.add(insertResult(official2Batch(synced), true, message, request));
+        }
+        syncs.put(request.profile, request.resourceClass, scope, request.resource, synced);
+    }
+
+    /**
+     * Reconciles the actions of a synced resource with the requested
+     * {@code actions}, in Batch form: new actions are added, differing
+     * actions are updated, actions with {@code operation: delete} are
+     * deleted, and the rest are left alone. With {@code deleteUnrequested}
+     * (a sync with {@link #setSyncDelete}), existing actions not requested
+     * are deleted as well.
+     * @param actions the requested actions, normalized
+     * @param existing the resource as it was, in Official form
+     * @param resource the resource as synced or updated, in Official form:
+     *        its actions are injected under ACTIONSTOKEN
+     * @param deleteUnrequested {@code true} to delete actions not requested
+     * @return {@code true} if any action was added, updated or deleted
+     * @throws Exception
+     */
+    private boolean syncActions(ObjectNode actions, ObjectNode existing, ObjectNode resource, boolean deleteUnrequested) throws Exception {
+        ObjectNode current = (ObjectNode)(existing.has(ACTIONSTOKEN) ? existing : injectActions(existing)).get(ACTIONSTOKEN);
+        if (current == null) {
+            current = Json.mapper.createObjectNode();
+        }
+        ObjectNode toCreate = Json.mapper.createObjectNode(); // new and deleted actions
+        ObjectNode synced = current.deepCopy();
+        Set<String> requested = new HashSet<>();
+        boolean changed = false;
+        for (JsonNode element : actions) {
+            String name = Json.getSubElementAsText(element, "action", "");
+            if (!element.isObject() || name.isEmpty() || name.equals("NA")) {
+                continue;
+            }
+            requested.add(name);
+            ObjectNode action = ((ObjectNode)element).deepCopy();
+            boolean delete = Json.asText(action.remove("operation"), "add").equals(Operation.delete.name());
+            String schedule = Json.getSubElementAsText(action, "schedule", "");
+            if (schedule.isEmpty() || schedule.equals("none") || schedule.equals("no")) {
+                action.remove("schedule");
+            }
+            ObjectNode have = (ObjectNode)synced.get(name);
+            if (have == null ? !delete : delete) {
+                toCreate.set(name, element);
+            } else if (have != null) {
+                ObjectNode updated = updateResource(have, action);
+                if (updated != null) {
+                    resources.put(profile.get(), updated);
+                    synced.replace(name, updated);
+                    changed = true;
+                }
+            }
+        }
+        if (deleteUnrequested) {
+            Iterator<String> names = current.fieldNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (!requested.contains(name)) {
+                    toCreate.putObject(name).put("action", name).put("operation", Operation.delete.name());
+                }
+            }
+        }
+        if (synced.size() > 0) {
+            resource.set(ACTIONSTOKEN, synced);
+        }
+        if (toCreate.size() > 0) {
+            createActions(toCreate, resource);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Tells the {@link SyncSnapshot} which resource a raw sync request
+     * will sync, so that it is not deleted with {@link #setSyncDelete}. A
+     * user sync request also keeps its authenticator.
+     * @param node the request (before {@link #analyzeRequest})
+     */
+    private void expectSync(JsonNode node) {
+        if (!node.isObject() || operation(node) != Operation.sync || node.has("action")) {
+            return;
+        }
+        String profile = Json.asText(node.get("profile"));
+        String username = Json.getSubElementAsText(node, ResourceClass.user.tag());
+        String authenticator = Json.getSubElementAsText(node, ResourceClass.authenticator.tag());
+        String connection = Json.getSubElementAsText(node, ResourceClass.connection.tag());
+        String type = Json.getSubElementAsText(node, "type");
+        ResourceClass resourceClass;
+        String name;
+        if (username != null) {
+            resourceClass = ResourceClass.user;
+            name = username;
+            if (authenticator != null) {
+                syncs.claim(profile, ResourceClass.authenticator, authenticator);
+            }
+        } else if (connection != null) {
+            resourceClass = ResourceClass.connection;
+            name = connection;
+        } else if (authenticator != null) {
+            resourceClass = ResourceClass.authenticator;
+            name = authenticator;
+        } else {
+            return;
+        }
+        String scope = syncScope(resourceClass, type, authenticator);
+        if (scope == null || scope.equals(resourceClass.name())) {
+            // no specific scope: the request will fail, but keep the name anyway
+            syncs.claim(profile, resourceClass, name);
+        } else {
+            syncs.claim(profile, resourceClass, scope, name);
+        }
+    }
+
+    /**
+     * With {@link #setSyncDelete}, submits the deletion of the existing
+     * resources in each scope synced that no sync request named, after all
+     * the sync requests.
+     * @param results where to put the processed deletions
+     * @param stats where to record execution statistics
+     * @throws InterruptedException
+     */
+    private void submitSyncDeletes(ResultStage results, PipelineStats.Stage stats) throws InterruptedException {
+        for (SyncSnapshot.Scope scope : syncs.scopes()) {
+            List<ObjectNode> unclaimed;
+            try {
+                setApi(scope.profile());
+                unclaimed = syncs.unclaimed(scope, () -> listSyncScope(scope.resourceClass(), scope.scope()));
+            } catch (Exception e) {
+                ObjectNode error = Json.setSubElement(null, "result.sync", scope.resourceClass().name()+" "+scope.scope());
+                results.put(new Processed(insertResult(error, false, e)));
+                continue;
+            }
+            for (ObjectNode resource : unclaimed) {
+                ObjectNode node = Json.mapper.createObjectNode().put("operation", Operation.delete.name());
+                if (scope.profile() != null) {
+                    node.put("profile", scope.profile());
+                }
+                node.put(scope.resourceClass().tag(), Json.getSubElementAsText(resource,
+                        scope.resourceClass() == ResourceClass.user ? "username" : "alias"));
+                if (scope.resourceClass() == ResourceClass.user) {
+                    node.put(ResourceClass.authenticator.tag(), scope.scope());
+                }
+                results.put(submit(resourceKeys(node), (passwords, out) -> syncDelete(node, resource, out), stats));
+            }
+        }
+    }
+
+    /**
+     * Deletes a resource left unclaimed by a sync.
+     * @param node the equivalent delete request
+     * @param resource the resource to delete, in Official form
+     * @param out where to put the result
+     * @throws InterruptedException
+     */
+    private void syncDelete(ObjectNode node, ObjectNode resource, Processed out) throws InterruptedException {
+        ObjectNode result;
+        try {
+            setApi(Json.asText(node.get("profile")));
+            Request request = new Request();
+            request.operation = Operation.delete;
+            api().delete(resource);
+            switch (Json.getSubElementAsText(resource, "meta.resourceType", "")) {
+            case "user":
+                result = userResult(request, resource, 1, 1);
+                break;
+            case "authenticator":
+                result = authenticatorResult(request, resource, authenticatorMessage(request, resource, 1, 1), -1);
+                break;
+            default:
+                result = connectionResult(request, resource, 1, 1);
+            }
+        } catch (Exception e) {
+            result = insertResult(node, false, e);
+        } finally {
+            invalidateLookups(node);
+        }
+        out.add(result);
+    }
+
 	/*- list processors ------------------------------------------------------*/
 
     private List<ObjectNode> processListUser(Request request, List<ObjectNode> results) throws Exception {
@@ -1317,17 +1873,21 @@ public class BatchProcessor {
         list = listUsers(request);
         int i = 1;
         for (ObjectNode user : list) {
-            String message = String.format("%s user %s",
-                    request.operation.tag(),
-                    Json.getSubElementAsText(user, "username"));
-            if (list.size() > 1) {
-                message = String.format("%s (%d of %d)", message, i++, list.size());
-            }
-            results.add(insertResult(userOfficial2Batch(user), true, message, request));
+            results.add(userResult(request, user, i++, list.size()));
         }
         return list;
     }
 
+    private ObjectNode userResult(Request request, ObjectNode user, int i, int total) throws Exception {
+        String message = String.format("%s user %s",
+                request.operation.tag(),
+                Json.getSubElementAsText(user, "username"));
+        if (total > 1) {
+            message = String.format("%s (%d of %d)", message, i, total);
+        }
+        return insertResult(userOfficial2Batch(user), true, message, request);
+    }
+
     private List<ObjectNode> processListAuthenticator(Request request, List<ObjectNode> results, boolean includeUsers) throws Exception {
         List<ObjectNode> list = listAuthenticators(request, includeUsers);
         int i = 1;
@@ -1336,43 +1896,60 @@ public class BatchProcessor {
             if (users == null) {
                 users = Json.mapper.createArrayNode();
             }
-            String message = String.format("%s authenticator %s",
-                        request.operation.tag(),
-                        Json.getSubElementAsText(authenticator, "alias"));
-            if (list.size() > 1) {
-                message = String.format("%s (%d of %d)", message, i++, list.size());
-            }
-            String messageHeader = message; // save for user messages
-            if (includeUsers) {
-                message = String.format("%s with %d users", message, users.size());
-            }
-            ObjectNode authenticatorResult = insertResult(authenticator, true, message, request);
+            String messageHeader = authenticatorMessage(request, authenticator, i++, list.size());
+            ObjectNode authenticatorResult = authenticatorResult(request, authenticator, messageHeader,
+                    includeUsers ? users.size() : -1);
             ArrayNode userResults = authenticatorResult.putArray(USERSTOKEN);
             for (int j=0; j<users.size(); j++) {
-                message = String.format("%s: user %d of %d",
-                        messageHeader, j+1, users.size());
-                userResults.add(insertResult(userOfficial2Batch((ObjectNode)users.get(j)), true, message, request));
+                userResults.add(authenticatorUserResult(request, (ObjectNode)users.get(j), messageHeader, j+1, users.size()));
             }
-            results.add(authenticatorOfficial2Batch(authenticatorResult));
+            results.add(authenticatorResult);
         }
         return list;
     }
 
+    private String authenticatorMessage(Request request, ObjectNode authenticator, int i, int total) {
+        String message = String.format("%s authenticator %s",
+                    request.operation.tag(),
+                    Json.getSubElementAsText(authenticator, "alias"));
+        if (total > 1) {
+            message = String.format("%s (%d of %d)", message, i, total);
+        }
+        return message;
+    }
+
+    private ObjectNode authenticatorResult(Request request, ObjectNode authenticator, String messageHeader, int users) throws Exception {
+        String message = messageHeader;
+        if (users >= 0) {
+            message = String.format("%s with %d users", message, users);
+        }
+        return authenticatorOfficial2Batch(insertResult(authenticator, true, message, request));
+    }
+
+    private ObjectNode authenticatorUserResult(Request request, ObjectNode user, String messageHeader, int j, int total) throws Exception {
+        String message = String.format("%s: user %d of %d", messageHeader, j, total);
+        return insertResult(userOfficial2Batch(user), true, message, request);
+    }
+
     private List<ObjectNode> processListConnection(Request request, List<ObjectNode> results) throws Exception {
         List<ObjectNode> list = listConnections(request);
         int i = 1;
         for (ObjectNode connection : list) {
-            String message = String.format("%s connection %s",
-                    request.operation.tag(),
-                    Json.getSubElementAsText(connection, "alias"));
-            if (list.size() > 1) {
-                message = String.format("%s (%d of %d)", message, i++, list.size());
-            }
-            results.add(insertResult(connectionOfficial2Batch(connection), true, message, request));
+            results.add(connectionResult(request, connection, i++, list.size()));
         }
         return list;
     }
 
+    private ObjectNode connectionResult(Request request, ObjectNode connection, int i, int total) throws Exception {
+        String message = String.format("%s connection %s",
+                request.operation.tag(),
+                Json.getSubElementAsText(connection, "alias"));
+        if (total > 1) {
+            message = String.format("%s (%d of %d)", message, i, total);
+        }
+        return insertResult(connectionOfficial2Batch(connection), true, message, request);
+    }
+
     /**
      * Process a request to list actions, returning the actions found in Official form
      * and adding actions in Batch form with an inserted result into {@code results}.
@@ -1441,6 +2018,186 @@ public class BatchProcessor {
         }
     }
 
+	/*- streaming list processors --------------------------------------------*/
+
+    /**
+     * Maximum number of listed resources converted at a time (and so with
+     * their actions read together, see {@link #injectActions(List)}).
+     */
+    private static final int LIST_CHUNK = 100;
+
+    /**
+     * Converts one listed resource (in Official form, with actions) to
+     * its Batch form result.
+     */
+    @FunctionalInterface
+    private interface Lister {
+        public ObjectNode result(ObjectNode official, int i, int total) throws Exception;
+    }
+
+    /**
+     * Converts listed resources chunk by chunk as they are read, passing
+     * each result to {@code out} right away.
+     * @param resources the resources in Official form, as read
+     * @param total the number of resources
+     * @param lister converts each resource
+     * @param out where to put the results
+     * @throws Exception
+     */
+    private void streamChunks(Iterator<ObjectNode> resources, int total, Lister lister, Processed out) throws Exception {
+        int i = 1;
+        List<ObjectNode> chunk = new ArrayList<>(LIST_CHUNK);
+        while (resources.hasNext()) {
+            chunk.clear();
+            while (chunk.size() < LIST_CHUNK && resources.hasNext()) {
+                chunk.add(resources.next());
+            }
+            injectActions(chunk);
+            for (ObjectNode official : chunk) {
+                out.add(lister.result(official, i++, total));
+            }
+        }
+    }
+
+    /**
+     * Processes a {@code list} request as {@link #processList} does, but
+     * passing the results to {@code out} as the resources are read, instead
+     * of collecting them, so that listing (say) an authenticator with many
+     * users holds only a page or so of them at a time.
+     * @param request the request to process
+     * @param out where to put the results
+     * @throws Exception
+     */
+    private void streamList(Request request, Processed out) throws Exception {
+        if (request.action != null || request.actionFilter != null) {
+            List<ObjectNode> results = new ArrayList<>();
+            processListActions(request, results);
+            for (ObjectNode result : results) {
+                out.add(result);
+            }
+            return;
+        }
+        switch (request.resourceClass) {
+        case user:
+            streamListUser(request, out);
+            break;
+        case authenticator:
+            streamListAuthenticator(request, out);
+            break;
+        case connection:
+            streamListConnection(request, out);
+            break;
+        case any:
+        {
+            int found = 0;
+            try {
+                found += streamListUser(request, out);
+            } catch (NotFoundException ignore) {}
+            try {
+                found += streamListAuthenticator(request, out);
+            } catch (NotFoundException ignore) {}
+            try {
+                found += streamListConnection(request, out);
+            } catch (NotFoundException ignore) {}
+            if (found == 0) {
+                throw new NotFoundException("filter \""+request.resourceFilter.replace(NAMETOKEN, "name")+"\" returned no users");
+            }
+            break;
+        }
+        default:
+            throw new ProcessingException("unrecognized request");
+        }
+    }
+
+    private int streamListUser(Request request, Processed out) throws Exception {
+        if (request.resourceFilter == null) {
+            List<ObjectNode> list = listUsers(request);
+            out.add(userResult(request, list.get(0), 1, 1));
+            return 1;
+        }
+        String filter = request.resourceFilter.replace(NAMETOKEN, "username");
+        String authenticator = Json.getSubElementAsText(request.entry, "authenticator");
+        String authfilter = Strings.isNullOrEmpty(authenticator) ? null : "alias eq \""+authenticator+"\"";
+        // count the users of each authenticator first (all at once), to number
+        // the results, and then read each authenticator's users only when its
+        // turn comes
+        List<String> userlinks = new ArrayList<>();
+        List<CompletableFuture<Integer>> pendingCounts = new ArrayList<>();
+        ApiClient.Async async = api().async();
+        for (ObjectNode auth : api().getAuthenticators(authfilter)) {
+            String userlink = Json.getSubElementAsText(auth, "_links.users.href");
+            userlinks.add(userlink);
+            pendingCounts.add(async.count(userlink, filter));
+        }
+        List<Integer> counts = new ArrayList<>();
+        int total = 0;
+        for (CompletableFuture<Integer> count : pendingCounts) {
+            try {
+                counts.add(count.get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            total += counts.get(counts.size()-1);
+        }
+        if (total == 0) {
+            throw new NotFoundException("filter \""+filter+"\" returned no users"+
+                (Strings.isNullOrEmpty(authenticator) ? "" : " in "+authenticator));
+        }
+        // the counts may be stale by the time the users are read, so number
+        // the users as they are actually read, never past the total
+        int[] listed = {0};
+        for (int a = 0; a < userlinks.size(); a++) {
+            if (counts.get(a) == 0) {
+                continue;
+            }
+            final int estimate = total;
+            try (ApiClient.JsonCollection users = lister(request).new JsonCollection(userlinks.get(a), filter)) {
+                streamChunks(users, total, (user, i, n) -> {
+                    listed[0]++;
+                    return userResult(request, user, listed[0], Math.max(estimate, listed[0]));
+                }, out);
+                users.throwException();
+            }
+        }
+        return listed[0];
+    }
+
+    private int streamListAuthenticator(Request request, Processed out) throws Exception {
+        List<ObjectNode> list = listAuthenticators(request, false);
+        int i = 1;
+        for (ObjectNode authenticator : list) {
+            String messageHeader = authenticatorMessage(request, authenticator, i++, list.size());
+            try (ApiClient.JsonCollection users = lister(request).new JsonCollection(
+                    Json.getSubElementAsText(authenticator, "_links.users.href"))) {
+                users.throwException();
+                int total = Math.max(users.totalResults(), 0);
+                out.add(authenticatorResult(request, authenticator, messageHeader, total));
+                streamChunks(users, total, (user, j, n) -> authenticatorUserResult(request, user, messageHeader, j, n), out);
+                users.throwException();
+            }
+        }
+        return list.size();
+    }
+
+    private int streamListConnection(Request request, Processed out) throws Exception {
+        if (request.resourceFilter == null) {
+            List<ObjectNode> list = listConnections(request);
+            out.add(connectionResult(request, list.get(0), 1, 1));
+            return 1;
+        }
+        String filter = request.resourceFilter.replace(NAMETOKEN, "alias");
+        try (ApiClient.JsonCollection connections = lister(request).streamConnections(filter)) {
+            connections.throwException();
+            int total = Math.max(connections.totalResults(), 0);
+            if (total == 0) {
+                throw new NotFoundException("filter \""+filter+"\" returned no connections");
+            }
+            streamChunks(connections, total, (connection, i, n) -> connectionResult(request, connection, i, n), out);
+            connections.throwException();
+            return total;
+        }
+    }
+
     private void appendAndFlattenUsers(JsonNode tempResult, List<ObjectNode> results) {
         results.add((ObjectNode)tempResult);
         ArrayNode users = (ArrayNode)((ObjectNode)tempResult).remove(USERSTOKEN);
@@ -1468,6 +2225,8 @@ public class BatchProcessor {
         public ObjectNode actions = null;           // actions separated out from entry and cleaned up
         public ObjectNode csvdata = null;           // original CSV data if the request was templated from CSV
         public Operation operation = null;          // the operation
+        public int pageSize = 0;                    // page size for listing, if not the default
+        public String profile = null;               // the profile to use, if not the default
     }
 
     private static final String NAMETOKEN = "$$name$$";
@@ -1484,11 +2243,12 @@ public class BatchProcessor {
                 : request.entry.has("operation")
                     ? Operation.valueOf(Json.asText(request.entry.remove("operation")))
                     : defaultOperation;
-        boolean existing = request.operation != Operation.add;
+        boolean existing = request.operation != Operation.add && request.operation != Operation.sync;
 
         // set up the api client to use for this request (unless preview)
+        request.profile = Json.asText(request.entry.remove("profile"));
         if (request.operation != Operation.preview) {
-            setApi(Json.asText(request.entry.remove("profile")));
+            setApi(request.profile);
         }
         
         // collect actions into an ObjectNode
@@ -1506,6 +2266,18 @@ public class BatchProcessor {
             throw new ProcessingException("\"filter\" valid only for list, update and delete");
         }
 
+        // see if there is a page size (and remove it from the entry)
+        JsonNode pageSize = request.entry.remove("pagesize");
+        if (pageSize != null) {
+            if (!existing) {
+                throw new ProcessingException("\"pagesize\" valid only for list, update and delete");
+            }
+            request.pageSize = pageSize.asInt();
+            if (request.pageSize <= 0) {
+                throw new ProcessingException("\"pagesize\" must be a positive number");
+            }
+        }
+
         // look for the resource name under username/authenticator/connection
         // if found we will know resourceClass and resource (name)
         for (ResourceClass r : EnumSet.allOf(ResourceClass.class)) {
@@ -1619,30 +2391,30 @@ public class BatchProcessor {
         }
 
         // check for empty file
-        List<Map<String,String>> lines = expander.data();
-        if (lines.size() == 0) {
+        Map<String,String> first = expander.first();
+        if (first == null) {
             throw new ProcessingException("could not parse data from file");
         }
 
         // authenticator files have a "UserAlias" header
-        if (lines.get(0).containsKey("UserAlias")) {
+        if (first.containsKey("UserAlias")) {
             expander.template(TemplateExpander.class.getResource("default/authenticator.yaml"));
             return;
         }
 
         // now check for "type": no "type" means a user file
-        String type = lines.get(0).get("type");
+        String type = first.get("type");
         if (type == null) {
             expander.template(TemplateExpander.class.getResource("default/user.yaml"));
             return;
         }
 
-        // toss out files that don't have consistent "type"
-        for (Map<String,String> line : lines) {
+        // rows are streamed, so rows that don't match the "type" are rejected one by one
+        expander.validator(line -> {
             if (!type.equals(line.get("type"))) {
                 throw new ProcessingException("file rows must be of the same type ("+type+")");
             }
-        }
+        });
 
         // load the template resource
         switch (type) {
@@ -1661,21 +2433,26 @@ public class BatchProcessor {
         try {
             if (!Strings.isNullOrEmpty(type) && !Strings.isNullOrEmpty(name)) {
                 setApi(profile);
+                if (executor != null) {
+                    // wait for any pending request that might create (or delete) the resource
+                    String key = type.equals("user") ? name.replaceFirst("^[^\\\\]*\\\\", "") : name;
+                    executor.awaitWrites(resourceKey(profile, type, key));
+                }
                 switch (type) {
                 case "user":
                     String[] path = name.split("\\\\", 2);
                     if (path.length == 1) {
-                        found = api.getUser(name) != null;
+                        found = api().getUser(name) != null;
                     } else {
                         String authfilter = "alias eq \""+path[0]+"\"";
-                        found = api.getUser(authfilter, path[1]) != null;
+                        found = api().getUser(authfilter, path[1]) != null;
                     }
                     break;
                 case "authenticator":
                     found = getAuthenticatorByName(name) != null;
                     break;
                 case "connection":
-                    found = api.getConnection(name) != null;
+                    found = getConnectionByName(name) != null;
                     break;
                 default:
                 }
@@ -1694,32 +2471,71 @@ public class BatchProcessor {
         return expander;
     }
 
-    private Expander prepareContent(String content) throws Exception {
-        // load file content into a string
+    /**
+     * Number of characters examined to decide if the input is JSON/YAML or CSV.
+     */
+    private static final int SNIFF_LENGTH = 64 * 1024;
+
+    /**
+     * Attempts to parse {@code content} as a JSON or YAML container. Only the first
+     * {@link #SNIFF_LENGTH} characters are examined to decide: if they don't start
+     * a container (an object or array), the content is not parsed at all, so large
+     * CSV files are not read twice.
+     * @param content the input source
+     * @return the parsed container node, or {@code null}
+     */
+    private JsonNode readStructured(CharSource content) {
+        try {
+            String prefix;
+            try (Reader reader = content.openStream()) {
+                char[] buffer = new char[SNIFF_LENGTH];
+                int length = 0;
+                int n;
+                while (length < SNIFF_LENGTH && (n = reader.read(buffer, length, SNIFF_LENGTH-length)) >= 0) {
+                    length += n;
+                }
+                prefix = new String(buffer, 0, length);
+            }
+            if (prefix.length() < SNIFF_LENGTH) {
+                return Json.mapper.readTree(prefix); // all of it
+            }
+            JsonToken token;
+            try (JsonParser parser = Json.mapper.getFactory().createParser(prefix)) {
+                token = parser.nextToken();
+            }
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                try (Reader reader = content.openBufferedStream()) {
+                    return Json.mapper.readTree(reader);
+                }
+            }
+        } catch (Exception notjson) {
+            // try something else
+        }
+        return null;
+    }
+
+    private Expander prepareContent(CharSource content) throws Exception {
         TemplateExpander expander = setupTemplateExpander();
 
         // Option 1: try to load it as a JSON or YAML file (unless --template)
         if (Strings.isNullOrEmpty(template)) {
-            try {
-                JsonNode json = Json.mapper.readTree(content);
-                if (json.isContainerNode()) {
-                    // treat a Json input as "template" processing one empty line of input
-                    expander.template(json);
-                    expander.line(Collections.emptyMap());
-                }
-            } catch (Exception notjson) {
-                // try something else
+            JsonNode json = readStructured(content);
+            if (json != null && json.isContainerNode()) {
+                // treat a Json input as "template" processing one empty line of input
+                expander.template(json);
+                expander.line(Collections.emptyMap());
             }
         }
 
-        // Option 2: see if it can be loaded as CSV
-        if (expander.data()==null) {
+        // Option 2: see if it can be streamed as CSV
+        if (!expander.hasData()) {
             // Json didn't load (or not attempted due to --template)
             try {
-                expander.loadCsv(content);
+                expander.loadCsv(content.openBufferedStream());
                 loadTemplate(expander);
                 csvInput = true;
             } catch (Exception e) {
+                expander.clear();
                 throw new ProcessingException(e.getMessage());
             }
         }
@@ -1729,13 +2545,36 @@ public class BatchProcessor {
     }
 
     /**
-     * The main file processor. Load the file into {@code content} before calling.
+     * The main file processor for content already loaded into a String.
      * The {@code fn} is included only for error reporting.
      * @param fn the name of the file to use for error reporting
      * @param content the content of the file loaded into a String
      * @param out where to write the output
+     * @see #processFile(String, CharSource, PrintStream)
      */
     public void processFile(String fn, String content, PrintStream out) throws IOException {
+        processFile(fn, CharSource.wrap(content), out);
+    }
+
+    /**
+     * The main file processor. The {@code fn} is included only for error reporting.
+     * <p/>
+     * CSV content is streamed from {@code content} a row at a time as requests are
+     * processed, so the size of the file does not affect memory use. The source
+     * may be opened more than once (to check for JSON or YAML content first).
+     * <p/>
+     * Processing is pipelined: this thread expands the template for each row, the
+     * expanded requests are executed by the worker threads of a {@link RequestExecutor}
+     * (see {@link #setThreads(int)}), and a writer thread writes the results (and
+     * finally the password report) in input order. The stages are connected by a
+     * bounded queue, so expansion waits when execution or writing fall behind.
+     * Statistics for each stage are printed at the end if requested with
+     * {@link #setStatsOutput(PrintStream)}.
+     * @param fn the name of the file to use for error reporting
+     * @param content the source of the file content
+     * @param out where to write the output
+     */
+    public void processFile(String fn, CharSource content, PrintStream out) throws IOException {
         ResultWriter writer = getWriter(out);
         Expander file = TemplateExpander.emptyExpander();
         ArrayNode passwords = Json.mapper.createArrayNode();
@@ -1748,43 +2587,569 @@ public class BatchProcessor {
             writer.write(insertResult(Json.setSubElement(null, "result.file", fn), false, e));
         }
 
-        for (TemplateExpander.ExpanderResult expanded : file) {
-            if (!expanded.success()) {
-                ObjectNode errorNode = Json.mapper.createObjectNode();
-                ObjectNode resultNode = errorNode.putObject("result");
-                if (csvInput) {
-                    ObjectNode csvNode = resultNode.putObject("csv");
-                    csvNode.put("error", expanded.exception().getMessage());
-                    csvNode.put("line", expanded.lineNumber());
-                    csvNode.set("data", Json.mapper.valueToTree(expanded.line()));
+        if (journal == null && journalPath != null) {
+            journal = new Journal(journalPath, resume);
+        }
+
+        PipelineStats stats = new PipelineStats();
+        // with batched lookups, read far enough ahead to fill a batch
+        BlockingQueue<Processed> pending =
+                new ArrayBlockingQueue<>(Math.max(Math.max(threads, 1)*BACKLOG_PER_THREAD, lookupBatch));
+        lookups = lookupBatch > 1 ? new LookupBatcher(lookupBatch, LOOKUP_FILTER_LENGTH) : null;
+        syncs = new SyncSnapshot();
+        ResultStage results = new ResultStage(pending, writer, passwords, stats.write(), journal, fn);
+        Thread writerThread = new Thread(results, "batchapi-writer");
+        writerThread.setDaemon(true);
+        executor = new RequestExecutor(threads);
+        boolean ended = false;
+        try {
+            writerThread.start();
+            while (true) {
+                long start = System.nanoTime();
+                if (!file.hasNext()) {
+                    break;
                 }
-                writer.write(errorNode);
-            } else {
-                List<JsonNode> requests = new ArrayList<>();
-                if (expanded.expanded().isArray()) {
-                    expanded.expanded().forEach(requests::add);
+                TemplateExpander.ExpanderResult expanded = file.next();
+                stats.expand().record(1, System.nanoTime()-start);
+                if (!expanded.success()) {
+                    ObjectNode errorNode = Json.mapper.createObjectNode();
+                    ObjectNode resultNode = errorNode.putObject("result");
+                    if (csvInput) {
+                        ObjectNode csvNode = resultNode.putObject("csv");
+                        csvNode.put("error", expanded.exception().getMessage());
+                        csvNode.put("line", expanded.lineNumber());
+                        csvNode.set("data", Json.mapper.valueToTree(expanded.line()));
+                    }
+                    results.put(new Processed(errorNode));
                 } else {
-                    requests.add(expanded.expanded());
-                }
-                if (csvInput) {
-                    JsonNode line = Json.mapper.valueToTree(expanded.line());
-                    requests.forEach(request -> ((ObjectNode)request).set("csvdata", line));
-                }
-                for (JsonNode request : requests) {
-                    for (ObjectNode processed : processRequest(request, passwords)) {
-                        writer.write(processed);
+                    List<JsonNode> requests = new ArrayList<>();
+                    if (expanded.expanded().isArray()) {
+                        expanded.expanded().forEach(requests::add);
+                    } else {
+                        requests.add(expanded.expanded());
+                    }
+                    if (csvInput) {
+                        JsonNode line = Json.mapper.valueToTree(expanded.line());
+                        requests.forEach(request -> ((ObjectNode)request).set("csvdata", line));
+                    }
+                    for (JsonNode request : requests) {
+                        expectSync(request);
+                        String hash = journal == null ? null : Journal.hash(request);
+                        if (hash != null && request.isObject() && journal.completed(fn, expanded.lineNumber(), hash)) {
+                            ObjectNode skipped = insertResult(((ObjectNode)request).deepCopy(), true,
+                                    "skipped: completed in a previous run");
+                            results.put(new Processed(skipped));
+                            continue;
+                        }
+                        expectLookup(request);
+                        Processed processed = submit(request, stats.execute());
+                        processed.journal(expanded.lineNumber(), hash);
+                        results.put(processed);
                     }
                 }
             }
+            if (syncDelete) {
+                submitSyncDeletes(results, stats.execute());
+            }
+            results.put(END_OF_RESULTS);
+            ended = true;
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted processing "+fn);
+        } finally {
+            if (!ended) {
+                endResults(results, writerThread);
+            }
+            file.close();
+            executor.close();
+            executor = null;
+            if (journal != null) {
+                journal.sync();
+            }
+        }
+        if (results.error != null) {
+            throw results.error;
         }
 
         for (ObjectNode result : passwordReport(passwords)) {
             writer.write(result);
         }
         writer.close();
+
+        if (statsOutput != null) {
+            statsOutput.println("pipeline statistics for "+fn+":");
+            stats.finish().report(statsOutput);
+            if (lookups != null) {
+                statsOutput.println(String.format("lookups: %d names in %d reads", lookups.lookups(), lookups.reads()));
+            }
+            statsOutput.println(String.format("resource cache: %d hits, %d misses", resources.hits(), resources.misses()));
+            if (syncs.reads() > 0) {
+                statsOutput.println(String.format("sync: %d scopes listed", syncs.reads()));
+            }
+            if (journal != null) {
+                statsOutput.println(String.format("journal: %d requests skipped", journal.skipped()));
+            }
+            synchronized (apiClientCache) {
+                apiClientCache.forEach((profileName, client) -> client.concurrencyLimits().forEach(limit ->
+                    statsOutput.println("concurrency "+(Strings.isNullOrEmpty(profileName) ? "" : profileName+" ")+limit)));
+            }
+        }
+        lookups = null;
+        syncs = null;
+    }
+
+    /**
+     * Stops the writer thread when processing a file fails part way: the
+     * results of the requests submitted so far are written (and journaled)
+     * as usual, or if this thread was interrupted, the writer is interrupted
+     * too. Either way the writer has finished on return, so no request is
+     * left waiting for it.
+     * @param results the writer
+     * @param writerThread the thread running the writer
+     */
+    private static void endResults(ResultStage results, Thread writerThread) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!interrupted) {
+                results.put(END_OF_RESULTS);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            writerThread.interrupt();
+        }
+        while (true) {
+            try {
+                writerThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                writerThread.interrupt();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The results of processing a single request, along with any
+     * passwords generated while processing it.
+     * <p/>
+     * Results are streamed from the thread processing the request to the
+     * {@link ResultStage}. Once the writer has started on a request (it is
+     * at the head of the queue), at most {@code capacity} of its results
+     * are held at a time, so that a request listing many resources (say, the
+     * users of a large authenticator) holds only a few of them at once: when
+     * they are full, the request waits for the writer to catch up. Requests
+     * still waiting for their turn buffer their results instead, since the
+     * writer might be waiting for a request that needs their thread.
+     */
+    private static class Processed {
+        private Deque<ObjectNode> results;
+        private int capacity;
+        private boolean draining;
+        private boolean closed;
+        private ArrayNode passwords;
+        private int line;
+        private String hash;
+        public Processed(int capacity) {
+            this.results = new ArrayDeque<>();
+            this.capacity = capacity;
+            this.draining = false;
+            this.closed = false;
+            this.passwords = null;
+            this.hash = null;
+        }
+        public Processed(ObjectNode result) {
+            this(1);
+            results.add(result);
+            closed = true;
+        }
+        /**
+         * Adds a result, waiting for room if the writer has started on
+         * this request and {@code capacity} results are already waiting.
+         * @param result the result
+         * @throws InterruptedException
+         */
+        public synchronized void add(ObjectNode result) throws InterruptedException {
+            while (draining && results.size() >= capacity) {
+                wait();
+            }
+            results.add(result);
+            notifyAll();
+        }
+        /**
+         * Marks the end of the results, passing along any passwords generated.
+         * @param passwords the passwords (possibly {@code null})
+         */
+        public synchronized void close(ArrayNode passwords) {
+            this.passwords = passwords;
+            this.closed = true;
+            notifyAll();
+        }
+        /**
+         * Waits for the next result. Only the writer takes results, and
+         * from then on the request is held to {@code capacity}.
+         * @return the result, or {@code null} at the end
+         * @throws InterruptedException
+         */
+        public synchronized ObjectNode take() throws InterruptedException {
+            draining = true;
+            while (results.isEmpty() && !closed) {
+                wait();
+            }
+            ObjectNode result = results.poll();
+            notifyAll();
+            return result;
+        }
+        /**
+         * Identifies the request in the {@link Journal}, if there is one,
+         * so that its outcome is recorded once its results are written.
+         * @param line the number of the input line the request was expanded from
+         * @param hash the request hash, or {@code null} if not journaled
+         */
+        public void journal(int line, String hash) {
+            this.line = line;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Maximum number of results of the request being written waiting
+     * to be written.
+     */
+    private static final int RESULTS_PER_REQUEST = 100;
+
+    /**
+     * Maximum number of requests, per thread, that may be in flight or
+     * waiting for their turn to be written before expansion pauses.
+     */
+    private static final int BACKLOG_PER_THREAD = 4;
+
+    /**
+     * Marks the end of the results queue.
+     */
+    private static final Processed END_OF_RESULTS = new Processed(1);
+
+    /**
+     * The final pipeline stage, run on its own thread: takes processed
+     * requests from the head of a bounded queue in order, waiting for each
+     * to complete, and writes the results. Since the queue is bounded, the
+     * expansion stage blocks when the writer (or the request at the head
+     * of the queue) falls behind.
+     * <p/>
+     * Once the results of a request are written, its outcome is recorded in
+     * the {@link Journal}, if there is one: an error if any result is an error.
+     * <p/>
+     * If writing fails the error is kept for the expansion thread to
+     * rethrow, and the queue (and the results of each request) is drained
+     * without writing until the end.
+     */
+    private static class ResultStage implements Runnable {
+        private BlockingQueue<Processed> queue;
+        private ResultWriter writer;
+        private ArrayNode passwords;
+        private PipelineStats.Stage stats;
+        private Journal journal;
+        private String fn;
+        private IOException error;
+
+        public ResultStage(BlockingQueue<Processed> queue, ResultWriter writer,
+                ArrayNode passwords, PipelineStats.Stage stats, Journal journal, String fn) {
+            this.queue = queue;
+            this.writer = writer;
+            this.passwords = passwords;
+            this.stats = stats;
+            this.journal = journal;
+            this.fn = fn;
+            this.error = null;
+        }
+
+        public void put(Processed processed) throws InterruptedException {
+            stats.enqueue();
+            queue.put(processed);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Processed processed = queue.take();
+                    stats.dequeue();
+                    if (processed == END_OF_RESULTS) {
+                        break;
+                    }
+                    ObjectNode result;
+                    boolean success = true;
+                    while ((result = processed.take()) != null) {
+                        success &= !"error".equals(Json.getSubElementAsText(result, "result.status"));
+                        if (error == null) {
+                            try {
+                                long start = System.nanoTime();
+                                writer.write(result);
+                                stats.record(1, System.nanoTime()-start);
+                            } catch (IOException e) {
+                                error = e;
+                            } catch (RuntimeException e) {
+                                error = new IOException(e);
+                            }
+                        }
+                    }
+                    if (error == null && processed.passwords != null) {
+                        passwords.addAll(processed.passwords);
+                    }
+                    if (error == null && journal != null && processed.hash != null) {
+                        try {
+                            journal.record(fn, processed.line, processed.hash, success);
+                        } catch (IOException e) {
+                            error = e;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The work of processing a request, producing its results.
+     */
+    @FunctionalInterface
+    private interface Work {
+        public void process(ArrayNode passwords, Processed out) throws InterruptedException;
+    }
+
+    /**
+     * Processes a request immediately or, if a {@link RequestExecutor} is
+     * running, submits it with the resource keys predicted by {@link #resourceKeys}.
+     * @param request the request
+     * @param stats where to record execution statistics
+     * @return the processed request, whose results arrive as it runs
+     */
+    private Processed submit(JsonNode request, PipelineStats.Stage stats) {
+        return submit(resourceKeys(request), (passwords, out) -> processRequest(request, passwords, out), stats);
+    }
+
+    private Processed submit(ResourceKeys keys, Work work, PipelineStats.Stage stats) {
+        if (executor == null) {
+            Processed processed = new Processed(Integer.MAX_VALUE); // no writer to wait for yet
+            execute(work, processed);
+            return processed;
+        }
+        // the results are streamed, so the writer may start on them right away
+        Processed processed = new Processed(RESULTS_PER_REQUEST);
+        stats.enqueue();
+        executor.submit(keys.reads, keys.writes, () -> {
+            stats.dequeue();
+            long start = System.nanoTime();
+            execute(work, processed);
+            stats.record(1, System.nanoTime()-start);
+            return processed;
+        });
+        return processed;
+    }
+
+    private void execute(Work work, Processed processed) {
+        ArrayNode passwords = Json.mapper.createArrayNode();
+        try {
+            work.process(passwords, processed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            processed.close(passwords);
+        }
+    }
+
+    private static class ResourceKeys {
+        private Set<String> reads = new HashSet<>();
+        private Set<String> writes = new HashSet<>(); // null means "could be anything"
+    }
+
+    private static String resourceKey(String profile, String resourceClass, String name) {
+        return Strings.nullToEmpty(profile)+"|"+resourceClass+":"+name;
     }
 
-    private List<ObjectNode> processRequest(JsonNode requestNode, ArrayNode passwords) {
+    /**
+     * Returns the operation a raw request will perform, as
+     * {@link #analyzeRequest} will determine it.
+     * @param node the request (before {@link #analyzeRequest})
+     * @return the operation, or {@code null} if it is invalid
+     */
+    private Operation operation(JsonNode node) {
+        try {
+            return defaultOperation == Operation.preview
+                    ? Operation.preview
+                    : node.has("operation")
+                        ? Operation.valueOf(Json.asText(node.get("operation")))
+                        : defaultOperation;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Maximum length of a combined lookup filter, URL encoded, keeping
+     * the request line well within common URL length limits.
+     */
+    private static final int LOOKUP_FILTER_LENGTH = 1500;
+
+    /**
+     * Default bounds of the {@link ResourceCache}: the number of resources
+     * and the number of seconds to keep each.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 10000;
+    public static final long DEFAULT_CACHE_TTL = 300;
+
+    /**
+     * Tells the {@link LookupBatcher}, if lookups are batched, which name a
+     * raw request will look up: a single user, authenticator or connection
+     * to list, update or delete. As in {@link #analyzeRequest}, a
+     * {@code filter}, or a {@code type} other than the class itself, means
+     * the request lists with a filter instead.
+     * @param node the request (before {@link #analyzeRequest})
+     */
+    private void expectLookup(JsonNode node) {
+        if (lookups == null || !node.isObject() || node.has("filter") || node.has(ResourceClass.any.tag())) {
+            return;
+        }
+        Operation operation = operation(node);
+        if (operation != Operation.list && operation != Operation.update && operation != Operation.delete) {
+            return;
+        }
+        String username = Json.getSubElementAsText(node, ResourceClass.user.tag());
+        String authenticator = Json.getSubElementAsText(node, ResourceClass.authenticator.tag());
+        String connection = Json.getSubElementAsText(node, ResourceClass.connection.tag());
+        ResourceClass resourceClass;
+        String name;
+        String scope = null;
+        if (username != null && connection == null) {
+            resourceClass = ResourceClass.user;
+            name = username;
+            scope = authenticator == null ? null : "alias eq \""+authenticator+"\"";
+        } else if (authenticator != null && connection == null) {
+            resourceClass = ResourceClass.authenticator;
+            name = authenticator;
+        } else if (connection != null && authenticator == null) {
+            resourceClass = ResourceClass.connection;
+            name = connection;
+        } else {
+            return;
+        }
+        String type = Json.getSubElementAsText(node, "type");
+        if (type == null || type.equals(resourceClass.name())) {
+            lookups.expect(Json.asText(node.get("profile")), resourceClass, scope, name);
+        }
+    }
+
+    /**
+     * Tells the {@link LookupBatcher}, if lookups are batched, and the
+     * {@link ResourceCache} that the resources named by a processed request
+     * (or renamed to by its {@code update}) may have changed. Changing an
+     * authenticator may change its users, and a filter could have changed
+     * anything.
+     * @param node the request (before {@link #analyzeRequest})
+     */
+    private void invalidateLookups(JsonNode node) {
+        if (!node.isObject()) {
+            return;
+        }
+        Operation operation = operation(node);
+        if (operation == null || operation == Operation.preview || operation == Operation.list || operation == Operation.run) {
+            return;
+        }
+        String profile = Json.asText(node.get("profile"));
+        boolean named = false;
+        for (ResourceClass r : ResourceClass.values()) {
+            for (String name : new String[] {Json.getSubElementAsText(node, r.tag()),
+                    Json.getSubElementAsText(node.path("update"), r.tag())}) {
+                if (name == null) {
+                    continue;
+                }
+                named = true;
+                for (ResourceClass c : r == ResourceClass.any
+                        ? EnumSet.complementOf(EnumSet.of(ResourceClass.any))
+                        : EnumSet.of(r)) {
+                    if (lookups != null) {
+                        lookups.invalidate(profile, c, name);
+                        if (c == ResourceClass.authenticator) {
+                            lookups.invalidate(profile, ResourceClass.user, null);
+                        }
+                    }
+                    if (c == ResourceClass.authenticator && !node.has(ResourceClass.user.tag())) {
+                        // (for a user, the authenticator only says where to find it)
+                        resources.invalidate(profile, ResourceCache.Kind.authenticator, name);
+                    } else if (c == ResourceClass.connection) {
+                        resources.invalidate(profile, ResourceCache.Kind.connection, name);
+                    }
+                }
+            }
+        }
+        if (node.has("filter") || !named) {
+            if (lookups != null) {
+                lookups.invalidateAll();
+            }
+            resources.invalidateAll(profile, ResourceCache.Kind.authenticator);
+            resources.invalidateAll(profile, ResourceCache.Kind.connection);
+        }
+    }
+
+    /**
+     * Predicts which resources a request will read and write, in the form of
+     * keys for the {@link RequestExecutor}, from the names found in the raw
+     * request. This is intentionally conservative: requests that can't
+     * be pinned to named resources (filters, or no name at all) are treated
+     * as touching everything.
+     * @param node the request (before {@link #analyzeRequest})
+     * @return the predicted keys
+     */
+    private ResourceKeys resourceKeys(JsonNode node) {
+        ResourceKeys keys = new ResourceKeys();
+        if (!node.isObject()) {
+            return keys; // invalid request: touches nothing
+        }
+        Operation operation = operation(node);
+        if (operation == null || operation == Operation.preview) {
+            return keys; // invalid operation or preview: touches nothing
+        }
+        String profile = Json.asText(node.get("profile"));
+        List<String> names = new ArrayList<>();
+        for (ResourceClass r : ResourceClass.values()) {
+            String name = Json.getSubElementAsText(node, r.tag());
+            if (name != null) {
+                if (r == ResourceClass.any) {
+                    for (ResourceClass any : EnumSet.complementOf(EnumSet.of(ResourceClass.any))) {
+                        names.add(resourceKey(profile, any.name(), name));
+                    }
+                } else {
+                    names.add(resourceKey(profile, r.name(), name));
+                }
+            }
+        }
+        if (node.has("filter") || names.isEmpty()) {
+            keys.writes = null;
+            return keys;
+        }
+        if (operation == Operation.list) {
+            keys.reads.addAll(names);
+        } else {
+            keys.writes.add(names.remove(0));
+            keys.reads.addAll(names);
+            JsonNode renames = node.path("update");
+            for (ResourceClass r : EnumSet.complementOf(EnumSet.of(ResourceClass.any))) {
+                String rename = Json.getSubElementAsText(renames, r.tag());
+                if (rename != null) {
+                    keys.writes.add(resourceKey(profile, r.name(), rename));
+                }
+            }
+        }
+        return keys;
+    }
+
+    private void processRequest(JsonNode requestNode, ArrayNode passwords, Processed out) throws InterruptedException {
         List<ObjectNode> results = new ArrayList<>();
         // pull the next element and make sure it's an object
         if (!requestNode.isObject()) {
@@ -1799,7 +3164,8 @@ public class BatchProcessor {
                     System.err.println(Json.mapper.valueToTree(request).toPrettyString());
                 }
                 if (request.entry.isEmpty() &&
-                        (request.operation==Operation.add || request.operation==Operation.update)) {
+                        (request.operation==Operation.add || request.operation==Operation.update ||
+                         request.operation==Operation.sync)) {
                     results.add(Json.setSubElement(original, "result.message", "empty request"));
                 } else {
                     switch (request.operation) {
@@ -1810,22 +3176,21 @@ public class BatchProcessor {
                         processAdd(request, results, passwords);
                         break;
                     case list:
-                        {
-                            List<ObjectNode> tempResults = new ArrayList<>();
-                            processList(request, tempResults);
-                            appendAndFlattenUsers(tempResults, results);
-                        }
+                        streamList(request, out);
                         break;
                     case update:
                         processUpdate(request, results);
                         break;
+                    case sync:
+                        processSync(request, results, passwords);
+                        break;
                     case delete:
                         {
                             List<ObjectNode> tempResults = new ArrayList<>();
                             List<ObjectNode> toDelete = processList(request, tempResults);
                             for (int i=0; i<toDelete.size(); i++) {
                                 try {
-                                    api.delete(toDelete.get(i));
+                                    api().delete(toDelete.get(i));
                                     appendAndFlattenUsers(tempResults.get(i), results);
                                 } catch (Exception e) {
                                     results.add(insertResult(toDelete.get(i), false, e));
@@ -1840,7 +3205,7 @@ public class BatchProcessor {
                             for (int i=0; i<toRun.size(); i++) {
                                 try {
                                     ObjectNode action = toRun.get(i);
-                                    ObjectNode output = api.runAction(action, request.entry);
+                                    ObjectNode output = api().runAction(action, request.entry);
                                     String message = "ran action "+Json.getSubElementAsText(action, "alias");
                                     if (toRun.size() > 1) {
                                         message += String.format(" (%d of %d)", i+1, toRun.size());
@@ -1860,9 +3225,13 @@ public class BatchProcessor {
                 }
             } catch (Exception e) {
                 results.add(insertResult(original, false, e));
+            } finally {
+                invalidateLookups(original);
             }
         }
-        return results;
+        for (ObjectNode result : results) {
+            out.add(result);
+        }
     }
 
     public interface ResultWriter {
@@ -1937,9 +3306,9 @@ public class BatchProcessor {
      */
     public void processFiles(String[] fns, PrintStream out) throws IOException {
         for (String fn : fns) {
-            String content = fn.equals("-")
-                    ? new String(ByteStreams.toByteArray(System.in))
-                    : new String(Files.readAllBytes(Paths.get(fn)));
+            CharSource content = fn.equals("-")
+                    ? CharSource.wrap(new String(ByteStreams.toByteArray(System.in)))
+                    : MoreFiles.asCharSource(Paths.get(fn), Charset.defaultCharset());
             processFile(fn, content, out);
         }
     }
@@ -1958,6 +3327,17 @@ public class BatchProcessor {
         this.generatePasswords = false;
         this.outputFormat = OutputFormat.yaml;
         this.logOutput = null;
+        this.threads = 1;
+        this.statsOutput = null;
+        this.lookupBatch = 1;
+        this.lookups = null;
+        this.resources = new ResourceCache(DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+        this.syncDelete = false;
+        this.syncs = null;
+        this.journalPath = null;
+        this.resume = false;
+        this.journal = null;
+        this.executor = null;
         this.csvInput = false;
         loadVersaLex();
     }
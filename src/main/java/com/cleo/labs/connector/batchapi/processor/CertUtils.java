@@ -15,6 +15,7 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 
 public class CertUtils {
@@ -286,6 +287,23 @@ public class CertUtils {
         }
     }
 
+    /**
+     * Returns the SHA-256 fingerprint of a certificate in hex, or
+     * {@code null} if there is an encoding error.
+     * @param cert the certificate
+     * @return a hex string, or {@code null}
+     */
+    public static String fingerprint(X509Certificate cert) {
+        if (cert == null) {
+            return null;
+        }
+        try {
+            return Hashing.sha256().hashBytes(cert.getEncoded()).toString();
+        } catch (CertificateEncodingException e) {
+            return null;
+        }
+    }
+
     /**
      * Converts a certificate into a multi-line base 64 encoded format
      * wrapped in BEGIN and END delimiters, such as might be returned
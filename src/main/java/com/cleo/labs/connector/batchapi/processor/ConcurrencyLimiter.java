@@ -0,0 +1,189 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of requests in flight to one family of endpoints,
+ * adjusting the limit from the outcome of each request (additive increase,
+ * multiplicative decrease):
+ * <ul><li>a request that fails with a sign of overload (an I/O error or a
+ *         {@code 429} or {@code 5xx}), or whose latency is more than
+ *         {@code tolerance} times the lowest recently seen for its kind,
+ *         shrinks the limit by {@code backoff} (but not below {@code min}),
+ *         and</li>
+ *     <li>a request that succeeds promptly while the limit is at least half
+ *         used grows it by {@code 1/limit}, so about one per round-trip
+ *         (but not above {@code max}).</li>
+ * </ul>
+ * The lowest latency is tracked separately for each kind of request (for
+ * example reading one resource, or listing a page of about 100), as the
+ * kinds of one endpoint family take very different times, and over windows
+ * of {@value #WINDOW} requests, so a server that has become slower for good
+ * becomes the new baseline instead of throttling the limit to {@code min}
+ * forever.
+ */
+public class ConcurrencyLimiter {
+
+    private static final int WINDOW = 256;
+
+    /**
+     * The lowest latency of one kind of request.
+     */
+    private static class Baseline {
+        private long minLatency = Long.MAX_VALUE;
+        private long windowMinLatency = Long.MAX_VALUE;
+        private int samples = 0;
+
+        /**
+         * Adds a sample, returning the baseline to judge it against.
+         * @param latency the latency
+         * @return the lowest latency recently seen, including this one
+         */
+        private long sample(long latency) {
+            windowMinLatency = Math.min(windowMinLatency, latency);
+            minLatency = Math.min(minLatency, latency);
+            long baseline = minLatency;
+            if (++samples >= WINDOW) {
+                minLatency = windowMinLatency;
+                windowMinLatency = Long.MAX_VALUE;
+                samples = 0;
+            }
+            return baseline;
+        }
+    }
+
+    private String name;
+    private int min;
+    private int max;
+    private double backoff;
+    private double tolerance;
+    private double limit;
+    private int inFlight;
+    private Map<String, Baseline> baselines;
+    private Deque<CompletableFuture<Long>> waiting;
+
+    /**
+     * Creates a limiter starting at {@code initial} requests in flight.
+     * @param name the name of the endpoint family (for tracing)
+     * @param initial the initial limit
+     * @param min the lowest the limit may go
+     * @param max the highest the limit may go
+     */
+    public ConcurrencyLimiter(String name, int initial, int min, int max) {
+        this.name = name;
+        this.min = Math.max(min, 1);
+        this.max = Math.max(max, this.min);
+        this.backoff = 0.9;
+        this.tolerance = 2.0;
+        this.limit = Math.min(Math.max(initial, this.min), this.max);
+        this.inFlight = 0;
+        this.baselines = new HashMap<>();
+        this.waiting = new ArrayDeque<>();
+    }
+
+    public ConcurrencyLimiter backoff(double backoff) {
+        this.backoff = backoff;
+        return this;
+    }
+
+    public ConcurrencyLimiter tolerance(double tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Returns the current limit.
+     * @return the limit
+     */
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    /**
+     * Returns the number of requests in flight.
+     * @return the number of requests in flight
+     */
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Waits until a request may be sent, and counts it as in flight.
+     * @return the start time of the request, to pass to {@link #release}
+     * @throws InterruptedException
+     */
+    public synchronized long acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    /**
+     * Counts a request as in flight as soon as the limit allows, without
+     * blocking a thread in the meantime.
+     * @return a future completing with the start time of the request, to
+     *         pass to {@link #release}
+     */
+    public synchronized CompletableFuture<Long> acquireAsync() {
+        if (waiting.isEmpty() && inFlight < (int) limit) {
+            inFlight++;
+            return CompletableFuture.completedFuture(System.nanoTime());
+        }
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        waiting.add(future);
+        return future;
+    }
+
+    /**
+     * Releases a request acquired at {@code started}, adjusting the limit.
+     * @param started the value returned by {@link #acquire()}
+     * @param dropped {@code true} if the request failed from overload
+     * @param kind the kind of request, whose latency is compared only with
+     *        that of requests of the same kind, or {@code null} if the latency
+     *        of this request says nothing about the load on the server (it is
+     *        then judged only on failure)
+     */
+    public void release(long started, boolean dropped, String kind) {
+        long latency = System.nanoTime() - started;
+        List<CompletableFuture<Long>> admitted = new ArrayList<>();
+        synchronized (this) {
+            boolean slow = false;
+            if (kind != null && !dropped) {
+                long baseline = baselines.computeIfAbsent(kind, k -> new Baseline()).sample(latency);
+                // ignore sub-millisecond jitter when the baseline is tiny
+                slow = latency > TimeUnit.MILLISECONDS.toNanos(1) && latency > baseline * tolerance;
+            }
+            if (dropped || slow) {
+                limit = Math.max(min, limit * backoff);
+            } else if (inFlight * 2 >= limit) {
+                limit = Math.min(max, limit + 1.0 / limit);
+            }
+            inFlight--;
+            while (!waiting.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                admitted.add(waiting.poll());
+            }
+            notifyAll();
+        }
+        // complete outside the lock, as completion runs the waiting requests
+        admitted.forEach(future -> future.complete(System.nanoTime()));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: limit %d, %d in flight", name, (int) limit, inFlight);
+    }
+}
@@ -0,0 +1,167 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.hash.Hashing;
+
+/**
+ * An append-only record of the requests completed by a run, so that a
+ * run that dies part way through can be resumed where it left off.
+ * <p/>
+ * Each processed request is recorded, in input order, as a line holding
+ * the number of the input line it was expanded from, a hash of the request,
+ * its outcome ({@code success} if none of its results is an error) and the
+ * file name.
+ * Records are written to disk (fsynced) in groups of up to
+ * {@code groupSize} records, or every {@code groupMillis} milliseconds,
+ * rather than one at a time: a crash may lose the last group, whose
+ * requests are then simply processed again.
+ * <p/>
+ * When resuming, the records of the previous run are read first, and
+ * a request is {@link #completed} if the same request (by hash), expanded
+ * from the same line of the same file, succeeded. Requests are matched by
+ * line and hash rather than by position, as a line may expand to a different
+ * number of requests on a rerun: the default user template, for example,
+ * adds the authenticator along with the first of its users only if the
+ * authenticator does not exist yet. Otherwise the journal starts empty.
+ */
+public class Journal implements Closeable {
+
+    public static final int DEFAULT_GROUP_SIZE = 100;
+    public static final long DEFAULT_GROUP_MILLIS = 1000;
+
+    private static final String SUCCESS = "success";
+    private static final String ERROR = "error";
+
+    private Set<String> completed;
+    private FileOutputStream file;
+    private Writer out;
+    private int groupSize;
+    private long groupMillis;
+    private int pending;
+    private long lastSync;
+    private AtomicInteger skipped;
+
+    /**
+     * Opens a journal, reading the records of the previous run if resuming
+     * or else starting over.
+     * @param path the journal file
+     * @param resume {@code true} to resume the previous run
+     * @param groupSize the number of records to write to disk together
+     * @param groupMillis the longest to wait before writing records to disk
+     * @throws IOException
+     */
+    public Journal(Path path, boolean resume, int groupSize, long groupMillis) throws IOException {
+        this.completed = new HashSet<>();
+        if (resume && Files.exists(path)) {
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4) {
+                    continue; // a torn last line from a crash
+                }
+                String key = key(fields[3], fields[0], fields[1]);
+                if (fields[2].equals(SUCCESS)) {
+                    completed.add(key);
+                } else if (fields[2].equals(ERROR)) {
+                    completed.remove(key);
+                }
+            }
+        }
+        this.file = new FileOutputStream(path.toFile(), resume);
+        this.out = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+        this.groupSize = groupSize;
+        this.groupMillis = groupMillis;
+        this.pending = 0;
+        this.lastSync = System.currentTimeMillis();
+        this.skipped = new AtomicInteger();
+    }
+
+    public Journal(Path path, boolean resume) throws IOException {
+        this(path, resume, DEFAULT_GROUP_SIZE, DEFAULT_GROUP_MILLIS);
+    }
+
+    private static String key(String fn, String line, String hash) {
+        return line+"\t"+hash+"\t"+fn;
+    }
+
+    /**
+     * Returns the hash identifying a request in the journal.
+     * @param request the request (as expanded)
+     * @return the hash
+     */
+    public static String hash(JsonNode request) {
+        return Hashing.sha256().hashString(request.toString(), StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns {@code true} if the previous run completed the same request,
+     * expanded from the same line of the same file, so it can be skipped.
+     * @param fn the file name
+     * @param line the input line number
+     * @param hash the request {@link #hash}
+     * @return {@code true} if the request was completed
+     */
+    public boolean completed(String fn, int line, String hash) {
+        if (completed.contains(key(fn, String.valueOf(line), hash))) {
+            skipped.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the outcome of a request, writing the records so far to disk
+     * if the group is full or old enough.
+     * @param fn the file name
+     * @param line the input line number
+     * @param hash the request {@link #hash}
+     * @param success {@code true} if the request succeeded
+     * @throws IOException
+     */
+    public synchronized void record(String fn, int line, String hash, boolean success) throws IOException {
+        out.write(line+"\t"+hash+"\t"+(success ? SUCCESS : ERROR)+"\t"+fn+"\n");
+        pending++;
+        if (pending >= groupSize || System.currentTimeMillis()-lastSync >= groupMillis) {
+            sync();
+        }
+    }
+
+    /**
+     * Writes the records so far to disk.
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        out.flush();
+        file.getFD().sync();
+        pending = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the number of requests skipped as completed so far.
+     * @return the number of requests skipped
+     */
+    public int skipped() {
+        return skipped.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        out.close();
+    }
+}
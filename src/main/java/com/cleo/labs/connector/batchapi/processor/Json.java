@@ -167,4 +167,43 @@ public class Json {
         return node;
     }
 
+    /**
+     * Compares two nodes structurally, as {@link JsonNode#equals} does, except
+     * that scalar values are compared by their text, so that (say) {@code "5"}
+     * from a CSV file matches the {@code 5} that the API returns.
+     * @param a a node (possibly {@code null})
+     * @param b another node (possibly {@code null})
+     * @return {@code true} if the nodes have the same structure and values
+     */
+    public static boolean sameAs(JsonNode a, JsonNode b) {
+        if (a == null || b == null || a.isNull() || b.isNull()) {
+            return (a == null || a.isNull()) && (b == null || b.isNull());
+        } else if (a.isObject() && b.isObject()) {
+            if (a.size() != b.size()) {
+                return false;
+            }
+            Iterator<Entry<String,JsonNode>> fields = a.fields();
+            while (fields.hasNext()) {
+                Entry<String,JsonNode> field = fields.next();
+                if (!b.has(field.getKey()) || !sameAs(field.getValue(), b.get(field.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (a.isArray() && b.isArray()) {
+            if (a.size() != b.size()) {
+                return false;
+            }
+            for (int i = 0; i < a.size(); i++) {
+                if (!sameAs(a.get(i), b.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (a.isContainerNode() || b.isContainerNode()) {
+            return false;
+        }
+        return a.asText().equals(b.asText());
+    }
+
 }
@@ -0,0 +1,255 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.ResourceClass;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Coalesces lookups of single users, authenticators and connections by
+ * name into collection reads with combined {@code or} filters.
+ * <p/>
+ * Names are announced with {@link #expect} as requests are read, ahead of
+ * their processing. When a request then needs its resource with
+ * {@link #lookup}, the name is resolved along with up to {@code batchSize}
+ * of the names expected so far (in the same profile, class and, for users,
+ * authenticator filter), as long as the encoded filter stays within
+ * {@code maxFilterLength}. The other results are kept for the requests
+ * that expected them, and each is handed out once per expectation.
+ * <p/>
+ * Results are only valid until the resource changes: {@link #invalidate}
+ * must be called after each request that changes (or may have changed) a
+ * resource, so that later requests look it up again.
+ */
+public class LookupBatcher {
+
+    private int batchSize;
+    private int maxFilterLength;
+    private Map<String, Group> groups;
+    private AtomicInteger lookups;
+    private AtomicInteger reads;
+
+    private static class Entry {
+        private CompletableFuture<ObjectNode> result = new CompletableFuture<>();
+        private int uses;
+    }
+
+    private static class Group {
+        private String profile;
+        private ResourceClass resourceClass;
+        private String scope;
+        private Map<String, Integer> expected = new LinkedHashMap<>();
+        private Map<String, Entry> fetched = new HashMap<>();
+        public Group(String profile, ResourceClass resourceClass, String scope) {
+            this.profile = profile;
+            this.resourceClass = resourceClass;
+            this.scope = scope;
+        }
+    }
+
+    public LookupBatcher(int batchSize, int maxFilterLength) {
+        this.batchSize = batchSize;
+        this.maxFilterLength = maxFilterLength;
+        this.groups = new HashMap<>();
+        this.lookups = new AtomicInteger();
+        this.reads = new AtomicInteger();
+    }
+
+    private static String key(String profile, ResourceClass resourceClass, String scope) {
+        return profile+"|"+resourceClass.name()+"|"+scope;
+    }
+
+    private Group group(String profile, ResourceClass resourceClass, String scope) {
+        return groups.computeIfAbsent(key(profile, resourceClass, scope), k -> new Group(profile, resourceClass, scope));
+    }
+
+    private static String nameAttribute(ResourceClass resourceClass) {
+        return resourceClass == ResourceClass.user ? "username" : "alias";
+    }
+
+    private static String filter(ResourceClass resourceClass, List<String> names) {
+        String attribute = nameAttribute(resourceClass);
+        return names.stream()
+                .map(name -> attribute+" eq \""+name+"\"")
+                .collect(Collectors.joining(" or "));
+    }
+
+    static int encodedLength(String filter) {
+        try {
+            return URLEncoder.encode(filter, "UTF-8").length();
+        } catch (UnsupportedEncodingException e) {
+            return filter.length();
+        }
+    }
+
+    /**
+     * Announces that a request will look up {@code name}.
+     * @param profile the profile name ({@code null} for the default)
+     * @param resourceClass the class: user, authenticator or connection
+     * @param scope for users the authenticator filter, if any, else {@code null}
+     * @param name the username or alias
+     */
+    public synchronized void expect(String profile, ResourceClass resourceClass, String scope, String name) {
+        group(profile, resourceClass, scope).expected.merge(name, 1, Integer::sum);
+    }
+
+    /**
+     * Looks up a single resource by name, reusing the result of a previous
+     * combined read if there is one, or else reading it together with other
+     * expected names.
+     * @param api the client to use for the {@code profile}
+     * @param profile the profile name ({@code null} for the default)
+     * @param resourceClass the class: user, authenticator or connection
+     * @param scope for users the authenticator filter, if any, else {@code null}
+     * @param name the username or alias
+     * @return the resource, or {@code null} if not found
+     * @throws Exception
+     */
+    public ObjectNode lookup(ApiClient api, String profile, ResourceClass resourceClass, String scope, String name) throws Exception {
+        lookups.incrementAndGet();
+        Entry mine;
+        Map<String, Entry> batch = null;
+        synchronized (this) {
+            Group group = group(profile, resourceClass, scope);
+            mine = group.fetched.get(name);
+            if (mine != null) {
+                if (--mine.uses <= 0) {
+                    group.fetched.remove(name);
+                }
+            } else {
+                batch = new LinkedHashMap<>();
+                mine = new Entry();
+                mine.uses = group.expected.getOrDefault(name, 1) - 1;
+                group.expected.remove(name);
+                if (mine.uses > 0) {
+                    group.fetched.put(name, mine);
+                }
+                batch.put(name, mine);
+                List<String> names = new ArrayList<>(batch.keySet());
+                for (Map.Entry<String, Integer> expected : group.expected.entrySet()) {
+                    if (batch.size() >= batchSize) {
+                        break;
+                    }
+                    names.add(expected.getKey());
+                    if (encodedLength(filter(resourceClass, names)) > maxFilterLength) {
+                        names.remove(names.size()-1);
+                        break;
+                    }
+                    Entry entry = new Entry();
+                    entry.uses = expected.getValue();
+                    batch.put(expected.getKey(), entry);
+                    group.fetched.put(expected.getKey(), entry);
+                }
+                batch.keySet().forEach(group.expected::remove);
+            }
+        }
+        if (batch != null) {
+            read(api, profile, resourceClass, scope, batch);
+        }
+        try {
+            ObjectNode found = mine.result.get();
+            return found == null ? null : found.deepCopy(); // the caller may edit it
+        } catch (ExecutionException e) {
+            if (batch == null) {
+                // someone else's read failed: try again on our own
+                return single(api, resourceClass, scope, name);
+            }
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private void read(ApiClient api, String profile, ResourceClass resourceClass, String scope, Map<String, Entry> batch) {
+        reads.incrementAndGet();
+        try {
+            String filter = filter(resourceClass, new ArrayList<>(batch.keySet()));
+            List<ObjectNode> found;
+            switch (resourceClass) {
+            case user:
+                found = api.getUsers(scope, filter);
+                break;
+            case authenticator:
+                found = api.getAuthenticators(filter);
+                break;
+            default:
+                found = api.getConnections(filter);
+            }
+            String attribute = nameAttribute(resourceClass);
+            Map<String, ObjectNode> byName = new HashMap<>();
+            for (ObjectNode resource : found) {
+                byName.putIfAbsent(resource.path(attribute).asText(), resource);
+            }
+            batch.forEach((name, entry) -> entry.result.complete(byName.get(name)));
+        } catch (Exception e) {
+            synchronized (this) {
+                Group group = group(profile, resourceClass, scope);
+                batch.forEach((name, entry) -> group.fetched.remove(name, entry));
+            }
+            batch.values().forEach(entry -> entry.result.completeExceptionally(e));
+        }
+    }
+
+    private ObjectNode single(ApiClient api, ResourceClass resourceClass, String scope, String name) throws Exception {
+        reads.incrementAndGet();
+        switch (resourceClass) {
+        case user:
+            return api.getUser(scope, name);
+        case authenticator:
+            return api.getAuthenticator(name);
+        default:
+            return api.getConnection(name);
+        }
+    }
+
+    /**
+     * Forgets any result for {@code name}, in any scope, so that it is
+     * looked up again.
+     * @param profile the profile name ({@code null} for the default)
+     * @param resourceClass the class: user, authenticator or connection
+     * @param name the username or alias, or {@code null} for all of them
+     */
+    public synchronized void invalidate(String profile, ResourceClass resourceClass, String name) {
+        for (Group group : groups.values()) {
+            if (Objects.equals(group.profile, profile) && group.resourceClass == resourceClass) {
+                if (name == null) {
+                    group.fetched.clear();
+                } else {
+                    group.fetched.remove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets all results, so that everything is looked up again.
+     */
+    public synchronized void invalidateAll() {
+        groups.values().forEach(group -> group.fetched.clear());
+    }
+
+    /**
+     * Returns the number of lookups so far.
+     * @return the number of lookups
+     */
+    public int lookups() {
+        return lookups.get();
+    }
+
+    /**
+     * Returns the number of collection reads made for them so far.
+     * @return the number of reads
+     */
+    public int reads() {
+        return reads.get();
+    }
+}
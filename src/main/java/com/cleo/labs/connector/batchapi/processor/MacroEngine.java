@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -17,6 +18,8 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
@@ -35,6 +38,10 @@ import jdk.nashorn.api.scripting.ScriptObjectMirror;
  * Provides a framework for expanding strings with embedded expressions of the
  * form <span style="font-family: monospaced">${expression}</span> in the
  * context of the filename and a map of data bindings.
+ * <p/>
+ * Each distinct input string is scanned for expressions only once, and each
+ * distinct expression is compiled only once, so that expanding the same
+ * template for many rows of data costs only the evaluation of each expression.
  */
 @SuppressWarnings("restriction")
 public class MacroEngine {
@@ -52,6 +59,8 @@ public class MacroEngine {
     private Map<String, String> data;
     private JsonNode object;
     private Set<String> dontClear;
+    private Map<String, Parsed> parsed;
+    private Map<String, CompiledScript> compiled;
 
     /**
      * Returns {@code true} if the {@link ScriptEngine} has been started.
@@ -97,6 +106,8 @@ public class MacroEngine {
         this.data = null;
         this.object = null;
         this.dontClear = new HashSet<>();
+        this.parsed = lru(CACHE_SIZE);
+        this.compiled = lru(CACHE_SIZE);
     }
 
     /**
@@ -194,42 +205,95 @@ public class MacroEngine {
      * @return the resulting JsonNode
      */
     public JsonNode expand(String input) throws ScriptException {
-        SquiggleMatcher m = new SquiggleMatcher(input);
-        String singleton = m.singleton();
-        if (singleton != null) {
-            if (singleton.endsWith(INT_SUFFIX)) {
-                int value = asInt(singleton.substring(0, singleton.length()-INT_SUFFIX.length()));
-                return IntNode.valueOf(value);
-            } else if (singleton.endsWith(BOOLEAN_SUFFIX)) {
-                boolean value = isTrue(singleton.substring(0, singleton.length()-BOOLEAN_SUFFIX.length()));
-                return BooleanNode.valueOf(value);
-            } else if (singleton.endsWith(ARRAY_SUFFIX)) {
-                String expr = singleton.substring(0, singleton.length()-ARRAY_SUFFIX.length());
-                List<String> list = asArray(expr);
+        Parsed expansion = parsed.computeIfAbsent(Strings.nullToEmpty(input), Parsed::new);
+        if (expansion.singleton != null) {
+            String singleton = expansion.singleton;
+            switch (expansion.suffix) {
+            case INT_SUFFIX:
+                return IntNode.valueOf(asInt(singleton));
+            case BOOLEAN_SUFFIX:
+                return BooleanNode.valueOf(isTrue(singleton));
+            case ARRAY_SUFFIX:
+                List<String> list = asArray(singleton);
                 if (list != null) {
                     List<TextNode> text = list.stream().map(TextNode::valueOf).collect(Collectors.toList());
                     return Json.mapper.createArrayNode().addAll(text);
                 } else {
                     return null;
                 }
-            } else if (singleton.endsWith(STRING_SUFFIX)) {
-                String value = asString(singleton.substring(0, singleton.length()-STRING_SUFFIX.length())).toString();
-                return TextNode.valueOf(value);
-            } else {
+            case STRING_SUFFIX:
+                return TextNode.valueOf(asString(singleton));
+            default:
                 return asNode(singleton);
             }
-                
         } else {
-            StringBuilder sb = new StringBuilder();
-            while (m.find()) {
-                m.appendReplacement(sb, asString(m.expression()).toString());
+            StringBuilder sb = new StringBuilder(expansion.literals.get(0));
+            for (int i=0; i<expansion.expressions.size(); i++) {
+                sb.append(asString(expansion.expressions.get(i)))
+                  .append(expansion.literals.get(i+1));
             }
-            m.appendTail(sb);
-            String value = sb.toString();
-            return TextNode.valueOf(value);
+            return TextNode.valueOf(sb.toString());
         }
     }
 
+    /**
+     * The result of scanning an input string with a {@link SquiggleMatcher}, kept so
+     * that strings that are expanded repeatedly (template values for every row)
+     * are scanned only once. Either {@code singleton} is set, with any type
+     * {@code suffix} stripped off, or the string is split into {@code literals}
+     * separated by {@code expressions} (there is one more literal than expression).
+     */
+    private static class Parsed {
+        private String singleton = null;
+        private String suffix = "";
+        private List<String> literals = new ArrayList<>();
+        private List<String> expressions = new ArrayList<>();
+
+        public Parsed(String input) {
+            SquiggleMatcher m = new SquiggleMatcher(input);
+            singleton = m.singleton();
+            if (singleton != null) {
+                for (String type : Arrays.asList(INT_SUFFIX, BOOLEAN_SUFFIX, ARRAY_SUFFIX, STRING_SUFFIX)) {
+                    if (singleton.endsWith(type)) {
+                        suffix = type;
+                        singleton = singleton.substring(0, singleton.length()-type.length());
+                        break;
+                    }
+                }
+            } else {
+                StringBuilder sb = new StringBuilder();
+                while (m.find()) {
+                    m.appendReplacement(sb, "");
+                    literals.add(sb.toString());
+                    expressions.add(m.expression());
+                    sb.setLength(0);
+                }
+                literals.add(m.appendTail(sb).toString());
+            }
+        }
+    }
+
+    /**
+     * Maximum number of parsed strings and of compiled scripts to cache.
+     */
+    private static final int CACHE_SIZE = 4096;
+
+    /**
+     * Returns a {@link LinkedHashMap} in access order that keeps only the
+     * {@code max} most recently used entries.
+     * @param max the maximum number of entries
+     * @return a new LRU map
+     */
+    private static <K,V> Map<K,V> lru(int max) {
+        return new LinkedHashMap<K,V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
     /**
      * {@link Pattern} matching {@code date('...')} with {@code ...} as
      * {@code group(1)} or {@code date("...")} with {@code ...} as {@code group(2)}.
@@ -315,7 +379,7 @@ public class MacroEngine {
     private Object eval(String expr) throws ScriptException {
         startEngine();
         try {
-            return engine.eval(expr);
+            return compile(expr).eval();
         } catch (ScriptException e) {
             if (e.getMessage().startsWith("ReferenceError:") ||
                     e.getMessage().startsWith("TypeError:")) {
@@ -325,6 +389,24 @@ public class MacroEngine {
         }
     }
 
+    /**
+     * Returns the {@link CompiledScript} for {@code expr}, compiling it on first use.
+     * Compiled scripts are evaluated in the engine context, so they see the variables
+     * bound for the current row. Syntax errors are not cached, and are thrown on each
+     * use just as {@link ScriptEngine#eval(String)} would.
+     * @param expr the expression to compile
+     * @return the compiled script
+     * @throws ScriptException
+     */
+    private CompiledScript compile(String expr) throws ScriptException {
+        CompiledScript script = compiled.get(expr);
+        if (script == null) {
+            script = ((Compilable)engine).compile(expr);
+            compiled.put(expr, script);
+        }
+        return script;
+    }
+
     /**
      * Returns the result of evaluating the input JavaScript expression and converts
      * it to a boolean. Anything that looks null/empty/0/false is considered
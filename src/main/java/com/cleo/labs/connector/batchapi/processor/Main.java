@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.apache.commons.cli.CommandLine;
@@ -19,6 +20,8 @@ import org.apache.commons.cli.Options;
 
 import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
 import com.cleo.labs.connector.batchapi.processor.BatchProcessor.OutputFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -94,7 +97,13 @@ public class Main {
                 .longOpt("operation")
                 .hasArg()
                 .argName("OPERATION")
-                .desc("default operation: list, add, update, delete or preview")
+                .desc("default operation: list, add, update, delete, sync or preview")
+                .required(false)
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("sync-delete")
+                .desc("delete resources not named by sync requests")
                 .required(false)
                 .build());
 
@@ -136,6 +145,58 @@ public class Main {
                 .required(false)
                 .build());
 
+        options.addOption(Option.builder()
+                .longOpt("threads")
+                .hasArg()
+                .argName("N")
+                .desc("number of requests to process concurrently (default 1)")
+                .required(false)
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("lookup-batch")
+                .hasArg()
+                .argName("N")
+                .desc("number of names to look up together (default 1)")
+                .required(false)
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("cache-size")
+                .hasArg()
+                .argName("N")
+                .desc("number of authenticators, connections, actions and certs to cache (default "+BatchProcessor.DEFAULT_CACHE_SIZE+")")
+                .required(false)
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("cache-ttl")
+                .hasArg()
+                .argName("SECONDS")
+                .desc("seconds to cache each resource (default "+BatchProcessor.DEFAULT_CACHE_TTL+")")
+                .required(false)
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("journal")
+                .hasArg()
+                .argName("FILE")
+                .desc("record completed requests in a journal file")
+                .required(false)
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("resume")
+                .desc("skip requests completed according to the journal")
+                .required(false)
+                .build());
+
+        options.addOption(Option.builder()
+                .longOpt("stats")
+                .desc("report pipeline statistics to stderr")
+                .required(false)
+                .build());
+
         options.addOption(Option.builder()
                 .longOpt("profile")
                 .desc("Connection profile to use")
@@ -175,13 +236,76 @@ public class Main {
         }
     }
 
+    /**
+     * A saved profile: the server and its credentials, and optionally
+     * settings for {@link ApiClient.HttpOptions}. Settings left out of the
+     * profile ({@code null}) take the {@code HttpOptions} defaults.
+     */
     @Getter @Setter @Accessors(chain = true)
+    @JsonInclude(Include.NON_NULL)
     public static class Profile {
         private String url = null;
         private String username = null;
         private String password = null;
         private boolean insecure = false;
         private String exportPassword = null;
+        private Integer maxConnections = null;
+        private Integer maxConnectionsPerRoute = null;
+        private Integer connectionTtl = null;
+        private Integer validateAfterInactivity = null;
+        private Integer connectTimeout = null;
+        private Integer socketTimeout = null;
+        private Integer keepAlive = null;
+        private Integer prefetchPages = null;
+        private Integer pageSize = null;
+        private Boolean adaptivePaging = null;
+        private Integer maxPageSize = null;
+        private Integer pageMillis = null;
+        private Integer maxPageBytes = null;
+        private Integer retries = null;
+        private Integer retryDelay = null;
+        private Integer maxRetryDelay = null;
+        private Boolean adaptiveConcurrency = null;
+        private Integer initialConcurrency = null;
+        private Integer maxConcurrency = null;
+        private Integer searchParallelism = null;
+        private Boolean preloadUserIndex = null;
+        private String certCache = null;
+
+        private static <T> void set(T value, Consumer<T> option) {
+            if (value != null) {
+                option.accept(value);
+            }
+        }
+
+        public ApiClient.HttpOptions httpOptions() {
+            ApiClient.HttpOptions options = new ApiClient.HttpOptions();
+            set(maxConnections, options::maxConnections);
+            set(maxConnectionsPerRoute, options::maxConnectionsPerRoute);
+            set(connectionTtl, options::connectionTtl);
+            set(validateAfterInactivity, options::validateAfterInactivity);
+            set(connectTimeout, options::connectTimeout);
+            set(socketTimeout, options::socketTimeout);
+            set(keepAlive, options::keepAlive);
+            set(prefetchPages, options::prefetchPages);
+            set(pageSize, options::pageSize);
+            set(adaptivePaging, options::adaptivePaging);
+            set(maxPageSize, options::maxPageSize);
+            set(pageMillis, options::pageMillis);
+            set(maxPageBytes, options::maxPageBytes);
+            set(retries, options::retries);
+            set(retryDelay, options::retryDelay);
+            set(maxRetryDelay, options::maxRetryDelay);
+            set(adaptiveConcurrency, options::adaptiveConcurrency);
+            set(initialConcurrency, options::initialConcurrency);
+            set(maxConcurrency, options::maxConcurrency);
+            set(searchParallelism, options::searchParallelism);
+            set(preloadUserIndex, options::preloadUserIndex);
+            if (!Strings.isNullOrEmpty(certCache)) {
+                options.certCache(Paths.get(certCache));
+            }
+            return options;
+        }
     }
 
     public static Profile loadProfile(String name, boolean quiet) {
@@ -314,7 +438,8 @@ public class Main {
                 if (profile == null) {
                     throw new Exception("profile not found: "+profileName);
                 }
-                return new ApiClient(profile.getUrl(), profile.getUsername(), profile.getPassword(), profile.isInsecure())
+                return new ApiClient(profile.getUrl(), profile.getUsername(), profile.getPassword(), profile.isInsecure(),
+                        profile.httpOptions())
                     .includeDefaults(cmd.hasOption("include-defaults"))
                     .traceRequests(cmd.hasOption("trace-requests"));
             }
@@ -329,6 +454,10 @@ public class Main {
         BatchProcessor.OutputFormat outputFormat = null;
         String outputTemplate = null;
         String logFile = null;
+        int threads = 1;
+        int lookupBatch = 1;
+        long cacheSize = BatchProcessor.DEFAULT_CACHE_SIZE;
+        long cacheTtl = BatchProcessor.DEFAULT_CACHE_TTL;
         try {
             Options options = getOptions();
             cmd = parser.parse(options, args);
@@ -360,6 +489,49 @@ public class Main {
                         " only valid with outout-format of csv");
                 }
             }
+            if (cmd.hasOption("threads")) {
+                try {
+                    threads = Integer.parseInt(cmd.getOptionValue("threads"));
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    throw new Exception("threads must be a positive integer");
+                }
+            }
+            if (cmd.hasOption("lookup-batch")) {
+                try {
+                    lookupBatch = Integer.parseInt(cmd.getOptionValue("lookup-batch"));
+                } catch (NumberFormatException e) {
+                    lookupBatch = 0;
+                }
+                if (lookupBatch < 1) {
+                    throw new Exception("lookup-batch must be a positive integer");
+                }
+            }
+            if (cmd.hasOption("cache-size")) {
+                try {
+                    cacheSize = Long.parseLong(cmd.getOptionValue("cache-size"));
+                } catch (NumberFormatException e) {
+                    cacheSize = -1;
+                }
+                if (cacheSize < 0) {
+                    throw new Exception("cache-size must be a non-negative integer");
+                }
+            }
+            if (cmd.hasOption("cache-ttl")) {
+                try {
+                    cacheTtl = Long.parseLong(cmd.getOptionValue("cache-ttl"));
+                } catch (NumberFormatException e) {
+                    cacheTtl = -1;
+                }
+                if (cacheTtl < 0) {
+                    throw new Exception("cache-ttl must be a non-negative integer");
+                }
+            }
+            if (cmd.hasOption("resume") && !cmd.hasOption("journal")) {
+                throw new Exception("resume requires journal");
+            }
             if (cmd.hasOption("input") && cmd.getArgs().length > 0) {
                 throw new Exception("--input (-i) not allowed with command line input");
             }
@@ -382,11 +554,21 @@ public class Main {
                 .setGeneratePasswords(cmd.hasOption("generate-pass"))
                 .setExportPassword(profile.getExportPassword())
                 .setDefaultOperation(operation)
+                .setSyncDelete(cmd.hasOption("sync-delete"))
                 .setTraceRequests(cmd.hasOption("trace-requests"))
-                .setOutputFormat(outputFormat);
+                .setOutputFormat(outputFormat)
+                .setThreads(threads)
+                .setLookupBatch(lookupBatch)
+                .setResourceCache(cacheSize, cacheTtl);
+            if (cmd.hasOption("stats")) {
+                processor.setStatsOutput(System.err);
+            }
             if (cmd.hasOption("template")) {
                 processor.setTemplate(Paths.get(cmd.getOptionValue("template")));
             }
+            if (cmd.hasOption("journal")) {
+                processor.setJournal(Paths.get(cmd.getOptionValue("journal")), cmd.hasOption("resume"));
+            }
             if (outputTemplate != null) {
                 processor.setOutputTemplate(Paths.get(outputTemplate));
                 if (logFile != null) {
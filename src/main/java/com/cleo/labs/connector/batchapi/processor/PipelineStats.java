@@ -0,0 +1,142 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects per-stage statistics for the expand &rarr; execute &rarr; write
+ * pipeline run by {@link BatchProcessor#processFile}: the number of items
+ * each stage handled, the time it spent busy, and the depth of the queue
+ * feeding it, sampled each time an item is queued.
+ */
+public class PipelineStats {
+
+    /**
+     * Counters for a single stage. All methods may be called from any thread.
+     */
+    public static class Stage {
+        private String name;
+        private AtomicLong items = new AtomicLong();
+        private AtomicLong busy = new AtomicLong();
+        private AtomicInteger depth = new AtomicInteger();
+        private AtomicInteger maxDepth = new AtomicInteger();
+        private AtomicLong depthTotal = new AtomicLong();
+        private AtomicLong depthSamples = new AtomicLong();
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Notes an item added to the stage input queue, sampling the queue depth.
+         */
+        public void enqueue() {
+            int now = depth.incrementAndGet();
+            maxDepth.accumulateAndGet(now, Math::max);
+            depthTotal.addAndGet(now);
+            depthSamples.incrementAndGet();
+        }
+
+        /**
+         * Notes an item removed from the stage input queue.
+         */
+        public void dequeue() {
+            depth.decrementAndGet();
+        }
+
+        /**
+         * Records {@code count} items processed in {@code nanos} of busy time.
+         * @param count the number of items
+         * @param nanos the elapsed time, in nanoseconds
+         */
+        public void record(long count, long nanos) {
+            items.addAndGet(count);
+            busy.addAndGet(nanos);
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long items() {
+            return items.get();
+        }
+
+        public long busyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(busy.get());
+        }
+
+        public int maxDepth() {
+            return maxDepth.get();
+        }
+
+        public double meanDepth() {
+            long samples = depthSamples.get();
+            return samples == 0 ? 0.0 : (double)depthTotal.get() / samples;
+        }
+    }
+
+    private long started;
+    private long finished;
+    private Stage expand;
+    private Stage execute;
+    private Stage write;
+
+    public PipelineStats() {
+        this.started = System.nanoTime();
+        this.finished = 0;
+        this.expand = new Stage("expand");
+        this.execute = new Stage("execute");
+        this.write = new Stage("write");
+    }
+
+    public Stage expand() {
+        return expand;
+    }
+
+    public Stage execute() {
+        return execute;
+    }
+
+    public Stage write() {
+        return write;
+    }
+
+    /**
+     * Marks the end of the run, fixing the elapsed time used for throughput.
+     * @return {@code this} for fluent style
+     */
+    public PipelineStats finish() {
+        finished = System.nanoTime();
+        return this;
+    }
+
+    public long elapsedMillis() {
+        long end = finished == 0 ? System.nanoTime() : finished;
+        return TimeUnit.NANOSECONDS.toMillis(end - started);
+    }
+
+    /**
+     * Prints a table of the stage statistics: items handled, busy time,
+     * throughput over the elapsed time of the run, and max/mean input queue depth.
+     * @param out where to print
+     */
+    public void report(PrintStream out) {
+        long elapsed = Math.max(elapsedMillis(), 1);
+        List<Stage> stages = new ArrayList<>();
+        stages.add(expand);
+        stages.add(execute);
+        stages.add(write);
+        out.println(String.format("%-8s %10s %10s %10s %10s %10s", "stage", "items", "busy ms", "items/s", "max queue", "mean queue"));
+        for (Stage stage : stages) {
+            out.println(String.format("%-8s %10d %10d %10.1f %10d %10.1f",
+                    stage.name(), stage.items(), stage.busyMillis(), stage.items() * 1000.0 / elapsed,
+                    stage.maxDepth(), stage.meanDepth()));
+        }
+        out.println(String.format("elapsed %d ms", elapsed));
+    }
+}
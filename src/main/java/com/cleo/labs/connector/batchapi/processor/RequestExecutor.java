@@ -0,0 +1,183 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs request tasks on a fixed pool of worker threads while preserving the
+ * ordering constraints implied by the resources each task touches.
+ * <p/>
+ * Each task is submitted with the set of resource keys it reads and the set
+ * it writes (a key is any String that identifies a resource, for example
+ * {@code connection:myconnection}). A task will not start until:
+ * <ul><li>every earlier task that writes any key it reads or writes has completed, and</li>
+ *     <li>if it writes a key, every earlier task that reads that key has completed.</li>
+ * </ul>
+ * Tasks that touch unrelated resources run concurrently. A task submitted with
+ * {@code writes == null} is a barrier: it waits for all earlier tasks, and all
+ * later tasks wait for it (use this for requests whose resources can't be
+ * predicted, such as filters).
+ * <p/>
+ * Submission is expected from a single thread (the one expanding the input).
+ */
+public class RequestExecutor implements AutoCloseable {
+
+    private ExecutorService pool;
+    private Map<String, CompletableFuture<?>> writers;
+    private Map<String, List<CompletableFuture<?>>> readers;
+    private List<CompletableFuture<?>> sinceBarrier;
+    private CompletableFuture<?> barrier;
+
+    /**
+     * Creates a new executor with {@code threads} worker threads.
+     * @param threads the number of worker threads (at least 1)
+     */
+    public RequestExecutor(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "batchapi-worker-"+count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.pool = Executors.newFixedThreadPool(Math.max(threads, 1), factory);
+        this.writers = new HashMap<>();
+        this.readers = new HashMap<>();
+        this.sinceBarrier = new ArrayList<>();
+        this.barrier = CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Submits a task that reads the {@code reads} keys and writes the
+     * {@code writes} keys. If {@code writes} is {@code null} the task
+     * is submitted as a barrier.
+     * @param reads the keys the task reads (may be {@code null})
+     * @param writes the keys the task writes, or {@code null} for a barrier
+     * @param task the task to run
+     * @return a future for the task result
+     */
+    public synchronized <T> CompletableFuture<T> submit(Collection<String> reads, Collection<String> writes, Supplier<T> task) {
+        List<CompletableFuture<?>> dependencies = new ArrayList<>();
+        dependencies.add(barrier);
+        if (writes == null) {
+            dependencies.addAll(sinceBarrier);
+        } else {
+            if (reads != null) {
+                for (String key : reads) {
+                    addIfPending(dependencies, writers.get(key));
+                }
+            }
+            for (String key : writes) {
+                addIfPending(dependencies, writers.get(key));
+                List<CompletableFuture<?>> keyReaders = readers.remove(key);
+                if (keyReaders != null) {
+                    keyReaders.forEach(f -> addIfPending(dependencies, f));
+                }
+            }
+        }
+
+        CompletableFuture<T> future = CompletableFuture
+                .allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]))
+                .handleAsync((ignore, error) -> task.get(), pool);
+
+        if (writes == null) {
+            barrier = future;
+            sinceBarrier.clear();
+            writers.clear();
+            readers.clear();
+        } else {
+            sinceBarrier.removeIf(CompletableFuture::isDone);
+            sinceBarrier.add(future);
+            if (reads != null) {
+                for (String key : reads) {
+                    if (!writes.contains(key)) {
+                        List<CompletableFuture<?>> keyReaders = readers.computeIfAbsent(key, k -> new ArrayList<>());
+                        keyReaders.removeIf(CompletableFuture::isDone);
+                        keyReaders.add(future);
+                    }
+                }
+            }
+            for (String key : writes) {
+                writers.put(key, future);
+            }
+            // forget the task once it completes, so the maps hold only pending tasks
+            future.whenComplete((result, error) -> forget(reads, writes, future));
+        }
+        return future;
+    }
+
+    private synchronized void forget(Collection<String> reads, Collection<String> writes, CompletableFuture<?> future) {
+        for (String key : writes) {
+            writers.remove(key, future);
+        }
+        if (reads != null) {
+            for (String key : reads) {
+                List<CompletableFuture<?>> keyReaders = readers.get(key);
+                if (keyReaders != null && keyReaders.remove(future) && keyReaders.isEmpty()) {
+                    readers.remove(key);
+                }
+            }
+        }
+        sinceBarrier.remove(future);
+    }
+
+    /**
+     * Returns the number of resource keys with tasks still tracked as
+     * pending readers or writers.
+     * @return the number of tracked keys
+     */
+    synchronized int tracked() {
+        return writers.size() + readers.size();
+    }
+
+    /**
+     * Submits a task as a barrier, as {@link #submit(Collection, Collection, Supplier)}
+     * with {@code writes == null}.
+     * @param task the task to run
+     * @return a future for the task result
+     */
+    public <T> CompletableFuture<T> submitBarrier(Supplier<T> task) {
+        return submit(null, null, task);
+    }
+
+    /**
+     * Blocks until any submitted task that writes {@code key} (or any
+     * pending barrier) has completed, so that the caller may observe the
+     * resource in its current state.
+     * @param key the resource key
+     */
+    public void awaitWrites(String key) {
+        CompletableFuture<?> writer;
+        CompletableFuture<?> pendingBarrier;
+        synchronized (this) {
+            writer = writers.get(key);
+            pendingBarrier = barrier;
+        }
+        if (writer != null) {
+            writer.join();
+        }
+        pendingBarrier.join();
+    }
+
+    private static void addIfPending(List<CompletableFuture<?>> list, CompletableFuture<?> future) {
+        if (future != null && !future.isDone()) {
+            list.add(future);
+        }
+    }
+
+    /**
+     * Shuts down the worker pool. Tasks already submitted are allowed to complete.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
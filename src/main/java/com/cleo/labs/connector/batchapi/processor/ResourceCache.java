@@ -0,0 +1,243 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A thread-safe cache of authenticators, connections, actions and certs,
+ * looked up by HATEOAS {@code href} or, for authenticators and connections,
+ * by alias, and kept separately for each profile.
+ * <p/>
+ * Entries are evicted when the cache grows beyond {@code maximumSize}
+ * resources, or {@code ttl} seconds after they were cached, so that changes
+ * made by others are eventually seen. Changes made by the processor itself
+ * must be passed along with {@link #put} or {@link #invalidate}.
+ * <p/>
+ * Resources are copied on the way in and out, so callers are free to
+ * edit what they get.
+ */
+public class ResourceCache {
+
+    public enum Kind {authenticator, connection, action, cert};
+
+    /**
+     * Loads a resource missing from the cache.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * Loads the resource.
+         * @return the resource, or {@code null} if there is none
+         * @throws Exception
+         */
+        public ObjectNode load() throws Exception;
+    }
+
+    private Cache<String, ObjectNode> byHref;
+    private Cache<String, String> hrefByAlias;
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    /**
+     * Creates a cache of up to {@code maximumSize} resources, each kept
+     * for up to {@code ttl} seconds.
+     * @param maximumSize the maximum number of resources to keep
+     * @param ttl the number of seconds to keep each resource
+     */
+    public ResourceCache(long maximumSize, long ttl) {
+        this.byHref = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .build();
+        this.hrefByAlias = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .build();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    private static String prefix(String profile) {
+        return Strings.nullToEmpty(profile)+"|";
+    }
+
+    private static String hrefKey(String profile, String href) {
+        return prefix(profile)+href;
+    }
+
+    private static String aliasKey(String profile, Kind kind, String alias) {
+        return prefix(profile)+kind.name()+"|"+alias;
+    }
+
+    private static Kind kind(ObjectNode resource) {
+        String href = Json.getHref(resource);
+        if (href == null) {
+            return null;
+        } else if (href.startsWith("/api/authenticators/")) {
+            return Kind.authenticator;
+        } else if (href.startsWith("/api/connections/")) {
+            return Kind.connection;
+        } else if (href.startsWith("/api/actions/")) {
+            return Kind.action;
+        } else if (href.startsWith("/api/certs/")) {
+            return Kind.cert;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the resource with {@code href}, loading and caching it if
+     * it is not cached.
+     * @param profile the profile name ({@code null} or empty for the default)
+     * @param href the resource {@code href}
+     * @param loader loads the resource if it is not cached
+     * @return the resource, or {@code null} if not found
+     * @throws Exception
+     */
+    public ObjectNode get(String profile, String href, Loader loader) throws Exception {
+        ObjectNode resource = byHref.getIfPresent(hrefKey(profile, href));
+        if (resource != null) {
+            hits.incrementAndGet();
+            return resource.deepCopy();
+        }
+        return load(profile, loader);
+    }
+
+    /**
+     * Returns the resource with {@code href} if it is cached, for callers
+     * that load it themselves (without waiting) and {@link #put} it when
+     * it arrives.
+     * @param profile the profile name ({@code null} or empty for the default)
+     * @param href the resource {@code href}
+     * @return the resource, or {@code null} if it is not cached
+     */
+    public ObjectNode getIfPresent(String profile, String href) {
+        ObjectNode resource = byHref.getIfPresent(hrefKey(profile, href));
+        if (resource == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return resource.deepCopy();
+    }
+
+    /**
+     * Returns the authenticator or connection with {@code alias}, loading
+     * and caching it if it is not cached.
+     * @param profile the profile name ({@code null} or empty for the default)
+     * @param kind authenticator or connection
+     * @param alias the alias
+     * @param loader loads the resource if it is not cached
+     * @return the resource, or {@code null} if not found
+     * @throws Exception
+     */
+    public ObjectNode get(String profile, Kind kind, String alias, Loader loader) throws Exception {
+        String href = hrefByAlias.getIfPresent(aliasKey(profile, kind, alias));
+        if (href != null) {
+            return get(profile, href, loader);
+        }
+        return load(profile, loader);
+    }
+
+    private ObjectNode load(String profile, Loader loader) throws Exception {
+        misses.incrementAndGet();
+        ObjectNode resource = loader.load();
+        put(profile, resource);
+        return resource == null ? null : resource.deepCopy();
+    }
+
+    /**
+     * Caches a resource as read, created or updated (write-through),
+     * replacing whatever was cached under its {@code href} and alias.
+     * Resources of other kinds, and {@code null}, are ignored.
+     * @param profile the profile name ({@code null} or empty for the default)
+     * @param resource the resource
+     */
+    public void put(String profile, ObjectNode resource) {
+        Kind kind = resource == null ? null : kind(resource);
+        if (kind == null) {
+            return;
+        }
+        String href = Json.getHref(resource);
+        ObjectNode previous = byHref.asMap().put(hrefKey(profile, href), resource.deepCopy());
+        if (previous != null) {
+            String alias = Json.getSubElementAsText(previous, "alias");
+            if (alias != null) {
+                hrefByAlias.asMap().remove(aliasKey(profile, kind, alias), href);
+            }
+        }
+        String alias = Json.getSubElementAsText(resource, "alias");
+        if (alias != null && (kind == Kind.authenticator || kind == Kind.connection)) {
+            hrefByAlias.put(aliasKey(profile, kind, alias), href);
+        }
+    }
+
+    /**
+     * Forgets the resource with {@code href}.
+     * @param profile the profile name ({@code null} or empty for the default)
+     * @param href the resource {@code href}
+     */
+    public void invalidate(String profile, String href) {
+        ObjectNode previous = byHref.asMap().remove(hrefKey(profile, href));
+        if (previous != null) {
+            Kind kind = kind(previous);
+            String alias = Json.getSubElementAsText(previous, "alias");
+            if (alias != null && kind != null) {
+                hrefByAlias.asMap().remove(aliasKey(profile, kind, alias), href);
+            }
+        }
+    }
+
+    /**
+     * Forgets the authenticator or connection with {@code alias}.
+     * @param profile the profile name ({@code null} or empty for the default)
+     * @param kind authenticator or connection
+     * @param alias the alias
+     */
+    public void invalidate(String profile, Kind kind, String alias) {
+        String href = hrefByAlias.asMap().remove(aliasKey(profile, kind, alias));
+        if (href != null) {
+            byHref.invalidate(hrefKey(profile, href));
+        }
+    }
+
+    /**
+     * Forgets all resources of {@code kind} in {@code profile}.
+     * @param profile the profile name ({@code null} or empty for the default)
+     * @param kind the kind of resource
+     */
+    public void invalidateAll(String profile, Kind kind) {
+        byHref.asMap().entrySet().removeIf(e ->
+                e.getKey().startsWith(prefix(profile)) && kind(e.getValue()) == kind);
+        hrefByAlias.asMap().keySet().removeIf(key -> key.startsWith(prefix(profile)+kind.name()+"|"));
+    }
+
+    /**
+     * Forgets everything.
+     */
+    public void invalidateAll() {
+        byHref.invalidateAll();
+        hrefByAlias.invalidateAll();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     * @return the number of hits
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that had to be loaded.
+     * @return the number of misses
+     */
+    public long misses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,224 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.ResourceClass;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The existing resources against which {@code sync} requests are
+ * reconciled, listed once per scope and then diffed in memory.
+ * <p/>
+ * A scope is the set of resources a {@code sync} request could
+ * find its resource in: for users the users of an authenticator, and
+ * for authenticators and connections those of a type. Each name is
+ * {@link #claim}ed as requests are read, ahead of their processing.
+ * The first request needing a scope lists it with {@link #resources},
+ * and the others wait for the same listing.
+ * <p/>
+ * At the end, the resources of each scope that no request claimed are
+ * the ones left to delete: see {@link #unclaimed}.
+ */
+public class SyncSnapshot {
+
+    /**
+     * Lists the resources of a scope.
+     */
+    @FunctionalInterface
+    public interface Lister {
+        /**
+         * Lists the resources.
+         * @return the resources, in Official form
+         * @throws Exception
+         */
+        public List<ObjectNode> list() throws Exception;
+    }
+
+    /**
+     * The resources of one class in one profile, optionally narrowed
+     * to one authenticator (users) or type (authenticators and connections).
+     */
+    public static class Scope {
+        private String profile;
+        private ResourceClass resourceClass;
+        private String scope;
+        private AtomicBoolean started = new AtomicBoolean();
+        private CompletableFuture<Map<String, ObjectNode>> resources = new CompletableFuture<>();
+        public Scope(String profile, ResourceClass resourceClass, String scope) {
+            this.profile = profile;
+            this.resourceClass = resourceClass;
+            this.scope = scope;
+        }
+        public String profile() {
+            return profile;
+        }
+        public ResourceClass resourceClass() {
+            return resourceClass;
+        }
+        public String scope() {
+            return scope;
+        }
+    }
+
+    private Map<String, Scope> scopes;
+    private Map<String, Set<String>> claimed;
+    private AtomicInteger reads;
+
+    public SyncSnapshot() {
+        this.scopes = new LinkedHashMap<>();
+        this.claimed = new HashMap<>();
+        this.reads = new AtomicInteger();
+    }
+
+    private static String key(String profile, ResourceClass resourceClass, String scope) {
+        return profile+"|"+resourceClass.name()+"|"+scope;
+    }
+
+    private static String nameAttribute(ResourceClass resourceClass) {
+        return resourceClass == ResourceClass.user ? "username" : "alias";
+    }
+
+    private synchronized Scope scope(String profile, ResourceClass resourceClass, String scope) {
+        return scopes.computeIfAbsent(key(profile, resourceClass, scope), k -> new Scope(profile, resourceClass, scope));
+    }
+
+    /**
+     * Announces that a request will sync {@code name} in {@code scope}, so
+     * that it is not deleted at the end.
+     * @param profile the profile name ({@code null} for the default)
+     * @param resourceClass the class: user, authenticator or connection
+     * @param scope for users the authenticator, else the type
+     * @param name the username or alias
+     */
+    public synchronized void claim(String profile, ResourceClass resourceClass, String scope, String name) {
+        scope(profile, resourceClass, scope);
+        claimed.computeIfAbsent(profile+"|"+resourceClass.name(), k -> new HashSet<>()).add(name);
+    }
+
+    /**
+     * Announces that {@code name} is needed, without syncing a scope
+     * of its own: the authenticator of users being synced, for example.
+     * @param profile the profile name ({@code null} for the default)
+     * @param resourceClass the class: user, authenticator or connection
+     * @param name the username or alias
+     */
+    public synchronized void claim(String profile, ResourceClass resourceClass, String name) {
+        claimed.computeIfAbsent(profile+"|"+resourceClass.name(), k -> new HashSet<>()).add(name);
+    }
+
+    /**
+     * Returns the existing resources of a scope, by name, listing them
+     * with {@code lister} if this is the first request for them, or else
+     * waiting for the first request's listing. If the listing failed, it
+     * fails for everyone.
+     * @param profile the profile name ({@code null} for the default)
+     * @param resourceClass the class: user, authenticator or connection
+     * @param scope for users the authenticator, else the type
+     * @param lister lists the scope
+     * @return the resources, by username or alias
+     * @throws Exception
+     */
+    public Map<String, ObjectNode> resources(String profile, ResourceClass resourceClass, String scope, Lister lister) throws Exception {
+        Scope s = scope(profile, resourceClass, scope);
+        if (s.started.compareAndSet(false, true)) {
+            reads.incrementAndGet();
+            try {
+                Map<String, ObjectNode> byName = Collections.synchronizedMap(new LinkedHashMap<>());
+                String attribute = nameAttribute(resourceClass);
+                for (ObjectNode resource : lister.list()) {
+                    byName.putIfAbsent(resource.path(attribute).asText(), resource);
+                }
+                s.resources.complete(byName);
+            } catch (Exception e) {
+                s.resources.completeExceptionally(e);
+            }
+        }
+        try {
+            return s.resources.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Returns a copy of the existing resource named {@code name} in a scope,
+     * as listed or as last {@link #put}.
+     * @param profile the profile name ({@code null} for the default)
+     * @param resourceClass the class: user, authenticator or connection
+     * @param scope for users the authenticator, else the type
+     * @param name the username or alias
+     * @param lister lists the scope, if it has not been listed yet
+     * @return the resource, or {@code null} if there is none
+     * @throws Exception
+     */
+    public ObjectNode find(String profile, ResourceClass resourceClass, String scope, String name, Lister lister) throws Exception {
+        ObjectNode found = resources(profile, resourceClass, scope, lister).get(name);
+        return found == null ? null : found.deepCopy(); // the caller may edit it
+    }
+
+    /**
+     * Replaces the resource named {@code name} in a scope after a request
+     * has created or updated it, so that a later request for the same name
+     * sees the change.
+     * @param profile the profile name ({@code null} for the default)
+     * @param resourceClass the class: user, authenticator or connection
+     * @param scope for users the authenticator, else the type
+     * @param name the username or alias
+     * @param resource the resource, in Official form
+     * @throws Exception
+     */
+    public void put(String profile, ResourceClass resourceClass, String scope, String name, ObjectNode resource) throws Exception {
+        resources(profile, resourceClass, scope, Collections::emptyList).put(name, resource.deepCopy());
+    }
+
+    /**
+     * Returns the scopes claimed so far, in the order first claimed.
+     * @return the scopes
+     */
+    public synchronized List<Scope> scopes() {
+        return new ArrayList<>(scopes.values());
+    }
+
+    /**
+     * Returns the existing resources of {@code scope} that no request
+     * has claimed, listing the scope with {@code lister} if needed.
+     * @param scope the scope
+     * @param lister lists the scope, if it has not been listed yet
+     * @return the unclaimed resources, in Official form
+     * @throws Exception
+     */
+    public List<ObjectNode> unclaimed(Scope scope, Lister lister) throws Exception {
+        Map<String, ObjectNode> resources = resources(scope.profile, scope.resourceClass, scope.scope, lister);
+        List<ObjectNode> unclaimed = new ArrayList<>();
+        synchronized (this) {
+            Set<String> names = claimed.getOrDefault(scope.profile+"|"+scope.resourceClass.name(), Collections.emptySet());
+            synchronized (resources) {
+                resources.forEach((name, resource) -> {
+                    if (!names.contains(name)) {
+                        unclaimed.add(resource.deepCopy());
+                    }
+                });
+            }
+        }
+        return unclaimed;
+    }
+
+    /**
+     * Returns the number of scopes listed so far.
+     * @return the number of listings
+     */
+    public int reads() {
+        return reads.get();
+    }
+}
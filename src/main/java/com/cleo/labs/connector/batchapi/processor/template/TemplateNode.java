@@ -0,0 +1,423 @@
+package com.cleo.labs.connector.batchapi.processor.template;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.script.ScriptException;
+
+import com.cleo.labs.connector.batchapi.processor.Json;
+import com.cleo.labs.connector.batchapi.processor.MacroEngine;
+import com.cleo.labs.connector.batchapi.processor.ProcessingException;
+import com.cleo.labs.connector.batchapi.processor.SquiggleMatcher;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A template compiled into a tree of typed nodes. The template {@link JsonNode}
+ * is classified only once, when it is {@link #compile(JsonNode) compiled}: each
+ * key and value is checked against the {@code ${for}}, {@code ${if}},
+ * {@code ${var}} and {@code ${error}} patterns and scanned for {@code ${}
+ * expressions. Expanding the tree for each line of data then only evaluates
+ * the expressions.
+ * <p/>
+ * The tree is immutable, so it may be expanded any number of times, but
+ * expansion updates the {@link MacroEngine} ({@code ${for}} and {@code ${var}}
+ * set variables), so each engine must be used by one thread at a time.
+ */
+abstract class TemplateNode {
+
+    /**
+     * Expands the node in the context of the current data in {@code engine}.
+     * @param engine the engine holding the current data
+     * @return the expanded node (possibly {@code null})
+     * @throws Exception
+     */
+    public abstract JsonNode expand(MacroEngine engine) throws Exception;
+
+    /*-- compiler ------------------------------------------------------------*/
+
+    private static final Pattern LOOP_PATTERN = Pattern.compile("\\$\\{for\\s+(column\\s+)?([a-zA-Z_]\\w*)\\s*:(.*)\\}");
+    private static final Pattern IF_PATTERN = Pattern.compile("\\$\\{(?:(else\\s+)?if(?:\\s[^:]*)?:(.*)|else(?:\\s.*)?)\\}");
+    private static final Pattern VAR_PATTERN = Pattern.compile("\\$\\{var\\s+([a-zA-Z_]\\w*)\\s*}");
+    private static final Pattern ERROR_PATTERN = Pattern.compile("\\$\\{error(?:\\s.*)?}");
+
+    /**
+     * Compiles a template.
+     * @param template the template
+     * @return the compiled template
+     */
+    public static TemplateNode compile(JsonNode template) {
+        if (template.isArray()) {
+            List<Directive> entries = new ArrayList<>();
+            for (JsonNode entry : template) {
+                Directive directive = null;
+                if (entry.isObject() && entry.size()==1) {
+                    Entry<String,JsonNode> field = entry.fields().next();
+                    directive = directive(field.getKey(), field.getValue());
+                }
+                entries.add(directive != null ? directive : new Element(compile(entry)));
+            }
+            return new ArrayTemplate(entries);
+        } else if (template.isObject()) {
+            List<Directive> fields = new ArrayList<>();
+            Iterator<Entry<String,JsonNode>> iterator = template.fields();
+            while (iterator.hasNext()) {
+                Entry<String,JsonNode> field = iterator.next();
+                Directive directive = directive(field.getKey(), field.getValue());
+                if (directive == null) {
+                    directive = new Field(compile(Json.mapper.getNodeFactory().textNode(field.getKey())),
+                            compile(field.getValue()));
+                }
+                fields.add(directive);
+            }
+            return new ObjectTemplate(fields);
+        } else if (template.isTextual() && template.asText().contains("${")) {
+            return new Interpolation(template.asText());
+        } else {
+            return new Literal(template);
+        }
+    }
+
+    /**
+     * Classifies a field name as a {@code ${for}}, {@code ${if}}, {@code ${var}}
+     * or {@code ${error}} directive controlling its {@code value}.
+     * @param key the field name
+     * @param value the field value
+     * @return the directive, or {@code null} if {@code key} is an ordinary field name
+     */
+    private static Directive directive(String key, JsonNode value) {
+        if (new SquiggleMatcher(key).singleton() == null) {
+            return null;
+        }
+        Matcher matcher;
+        if ((matcher = IF_PATTERN.matcher(key)).matches()) {
+            return new Conditional(key, matcher.group(1) != null, matcher.group(2), compile(value));
+        } else if ((matcher = LOOP_PATTERN.matcher(key)).matches()) {
+            return new Loop(key, matcher.group(2), matcher.group(1) != null, matcher.group(3), compile(value));
+        } else if ((matcher = VAR_PATTERN.matcher(key)).matches()) {
+            return new Var(matcher.group(1), compile(value));
+        } else if (ERROR_PATTERN.matcher(key).matches()) {
+            return new Error(compile(value));
+        }
+        return null;
+    }
+
+    /*-- scalar nodes --------------------------------------------------------*/
+
+    /**
+     * A value with no expressions: expands to itself.
+     */
+    static class Literal extends TemplateNode {
+        private JsonNode value;
+        public Literal(JsonNode value) {
+            this.value = value;
+        }
+        @Override
+        public JsonNode expand(MacroEngine engine) {
+            return value;
+        }
+    }
+
+    /**
+     * A string with embedded {@code ${expressions}}.
+     */
+    static class Interpolation extends TemplateNode {
+        private String text;
+        public Interpolation(String text) {
+            this.text = text;
+        }
+        @Override
+        public JsonNode expand(MacroEngine engine) throws ScriptException {
+            return engine.expand(text);
+        }
+    }
+
+    /*-- containers ----------------------------------------------------------*/
+
+    /**
+     * Tracks the state of a sequence of {@code ${if}}, {@code ${else if}}
+     * and {@code ${else}} directives within a single array or object.
+     */
+    private static class ElseTracker {
+        private boolean conditionOpen = false;
+        private boolean conditionSatisfied = false;
+        public boolean checkIf() {
+            // ${if} is always ok and starts a new condition block
+            conditionOpen = true;
+            conditionSatisfied = false;
+            return true;
+        }
+        public boolean checkElseIf() throws ProcessingException {
+            // ${else if} requires an open condition and leaves it open
+            if (!conditionOpen) {
+                throw new ProcessingException("${if} required before ${else if}");
+            }
+            return !conditionSatisfied;
+        }
+        public boolean checkElse() throws ProcessingException {
+            // ${else} requires an open condition but closes it
+            if (!conditionOpen) {
+                throw new ProcessingException("${if} required before ${else}");
+            }
+            conditionOpen = false;
+            return !conditionSatisfied;
+        }
+        public void satisfy() {
+            conditionSatisfied = true;
+        }
+    }
+
+    /**
+     * An entry of an array or a field of an object, which expands
+     * by adding to the {@code result} container.
+     */
+    private static abstract class Directive {
+        public abstract void expand(MacroEngine engine, JsonNode result, ElseTracker tracker) throws Exception;
+    }
+
+    /**
+     * Adds {@code toAdd} to an array: arrays are merged, {@code null} is ignored.
+     */
+    private static void arrayNodeMerge(ArrayNode result, JsonNode toAdd) {
+        if (toAdd == null) {
+            // do nothing
+        } else if (toAdd.isArray()) {
+            result.addAll((ArrayNode)toAdd);
+        } else {
+            result.add(toAdd);
+        }
+    }
+
+    static class ArrayTemplate extends TemplateNode {
+        private List<Directive> entries;
+        public ArrayTemplate(List<Directive> entries) {
+            this.entries = Collections.unmodifiableList(entries);
+        }
+        @Override
+        public JsonNode expand(MacroEngine engine) throws Exception {
+            ArrayNode result = Json.mapper.createArrayNode();
+            ElseTracker tracker = new ElseTracker();
+            for (Directive entry : entries) {
+                entry.expand(engine, result, tracker);
+            }
+            return result.size() > 0 ? result : null;
+        }
+    }
+
+    static class ObjectTemplate extends TemplateNode {
+        private List<Directive> fields;
+        public ObjectTemplate(List<Directive> fields) {
+            this.fields = Collections.unmodifiableList(fields);
+        }
+        @Override
+        public JsonNode expand(MacroEngine engine) throws Exception {
+            ObjectNode result = Json.mapper.createObjectNode();
+            ElseTracker tracker = new ElseTracker();
+            for (Directive field : fields) {
+                field.expand(engine, result, tracker);
+            }
+            return result.size() > 0 ? result : null;
+        }
+    }
+
+    /**
+     * An ordinary array entry.
+     */
+    private static class Element extends Directive {
+        private TemplateNode value;
+        public Element(TemplateNode value) {
+            this.value = value;
+        }
+        @Override
+        public void expand(MacroEngine engine, JsonNode result, ElseTracker tracker) throws Exception {
+            JsonNode expanded = value.expand(engine);
+            if (expanded != null) {
+                ((ArrayNode)result).add(expanded);
+            }
+        }
+    }
+
+    /**
+     * An ordinary object field, whose name may also contain expressions.
+     */
+    private static class Field extends Directive {
+        private TemplateNode key;
+        private TemplateNode value;
+        public Field(TemplateNode key, TemplateNode value) {
+            this.key = key;
+            this.value = value;
+        }
+        @Override
+        public void expand(MacroEngine engine, JsonNode result, ElseTracker tracker) throws Exception {
+            String name = key.expand(engine).asText();
+            JsonNode expanded = value.expand(engine);
+            if (expanded != null) {
+                ((ObjectNode)result).set(name, expanded);
+            }
+        }
+    }
+
+    /*-- directives ----------------------------------------------------------*/
+
+    /**
+     * Merges the expansion of a {@code ${for}} or {@code ${if}} body
+     * into an array or, for an object, checks that it is also an object.
+     */
+    private static void merge(JsonNode result, JsonNode expanded, String key, String directive, boolean ignoreNull)
+            throws ProcessingException {
+        if (result.isArray()) {
+            arrayNodeMerge((ArrayNode)result, expanded);
+        } else if (expanded == null && ignoreNull) {
+            // ignore
+        } else if (expanded != null && expanded.isObject()) {
+            ((ObjectNode)result).setAll((ObjectNode)expanded);
+        } else {
+            throw new ProcessingException("invalid template condition--\""+directive+"\" must be a nested object in an object: "+
+                key);
+        }
+    }
+
+    /**
+     * {@code ${if:expression}}, {@code ${else if:expression}} or {@code ${else}}.
+     */
+    private static class Conditional extends Directive {
+        private String key;
+        private boolean elseIf;
+        private String expr; // null for ${else}
+        private TemplateNode body;
+        public Conditional(String key, boolean elseIf, String expr, TemplateNode body) {
+            this.key = key;
+            this.elseIf = elseIf;
+            this.expr = expr;
+            this.body = body;
+        }
+        private boolean isTrue(MacroEngine engine, ElseTracker tracker) throws ScriptException, ProcessingException {
+            // first check for ${else} -- never anything to evaluate
+            // just return true whether the condition is satisfied or not
+            if (expr == null) {
+                return tracker.checkElse();
+            }
+            // now check ${if} and ${else if} to see if we should even evalute
+            // if not (condition already satisfied), just return false
+            boolean eval = elseIf ? tracker.checkElseIf() : tracker.checkIf();
+            if (!eval) {
+                return false;
+            }
+            // return true (and mark the condition as satisfied) if the expression is true
+            boolean result = engine.isTrue(expr);
+            if (result) {
+                tracker.satisfy();
+            }
+            return result;
+        }
+        @Override
+        public void expand(MacroEngine engine, JsonNode result, ElseTracker tracker) throws Exception {
+            if (isTrue(engine, tracker)) {
+                merge(result, body.expand(engine), key, "${if:}", true);
+            }
+        }
+    }
+
+    /**
+     * {@code ${for id:array expression}} or {@code ${for column id:regex}}.
+     */
+    private static class Loop extends Directive {
+        private String key;
+        private String id;
+        private String expr;
+        private Pattern columns; // column mode only
+        private PatternSyntaxException invalid; // column mode with a bad regex
+        private TemplateNode body;
+        public Loop(String key, String id, boolean columnMode, String expr, TemplateNode body) {
+            this.key = key;
+            this.id = id;
+            this.expr = expr;
+            this.columns = null;
+            this.invalid = null;
+            if (columnMode) {
+                try {
+                    this.columns = Pattern.compile(expr);
+                } catch (PatternSyntaxException e) {
+                    this.invalid = e; // reported for each line, as before compilation
+                }
+            }
+            this.body = body;
+        }
+        /**
+         * Calculates the loop values, either from a JavaScript expression
+         * or from the column names loaded in the engine.
+         */
+        private List<String> values(MacroEngine engine) throws ScriptException {
+            List<String> values = new ArrayList<>();
+            if (columns != null || invalid != null) {
+                // column mode
+                if (engine.data() != null) {
+                    if (invalid != null) {
+                        throw invalid;
+                    }
+                    for (String column : engine.data().keySet()) {
+                        Matcher m = columns.matcher(column);
+                        if (m.matches()) {
+                            if (m.groupCount() > 0) {
+                                values.add(m.group(1));
+                            } else {
+                                values.add(column);
+                            }
+                        }
+                    }
+                }
+            } else {
+                // JavaScript expression mode
+                List<String> array = engine.asArray(expr);
+                if (array != null) {
+                    values.addAll(array);
+                }
+            }
+            return values;
+        }
+        @Override
+        public void expand(MacroEngine engine, JsonNode result, ElseTracker tracker) throws Exception {
+            for (String value : values(engine)) {
+                engine.datum(id, value);
+                merge(result, body.expand(engine), key, "${for}", false);
+            }
+        }
+    }
+
+    /**
+     * {@code ${var name}}: sets a variable for the rest of the line.
+     */
+    private static class Var extends Directive {
+        private String name;
+        private TemplateNode value;
+        public Var(String name, TemplateNode value) {
+            this.name = name;
+            this.value = value;
+        }
+        @Override
+        public void expand(MacroEngine engine, JsonNode result, ElseTracker tracker) throws Exception {
+            engine.datum(name, Json.asText(value.expand(engine)));
+        }
+    }
+
+    /**
+     * {@code ${error}}: fails the line with the expanded message.
+     */
+    private static class Error extends Directive {
+        private TemplateNode message;
+        public Error(TemplateNode message) {
+            this.message = message;
+        }
+        @Override
+        public void expand(MacroEngine engine, JsonNode result, ElseTracker tracker) throws Exception {
+            throw new ProcessingException(Json.asText(message.expand(engine)));
+        }
+    }
+}
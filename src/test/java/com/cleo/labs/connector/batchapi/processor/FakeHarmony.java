@@ -0,0 +1,838 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the Harmony REST API, good enough to run
+ * {@link ApiClient} and {@link BatchProcessor} against without a real server.
+ * It implements:
+ * <ul><li>{@code /api/authentication} (password grant only)</li>
+ *     <li>{@code /api/authenticators} and {@code /api/authenticators/{id}/users}</li>
+ *     <li>{@code /api/connections}</li>
+ *     <li>{@code /api/actions}, including {@code /api/actions/{id}/run}</li>
+ *     <li>{@code /api/certs} (import only, with {@code 409} for duplicates)</li>
+ * </ul>
+ * Collections support {@code startIndex}/{@code count} paging (returning
+ * {@code totalResults}) and {@code filter} expressions using {@code eq},
+ * {@code ne}, {@code co}, {@code sw}, {@code ew}, {@code pr}, {@code and},
+ * {@code or}, {@code not} and parentheses over dotted attribute paths.
+ * <p/>
+ * Each request can be delayed by a fixed or random {@link #latency(long, long) latency},
+ * and a fraction of requests can be failed with an {@link #errorRate(double, int) injected error}.
+ * Resources are kept in memory only. Run {@link #main(String[])} to start a standalone
+ * server for use with the command line.
+ */
+public class FakeHarmony implements AutoCloseable {
+
+    private static final String API = "/api";
+    private static final String TOKEN = "fake-harmony-token-";
+    private static final int DEFAULT_COUNT = 100;
+    private static final String[] COLLECTIONS = {"authenticators", "connections", "actions", "certs"};
+
+    private static final ObjectMapper json = new ObjectMapper();
+
+    static {
+        // without this the JDK server trips over Nagle/delayed ACK at ~40ms per request
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private HttpServer server;
+    private ExecutorService pool;
+    private String username;
+    private String password;
+    private long minLatency;
+    private long maxLatency;
+    private double errorRate;
+    private int errorCode;
+    private int maxCount;
+    private int retryAfter;
+    private AtomicInteger tokens;
+    private AtomicInteger requests;
+    private AtomicInteger nextId;
+
+    // all resources by href, and the collections (by path) holding them
+    private Map<String, ObjectNode> resources;
+    private Map<String, Map<String, ObjectNode>> collections;
+
+    /**
+     * Starts a server on an ephemeral port of the loopback interface.
+     * @throws IOException
+     */
+    public FakeHarmony() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Starts a server on {@code port} of the loopback interface.
+     * @param port the port (0 for an ephemeral port)
+     * @throws IOException
+     */
+    public FakeHarmony(int port) throws IOException {
+        this.username = null;
+        this.password = null;
+        this.minLatency = 0;
+        this.maxLatency = 0;
+        this.errorRate = 0.0;
+        this.errorCode = 503;
+        this.maxCount = Integer.MAX_VALUE;
+        this.retryAfter = -1;
+        this.tokens = new AtomicInteger();
+        this.requests = new AtomicInteger();
+        this.nextId = new AtomicInteger();
+        this.resources = new HashMap<>();
+        this.collections = new HashMap<>();
+        reset();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.pool = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "fake-harmony");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(pool);
+        server.createContext(API, this::handle);
+        server.start();
+    }
+
+    /**
+     * Returns the base URL of the server, e.g. {@code http://127.0.0.1:12345}.
+     * @return the base URL
+     */
+    public String url() {
+        return "http://"+server.getAddress().getHostString()+":"+server.getAddress().getPort();
+    }
+
+    /**
+     * Requires {@code username} and {@code password} for authentication
+     * (by default any credentials are accepted).
+     * @param username the username
+     * @param password the password
+     * @return {@code this} for fluent style setup
+     */
+    public FakeHarmony credentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * Delays every request by {@code millis}.
+     * @param millis the latency in milliseconds
+     * @return {@code this} for fluent style setup
+     */
+    public FakeHarmony latency(long millis) {
+        return latency(millis, millis);
+    }
+
+    /**
+     * Delays every request by a random time between {@code min} and {@code max}.
+     * @param min the minimum latency in milliseconds
+     * @param max the maximum latency in milliseconds
+     * @return {@code this} for fluent style setup
+     */
+    public FakeHarmony latency(long min, long max) {
+        this.minLatency = min;
+        this.maxLatency = Math.max(min, max);
+        return this;
+    }
+
+    /**
+     * Fails a random fraction {@code rate} of requests (other than authentication)
+     * with HTTP status {@code code}.
+     * @param rate the fraction of requests to fail, from 0.0 to 1.0
+     * @param code the HTTP status to return
+     * @return {@code this} for fluent style setup
+     */
+    public FakeHarmony errorRate(double rate, int code) {
+        this.errorRate = rate;
+        this.errorCode = code;
+        return this;
+    }
+
+    /**
+     * Adds a {@code Retry-After} header to injected errors.
+     * @param seconds the number of seconds to put in the header (or -1 for none)
+     * @return {@code this} for fluent style setup
+     */
+    public FakeHarmony retryAfter(int seconds) {
+        this.retryAfter = seconds;
+        return this;
+    }
+
+    /**
+     * Expires the access token: requests bearing the token issued
+     * before this call are rejected with {@code 401}.
+     * @return {@code this} for fluent style setup
+     */
+    public FakeHarmony expireTokens() {
+        tokens.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Limits the number of resources returned in a page, regardless of the
+     * {@code count} requested.
+     * @param maxCount the maximum page size
+     * @return {@code this} for fluent style setup
+     */
+    public FakeHarmony maxCount(int maxCount) {
+        this.maxCount = maxCount;
+        return this;
+    }
+
+    /**
+     * Returns the number of requests received.
+     * @return the request count
+     */
+    public int requests() {
+        return requests.get();
+    }
+
+    /**
+     * Returns a copy of the resource at {@code href}, or {@code null}.
+     * @param href the resource href
+     * @return a copy of the resource (or {@code null})
+     */
+    public synchronized ObjectNode resource(String href) {
+        ObjectNode resource = resources.get(href);
+        return resource == null ? null : resource.deepCopy();
+    }
+
+    /**
+     * Returns copies of the resources in the collection at {@code path}.
+     * @param path the collection path, e.g. {@code /api/connections}
+     * @return copies of the resources (empty for an unknown collection)
+     */
+    public synchronized List<ObjectNode> list(String path) {
+        List<ObjectNode> list = new ArrayList<>();
+        Map<String, ObjectNode> collection = collections.get(path);
+        if (collection != null) {
+            collection.values().forEach(r -> list.add(r.deepCopy()));
+        }
+        return list;
+    }
+
+    /**
+     * Removes all resources (but keeps the latency, error and credential settings).
+     * @return {@code this} for fluent style setup
+     */
+    public synchronized FakeHarmony reset() {
+        resources.clear();
+        collections.clear();
+        for (String collection : COLLECTIONS) {
+            collections.put(API+"/"+collection, new LinkedHashMap<>());
+        }
+        return this;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+
+    /*-- request handling ----------------------------------------------------*/
+
+    private static class Response {
+        private int code;
+        private JsonNode body;
+        public Response(int code, JsonNode body) {
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    private static class ApiException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private int code;
+        public ApiException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private static ObjectNode message(String message) {
+        return json.createObjectNode().put("message", message);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        Response response;
+        try {
+            requests.incrementAndGet();
+            if (maxLatency > 0) {
+                Thread.sleep(minLatency == maxLatency ? minLatency
+                        : ThreadLocalRandom.current().nextLong(minLatency, maxLatency+1));
+            }
+            URI uri = exchange.getRequestURI();
+            String method = exchange.getRequestMethod();
+            Map<String,String> query = parameters(uri.getRawQuery());
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = ByteStreams.toByteArray(in);
+            }
+            if (uri.getPath().equals(API+"/authentication")) {
+                response = authenticate(method, parameters(new String(body, Charsets.UTF_8)));
+            } else if (!("Bearer "+TOKEN+tokens.get()).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                response = new Response(401, message("unauthorized"));
+            } else if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                response = new Response(errorCode, message("injected failure"));
+                if (retryAfter >= 0) {
+                    exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+                }
+            } else {
+                JsonNode entity = body.length == 0 ? null : json.readTree(new ByteArrayInputStream(body));
+                synchronized (this) {
+                    response = route(method, uri.getPath(), query, entity);
+                }
+            }
+        } catch (ApiException e) {
+            response = new Response(e.code, message(e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = new Response(503, message("interrupted"));
+        } catch (Exception e) {
+            response = new Response(500, message(e.toString()));
+        }
+        byte[] bytes = response.body == null ? new byte[0] : json.writeValueAsBytes(response.body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(response.code, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length == 0) {
+            exchange.close();
+        } else {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static Map<String,String> parameters(String query) throws IOException {
+        Map<String,String> parameters = new HashMap<>();
+        if (!Strings.isNullOrEmpty(query)) {
+            for (String pair : query.split("&")) {
+                String[] nv = pair.split("=", 2);
+                parameters.put(URLDecoder.decode(nv[0], "UTF-8"), nv.length > 1 ? URLDecoder.decode(nv[1], "UTF-8") : "");
+            }
+        }
+        return parameters;
+    }
+
+    private Response authenticate(String method, Map<String,String> form) throws ApiException {
+        if (!method.equals("POST") || !"password".equals(form.get("grant_type"))) {
+            throw new ApiException(400, "unsupported grant");
+        }
+        if (username != null && (!username.equals(form.get("username")) || !password.equals(form.get("password")))) {
+            throw new ApiException(401, "invalid credentials");
+        }
+        return new Response(200, json.createObjectNode()
+                .put("access_token", TOKEN+tokens.get())
+                .put("token_type", "bearer"));
+    }
+
+    private Response route(String method, String path, Map<String,String> query, JsonNode entity) throws Exception {
+        if (collections.containsKey(path)) {
+            switch (method) {
+            case "GET":
+                return new Response(200, page(path, query));
+            case "POST":
+                return new Response(201, create(path, object(entity)));
+            default:
+            }
+        } else if (path.startsWith(API+"/actions/") && path.endsWith("/run")) {
+            if (method.equals("POST")) {
+                ObjectNode action = find(path.substring(0, path.length()-"/run".length()));
+                ObjectNode output = json.createObjectNode()
+                        .put("status", "success")
+                        .put("action", action.path("alias").asText());
+                output.putArray("messages");
+                return new Response(200, output);
+            }
+        } else {
+            ObjectNode resource = find(path);
+            switch (method) {
+            case "GET":
+                return new Response(200, resource);
+            case "PUT":
+                return new Response(200, update(resource, object(entity)));
+            case "DELETE":
+                delete(resource);
+                return new Response(204, null);
+            default:
+            }
+        }
+        throw new ApiException(405, method+" not supported for "+path);
+    }
+
+    private static ObjectNode object(JsonNode entity) throws ApiException {
+        if (entity == null || !entity.isObject()) {
+            throw new ApiException(400, "JSON object required");
+        }
+        return (ObjectNode)entity;
+    }
+
+    private ObjectNode find(String href) throws ApiException {
+        ObjectNode resource = resources.get(href);
+        if (resource == null) {
+            throw new ApiException(404, "not found: "+href);
+        }
+        return resource;
+    }
+
+    /*-- collections ---------------------------------------------------------*/
+
+    private ObjectNode page(String path, Map<String,String> query) throws ApiException {
+        Predicate<JsonNode> filter = Filter.parse(query.get("filter"));
+        int startIndex = integer(query, "startIndex", 0);
+        int count = Math.min(integer(query, "count", DEFAULT_COUNT), maxCount);
+        List<ObjectNode> matches = new ArrayList<>();
+        for (ObjectNode resource : collections.get(path).values()) {
+            if (filter.test(resource)) {
+                matches.add(resource);
+            }
+        }
+        ObjectNode page = json.createObjectNode();
+        page.put("totalResults", matches.size());
+        page.put("startIndex", startIndex);
+        ArrayNode list = page.putArray("resources");
+        for (int i = startIndex; i < matches.size() && i < startIndex+count; i++) {
+            list.add(matches.get(i));
+        }
+        page.put("count", list.size());
+        return page;
+    }
+
+    private static int integer(Map<String,String> query, String name, int ifNull) throws ApiException {
+        String value = query.get(name);
+        try {
+            return Strings.isNullOrEmpty(value) ? ifNull : Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            throw new ApiException(400, "invalid "+name+": "+value);
+        }
+    }
+
+    /**
+     * Returns the resource type and key attribute for the collection at {@code path}.
+     */
+    private static String[] typeOf(String path) {
+        if (path.endsWith("/users")) {
+            return new String[] {"user", "username"};
+        } else if (path.endsWith("/authenticators")) {
+            return new String[] {"authenticator", "alias"};
+        } else if (path.endsWith("/connections")) {
+            return new String[] {"connection", "alias"};
+        } else if (path.endsWith("/actions")) {
+            return new String[] {"action", "alias"};
+        } else {
+            return new String[] {"cert", "serialNumber"};
+        }
+    }
+
+    private boolean exists(String path, String key, String value, ObjectNode except) {
+        for (Map.Entry<String, Map<String, ObjectNode>> collection : collections.entrySet()) {
+            // usernames are unique across authenticators
+            if (collection.getKey().equals(path) || path.endsWith("/users") && collection.getKey().endsWith("/users")) {
+                for (ObjectNode resource : collection.getValue().values()) {
+                    if (resource != except && value.equals(resource.path(key).asText())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private ObjectNode create(String path, ObjectNode entity) throws Exception {
+        String[] type = typeOf(path);
+        if (type[0].equals("cert")) {
+            return importCert(path, entity);
+        }
+        String key = entity.path(type[1]).asText("");
+        if (key.isEmpty()) {
+            throw new ApiException(400, type[1]+" is required");
+        }
+        ObjectNode target = null;
+        if (type[0].equals("action")) {
+            target = resources.get(Json.getSubElementAsText(entity, "connection.href", ""));
+            if (target == null) {
+                throw new ApiException(400, "action requires a valid connection href");
+            }
+            for (JsonNode link : target.path("_links").path("actions")) {
+                if (key.equals(resources.get(link.path("href").asText()).path("alias").asText())) {
+                    throw new ApiException(409, "action "+key+" already exists");
+                }
+            }
+        } else if (exists(path, type[1], key, null)) {
+            throw new ApiException(409, type[0]+" "+key+" already exists");
+        }
+
+        String id = String.valueOf(nextId.incrementAndGet());
+        String href = path+"/"+id;
+        ObjectNode resource = entity.deepCopy();
+        resource.remove("_links");
+        resource.remove("meta");
+        resource.put("id", id);
+        String now = Instant.now().toString();
+        resource.putObject("meta")
+            .put("resourceType", type[0])
+            .put("created", now)
+            .put("lastModified", now);
+        ObjectNode links = resource.putObject("_links");
+        links.putObject("self").put("href", href);
+        if (!type[0].equals("action")) {
+            links.putArray("actions");
+        }
+        switch (type[0]) {
+        case "authenticator":
+            links.putObject("users").put("href", href+"/users");
+            collections.put(href+"/users", new LinkedHashMap<>());
+            break;
+        case "user":
+            links.putObject("authenticator").put("href", path.substring(0, path.length()-"/users".length()));
+            break;
+        case "action":
+            links.putObject("run").put("href", href+"/run");
+            resolveActionLinks(resource, target);
+            ((ObjectNode)target.get("_links")).withArray("actions").addObject().put("href", href);
+            break;
+        default:
+        }
+        resources.put(href, resource);
+        collections.get(path).put(href, resource);
+        return resource;
+    }
+
+    /**
+     * Fills in the alias/username of the resource an action is attached to,
+     * so that actions can be filtered by e.g. {@code connection.alias}.
+     */
+    private void resolveActionLinks(ObjectNode action, ObjectNode target) {
+        String type = Json.getSubElementAsText(target, "meta.resourceType", "");
+        ObjectNode connection = action.with("connection");
+        connection.put("href", Json.getHref(target));
+        if (type.equals("connection")) {
+            connection.put("alias", target.path("alias").asText());
+        } else if (type.equals("authenticator")) {
+            action.with("authenticator")
+                .put("href", Json.getHref(target))
+                .put("alias", target.path("alias").asText());
+        } else if (type.equals("user")) {
+            ObjectNode authenticator = resources.get(Json.getSubElementAsText(target, "_links.authenticator.href"));
+            ObjectNode link = action.with("authenticator");
+            link.put("href", Json.getHref(authenticator))
+                .put("alias", authenticator.path("alias").asText());
+            link.with("user")
+                .put("href", Json.getHref(target))
+                .put("username", target.path("username").asText());
+        }
+    }
+
+    private ObjectNode update(ObjectNode resource, ObjectNode entity) throws ApiException {
+        String href = Json.getHref(resource);
+        String path = href.substring(0, href.lastIndexOf('/'));
+        String[] type = typeOf(path);
+        String key = entity.path(type[1]).asText(resource.path(type[1]).asText());
+        if (!type[0].equals("action") && exists(path, type[1], key, resource)) {
+            throw new ApiException(409, type[0]+" "+key+" already exists");
+        }
+        Iterator<String> names = resource.fieldNames();
+        while (names.hasNext()) {
+            String name = names.next();
+            if (!name.equals("id") && !name.equals("meta") && !name.equals("_links")) {
+                names.remove();
+            }
+        }
+        entity.fields().forEachRemaining(field -> {
+            if (!field.getKey().equals("id") && !field.getKey().equals("meta") && !field.getKey().equals("_links")) {
+                resource.set(field.getKey(), field.getValue());
+            }
+        });
+        if (type[0].equals("action")) {
+            resolveActionLinks(resource, resources.get(Json.getSubElementAsText(resource, "connection.href", "")));
+        }
+        ((ObjectNode)resource.get("meta")).put("lastModified", Instant.now().toString());
+        return resource;
+    }
+
+    private void delete(ObjectNode resource) {
+        String href = Json.getHref(resource);
+        String type = Json.getSubElementAsText(resource, "meta.resourceType", "");
+        // cascade to attached actions and, for authenticators, users
+        List<String> cascade = new ArrayList<>();
+        resource.path("_links").path("actions").forEach(link -> cascade.add(link.path("href").asText()));
+        if (type.equals("authenticator")) {
+            cascade.addAll(collections.get(href+"/users").keySet());
+        }
+        for (String dependent : cascade) {
+            ObjectNode child = resources.get(dependent);
+            if (child != null) {
+                delete(child);
+            }
+        }
+        if (type.equals("authenticator")) {
+            collections.remove(href+"/users");
+        } else if (type.equals("action")) {
+            ObjectNode target = resources.get(Json.getSubElementAsText(resource, "connection.href", ""));
+            if (target != null) {
+                Iterator<JsonNode> links = target.path("_links").path("actions").elements();
+                while (links.hasNext()) {
+                    if (links.next().path("href").asText().equals(href)) {
+                        links.remove();
+                    }
+                }
+            }
+        }
+        resources.remove(href);
+        collections.get(href.substring(0, href.lastIndexOf('/'))).remove(href);
+    }
+
+    private ObjectNode importCert(String path, ObjectNode entity) throws Exception {
+        if (!"importCert".equals(entity.path("requestType").asText())) {
+            throw new ApiException(400, "unsupported requestType");
+        }
+        String base64 = entity.path("import").asText();
+        X509Certificate cert;
+        try {
+            cert = (X509Certificate)CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(Base64.getDecoder().decode(base64)));
+        } catch (Exception e) {
+            throw new ApiException(400, "invalid certificate");
+        }
+        for (ObjectNode existing : collections.get(path).values()) {
+            if (base64.equals(existing.path("certificate").asText())) {
+                throw new ApiException(409, "certificate already exists");
+            }
+        }
+        String serial = cert.getSerialNumber().toString(16);
+        if (serial.length() % 2 == 1) {
+            serial = "0"+serial;
+        }
+        ObjectNode resource = json.createObjectNode()
+                .put("serialNumber", serial)
+                .put("subject", cert.getSubjectX500Principal().getName())
+                .put("issuer", cert.getIssuerX500Principal().getName())
+                .put("certificate", base64)
+                .put("hasPrivateKey", false);
+        String id = new BigInteger(1, java.security.MessageDigest.getInstance("SHA-1").digest(cert.getEncoded())).toString(16);
+        String href = path+"/"+id;
+        resource.put("id", id);
+        resource.putObject("meta").put("resourceType", "cert");
+        resource.putObject("_links").putObject("self").put("href", href);
+        resources.put(href, resource);
+        collections.get(path).put(href, resource);
+        return resource;
+    }
+
+    /*-- filters -------------------------------------------------------------*/
+
+    /**
+     * A recursive descent parser for filter expressions:
+     * <pre>
+     * expr    := and ("or" and)*
+     * and     := unary ("and" unary)*
+     * unary   := "not" unary | "(" expr ")" | path "pr" | path op value
+     * op      := eq | ne | co | sw | ew
+     * value   := "string" | true | false | null | number
+     * </pre>
+     * Paths are dotted attribute names. String comparison is case sensitive.
+     */
+    static class Filter {
+        private String text;
+        private int pos;
+
+        private Filter(String text) {
+            this.text = text;
+            this.pos = 0;
+        }
+
+        /**
+         * Parses {@code filter} into a predicate ({@code null} or empty matches everything).
+         * @param filter the filter expression
+         * @return a predicate for the resources
+         * @throws ApiException for an invalid filter
+         */
+        static Predicate<JsonNode> parse(String filter) throws ApiException {
+            if (Strings.isNullOrEmpty(filter)) {
+                return r -> true;
+            }
+            Filter parser = new Filter(filter);
+            Predicate<JsonNode> predicate = parser.expr();
+            parser.skip();
+            if (parser.pos < parser.text.length()) {
+                throw parser.error();
+            }
+            return predicate;
+        }
+
+        private ApiException error() {
+            return new ApiException(400, "invalid filter at "+pos+": "+text);
+        }
+
+        private void skip() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private String word() {
+            skip();
+            int start = pos;
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || "._-$".indexOf(text.charAt(pos)) >= 0)) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        private boolean keyword(String keyword) {
+            int mark = pos;
+            if (word().equalsIgnoreCase(keyword)) {
+                return true;
+            }
+            pos = mark;
+            return false;
+        }
+
+        private boolean symbol(char c) {
+            skip();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private Predicate<JsonNode> expr() throws ApiException {
+            Predicate<JsonNode> left = and();
+            while (keyword("or")) {
+                left = left.or(and());
+            }
+            return left;
+        }
+
+        private Predicate<JsonNode> and() throws ApiException {
+            Predicate<JsonNode> left = unary();
+            while (keyword("and")) {
+                left = left.and(unary());
+            }
+            return left;
+        }
+
+        private Predicate<JsonNode> unary() throws ApiException {
+            if (keyword("not")) {
+                return unary().negate();
+            } else if (symbol('(')) {
+                Predicate<JsonNode> inner = expr();
+                if (!symbol(')')) {
+                    throw error();
+                }
+                return inner;
+            }
+            String path = word();
+            String op = word().toLowerCase();
+            if (path.isEmpty() || op.isEmpty()) {
+                throw error();
+            }
+            if (op.equals("pr")) {
+                return r -> {
+                    JsonNode value = Json.getSubElement(r, path);
+                    return value != null && !value.isNull() && !value.isMissingNode();
+                };
+            }
+            String value = value();
+            switch (op) {
+            case "eq":
+                return r -> value.equals(text(r, path));
+            case "ne":
+                return r -> !value.equals(text(r, path));
+            case "co":
+                return r -> text(r, path) != null && text(r, path).contains(value);
+            case "sw":
+                return r -> text(r, path) != null && text(r, path).startsWith(value);
+            case "ew":
+                return r -> text(r, path) != null && text(r, path).endsWith(value);
+            default:
+                throw error();
+            }
+        }
+
+        private String value() throws ApiException {
+            skip();
+            if (symbol('"')) {
+                StringBuilder sb = new StringBuilder();
+                while (pos < text.length() && text.charAt(pos) != '"') {
+                    char c = text.charAt(pos++);
+                    if (c == '\\' && pos < text.length()) {
+                        c = text.charAt(pos++);
+                    }
+                    sb.append(c);
+                }
+                if (!symbol('"')) {
+                    throw error();
+                }
+                return sb.toString();
+            }
+            String word = word();
+            if (word.isEmpty()) {
+                throw error();
+            }
+            return word.equals("null") ? null : word;
+        }
+
+        private static String text(JsonNode resource, String path) {
+            JsonNode value = Json.getSubElement(resource, path);
+            return value == null || value.isNull() || value.isMissingNode() ? null : value.asText();
+        }
+    }
+
+    /*-- standalone ----------------------------------------------------------*/
+
+    /**
+     * Runs a standalone server until killed. Arguments: port (default 8080),
+     * latency in milliseconds (default 0), error rate (default 0.0).
+     * @param args the arguments
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        FakeHarmony harmony = new FakeHarmony(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        if (args.length > 1) {
+            harmony.latency(Long.parseLong(args[1]));
+        }
+        if (args.length > 2) {
+            harmony.errorRate(Double.parseDouble(args[2]), 503);
+        }
+        System.out.println("fake Harmony listening at "+harmony.url());
+        Thread.currentThread().join();
+    }
+}
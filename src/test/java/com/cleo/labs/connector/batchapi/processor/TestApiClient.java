@@ -0,0 +1,388 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import com.cleo.labs.connector.batchapi.processor.ApiClient.JsonCollection;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestApiClient {
+
+    private static ObjectNode connection(String alias) {
+        ObjectNode connection = Json.mapper.createObjectNode();
+        connection.put("type", "sftp");
+        connection.put("alias", alias);
+        connection.with("connect").put("host", "localhost");
+        return connection;
+    }
+
+    @Test
+    public void testCrud() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony().credentials("admin", "secret")) {
+            ApiClient api = new ApiClient(harmony.url(), "admin", "secret", false);
+            ObjectNode created = api.createConnection(connection("one"));
+            assertEquals("connection", Json.getSubElementAsText(created, "meta.resourceType"));
+            assertEquals(created, api.getConnection("one"));
+
+            created.with("connect").put("host", "remote");
+            ObjectNode updated = api.put(created, created);
+            assertEquals("remote", Json.getSubElementAsText(updated, "connect.host"));
+            assertEquals("remote", Json.getSubElementAsText(api.getConnection("one"), "connect.host"));
+
+            try {
+                api.createConnection(connection("one"));
+                fail("duplicate alias should conflict");
+            } catch (UnexpectedCodeException e) {
+                assertEquals(409, e.code());
+            }
+
+            api.delete(created);
+            assertNull(api.getConnection("one"));
+        }
+    }
+
+    @Test
+    public void testPagingAndFilters() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            for (int i = 0; i < 250; i++) {
+                api.createConnection(connection((i % 2 == 0 ? "even" : "odd")+i));
+            }
+            int requests = harmony.requests();
+            JsonCollection all = api.new JsonCollection("/api/connections");
+            int count = 0;
+            for (@SuppressWarnings("unused") ObjectNode c : all) {
+                count++;
+            }
+            assertEquals(250, count);
+            assertEquals(250, all.totalResults());
+            assertEquals(3, harmony.requests()-requests);
+
+            assertEquals(125, api.getConnections("alias sw \"even\"").size());
+            assertEquals(2, api.getConnections("alias eq \"odd1\" or (alias eq \"even2\" and type eq \"sftp\")").size());
+            assertEquals(0, api.getConnections("not (connect.host pr)").size());
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            for (int i = 0; i < 1050; i++) {
+                api.createConnection(connection(String.format("c%04d", i)));
+            }
+            for (int maxCount : new int[] {100, 30}) {
+                harmony.maxCount(maxCount).latency(5);
+                int i = 0;
+                for (ObjectNode c : api.new JsonCollection("/api/connections")) {
+                    assertEquals(String.format("c%04d", i++), c.path("alias").asText());
+                }
+                assertEquals(1050, i);
+            }
+            try (JsonCollection abandoned = api.new JsonCollection("/api/connections")) {
+                assertEquals("c0000", abandoned.next().path("alias").asText());
+                abandoned.close(); // the pages read ahead are cancelled
+                assertTrue(!abandoned.hasNext());
+                assertNull(abandoned.exception());
+            }
+            harmony.latency(0).errorRate(1.0, 503);
+            JsonCollection failed = api.new JsonCollection("/api/connections");
+            assertTrue(!failed.hasNext());
+            assertNotNull(failed.exception());
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            api.createConnection(connection("one"));
+            ApiClient borrowed = api.borrowed();
+            assertNotNull(borrowed.async().getConnection("one").get());
+            borrowed.close(); // leaves the shared connections open
+            assertNotNull(api.getConnection("one"));
+            assertNotNull(api.async().getConnection("one").get());
+            api.close();
+            try {
+                api.getConnection("one");
+                fail("closed client should not connect");
+            } catch (Exception expected) {
+                // the connection pool is shut down
+            }
+        }
+    }
+
+    @Test
+    public void testPageSize() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false,
+                    new ApiClient.HttpOptions().pageSize(10).adaptivePaging(true));
+            for (int i = 0; i < 1050; i++) {
+                api.createConnection(connection(String.format("c%04d", i)));
+            }
+            int requests = harmony.requests();
+            assertEquals(1050, api.withPageSize(500).getConnections(null).size());
+            assertEquals(3, harmony.requests()-requests);
+
+            requests = harmony.requests();
+            List<ObjectNode> all = api.getConnections(null);
+            assertEquals(1050, all.size());
+            for (int i = 0; i < all.size(); i++) {
+                assertEquals(String.format("c%04d", i), all.get(i).path("alias").asText());
+            }
+            assertTrue(harmony.requests()-requests < 20); // vs. 105 pages of 10
+        }
+    }
+
+    @Test
+    public void testUsersAndActions() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            ObjectNode authenticator = Json.mapper.createObjectNode().put("alias", "Users");
+            authenticator = api.createAuthenticator(authenticator);
+            ObjectNode user = api.createUser(Json.mapper.createObjectNode().put("username", "bob"), authenticator);
+            assertEquals(Json.getHref(authenticator), Json.getSubElementAsText(user, "_links.authenticator.href"));
+            assertNotNull(api.getUser("bob"));
+
+            ObjectNode action = Json.mapper.createObjectNode()
+                    .put("alias", "send")
+                    .put("type", "Commands");
+            action.with("authenticator").put("href", Json.getHref(authenticator)).with("user").put("href", Json.getHref(user));
+            action.with("connection").put("href", Json.getHref(user));
+            action = api.createAction(action);
+            List<ObjectNode> actions = api.getActions("authenticator.user.username eq \"bob\" and alias eq \"send\"");
+            assertEquals(1, actions.size());
+            assertEquals("success", api.runAction(actions.get(0)).path("status").asText());
+
+            // deleting the authenticator cascades to users and their actions
+            api.delete(authenticator);
+            assertNull(api.getUser("bob"));
+            assertTrue(api.getActions(null).isEmpty());
+        }
+    }
+
+    @Test
+    public void testCertConflict() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            String pem = CertUtils.export(CertUtils.cert(Paths.get("src", "test", "resources", "chain.p7b")).cert());
+            ObjectNode certJson = Json.mapper.createObjectNode().put("certificate", pem);
+            ObjectNode imported = api.importOrGetCert(certJson);
+            api = new ApiClient(harmony.url(), "any", "thing", false); // not remembering the import
+            assertEquals(imported, api.importOrGetCert(certJson));
+        }
+    }
+
+    @Test
+    public void testCertCache() throws Exception {
+        Path certCache = Files.createTempFile("certs", ".properties");
+        Files.delete(certCache);
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient.HttpOptions options = new ApiClient.HttpOptions().certCache(certCache);
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false, options);
+            CertUtils.CertWithBundle bundle = CertUtils.cert(Paths.get("src", "test", "resources", "chain.p7b"));
+            StringBuilder chain = new StringBuilder(CertUtils.export(bundle.cert()));
+            bundle.bundle().forEach(cert -> chain.append('\n').append(CertUtils.export(cert)));
+            ObjectNode certJson = Json.mapper.createObjectNode().put("certificate", chain.toString());
+            String href = Json.getHref(api.importOrGetCert(certJson));
+            int requests = harmony.requests();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(href, Json.getHref(api.importOrGetCert(certJson)));
+            }
+            assertEquals(requests, harmony.requests());
+
+            // a CA cert alone, once imported as part of a chain
+            String pem = CertUtils.export(bundle.bundle().get(0));
+            assertNotNull(Json.getHref(api.importOrGetCert(Json.mapper.createObjectNode().put("certificate", pem))));
+
+            // remembered across runs, checked once (the cert and its chain)
+            api = new ApiClient(harmony.url(), "any", "thing", false, options);
+            requests = harmony.requests();
+            assertEquals(href, Json.getHref(api.importOrGetCert(certJson)));
+            assertEquals(requests+1+bundle.bundle().size(), harmony.requests());
+            requests = harmony.requests();
+            assertEquals(href, Json.getHref(api.importOrGetCert(certJson)));
+            assertEquals(requests, harmony.requests());
+
+            // imported again if deleted since
+            api.delete(harmony.resource(href));
+            api = new ApiClient(harmony.url(), "any", "thing", false, options);
+            href = Json.getHref(api.importOrGetCert(certJson));
+            assertNotNull(harmony.resource(href));
+            api = new ApiClient(harmony.url(), "any", "thing", false, options);
+            requests = harmony.requests();
+            assertEquals(href, Json.getHref(api.importOrGetCert(certJson)));
+            assertEquals(requests+1+bundle.bundle().size(), harmony.requests()); // no import
+        } finally {
+            Files.deleteIfExists(certCache);
+        }
+    }
+
+    @Test
+    public void testInjectedErrors() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony().errorRate(1.0, 503)) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            try {
+                api.createConnection(connection("one"));
+                fail("injected error expected");
+            } catch (UnexpectedCodeException e) {
+                assertEquals(503, e.code());
+            }
+        }
+    }
+
+    @Test
+    public void testRetryAndReauthorize() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false,
+                    new ApiClient.HttpOptions().retries(20).retryDelay(1).maxRetryDelay(2));
+            ObjectNode created = api.createConnection(connection("one"));
+
+            harmony.errorRate(0.5, 503).retryAfter(0);
+            for (int i = 0; i < 50; i++) {
+                assertEquals(created, api.get(created));
+            }
+            assertEquals(1, api.getConnections(null).size());
+
+            harmony.errorRate(0.0, 503).expireTokens();
+            int requests = harmony.requests();
+            assertEquals(created, api.withPageSize(10).get(created));
+            assertEquals(3, harmony.requests()-requests); // 401, authenticate, retry
+            assertEquals(created, api.get(created));
+            assertEquals(4, harmony.requests()-requests);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testRetryAfterCapped() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false,
+                    new ApiClient.HttpOptions().retries(20).retryDelay(1).maxRetryDelay(2));
+            ObjectNode created = api.createConnection(connection("one"));
+
+            // an hour's wait is cut to maxRetryDelay
+            harmony.errorRate(0.5, 503).retryAfter(3600);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(created, api.get(created));
+            }
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony().maxCount(30)) {
+            ApiClient.Async api = new ApiClient(harmony.url(), "any", "thing", false,
+                    new ApiClient.HttpOptions().retries(20).retryDelay(1).maxRetryDelay(2).adaptiveConcurrency(true))
+                    .async();
+            List<CompletableFuture<ObjectNode>> created = new ArrayList<>();
+            for (int i = 0; i < 250; i++) {
+                created.add(api.createConnection(connection(String.format("c%04d", i))));
+            }
+            CompletableFuture.allOf(created.toArray(new CompletableFuture<?>[created.size()])).get();
+
+            // created concurrently, so in no particular order
+            Set<String> aliases = new HashSet<>();
+            api.getConnections(null).get().forEach(c -> aliases.add(c.path("alias").asText()));
+            assertEquals(250, aliases.size());
+            ObjectNode one = api.getConnection("c0001").get();
+            assertEquals(created.get(1).get(), one);
+
+            harmony.errorRate(0.5, 503).retryAfter(0);
+            one.with("connect").put("host", "remote");
+            assertEquals("remote", Json.getSubElementAsText(api.put(one, one).get(), "connect.host"));
+            assertEquals(250, api.blocking().getConnections(null).size());
+
+            harmony.errorRate(0.0, 503).expireTokens();
+            api.delete(one).get();
+            assertNull(api.getConnection("c0001").get());
+            try {
+                api.get(one).get();
+                fail("deleted connection should not be found");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof UnexpectedCodeException);
+                assertEquals(404, ((UnexpectedCodeException) e.getCause()).code());
+            }
+        }
+    }
+
+    @Test
+    public void testParallelUserSearch() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            for (int i = 0; i < 20; i++) {
+                ObjectNode authenticator = api.createAuthenticator(Json.mapper.createObjectNode().put("alias", "a"+i));
+                api.createUser(Json.mapper.createObjectNode().put("username", "u"+i), authenticator);
+            }
+            harmony.latency(50);
+            List<ObjectNode> users = api.getUsers(null, null);
+            assertEquals(20, users.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals("u"+i, users.get(i).path("username").asText());
+            }
+            api = new ApiClient(harmony.url(), "any", "thing", false); // without the user index
+            long start = System.currentTimeMillis();
+            assertEquals("u19", api.getUser("u19").path("username").asText());
+            assertTrue(System.currentTimeMillis()-start < 800); // vs. 21 round-trips one at a time
+            assertNull(api.getUser("nobody"));
+        }
+    }
+
+    @Test
+    public void testUserIndex() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient setup = new ApiClient(harmony.url(), "any", "thing", false);
+            for (int i = 0; i < 10; i++) {
+                ObjectNode authenticator = setup.createAuthenticator(Json.mapper.createObjectNode().put("alias", "a"+i));
+                setup.createUser(Json.mapper.createObjectNode().put("username", "u"+i), authenticator);
+            }
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false,
+                    new ApiClient.HttpOptions().preloadUserIndex(true));
+            assertNotNull(api.getUser("u9"));
+            int requests = harmony.requests();
+            for (int i = 0; i < 10; i++) {
+                assertTrue(api.isUserIndexed("u"+i));
+                assertEquals("u"+i, api.getUser("u"+i).path("username").asText());
+            }
+            assertEquals(10, harmony.requests()-requests); // one each, no authenticator scans
+
+            // moved behind the index's back: found by a scan, then indexed again
+            ObjectNode u0 = api.getUser("u0");
+            setup.delete(u0);
+            ObjectNode a5 = setup.getAuthenticator("a5");
+            setup.createUser(Json.mapper.createObjectNode().put("username", "u0"), a5);
+            assertNotNull(api.getUser("u0"));
+            assertTrue(api.isUserIndexed("u0"));
+            assertEquals(Json.getHref(a5), Json.getSubElementAsText(api.getUser("u0"), "_links.authenticator.href"));
+
+            // deleted through the client: forgotten
+            api.delete(api.getUser("u1"));
+            assertTrue(!api.isUserIndexed("u1"));
+            assertNull(api.getUser("u1"));
+
+            // and likewise through the non-blocking client
+            ApiClient.Async async = api.async();
+            ObjectNode u1 = async.createUser(Json.mapper.createObjectNode().put("username", "u1"), setup.getAuthenticator("a1")).get();
+            assertTrue(api.isUserIndexed("u1"));
+            ObjectNode v1 = async.put(u1.deepCopy().put("username", "v1"), u1).get();
+            assertTrue(!api.isUserIndexed("u1"));
+            assertTrue(api.isUserIndexed("v1"));
+            async.delete(v1).get();
+            assertTrue(!api.isUserIndexed("v1"));
+        }
+    }
+}
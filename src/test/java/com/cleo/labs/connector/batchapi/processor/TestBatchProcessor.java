@@ -0,0 +1,313 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Paths;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.io.CharSource;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestBatchProcessor {
+
+    /**
+     * Runs {@code requests} through a processor borrowing {@code api}, set
+     * up further by {@code setup}, and returns the results.
+     */
+    static JsonNode process(ApiClient api, String requests, Consumer<BatchProcessor> setup) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BatchProcessor processor = new BatchProcessor(profile -> api.borrowed())
+                .setOutputFormat(BatchProcessor.OutputFormat.json);
+        setup.accept(processor);
+        try {
+            processor.processFile("requests", requests, new PrintStream(output));
+        } finally {
+            processor.close();
+        }
+        return Json.mapper.readTree(output.toString());
+    }
+
+    private static JsonNode process(ApiClient api, int threads, String requests) throws Exception {
+        return process(api, requests, processor -> processor.setThreads(threads));
+    }
+
+    @Test
+    public void testStreamedList() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            for (String alias : new String[] {"a", "b"}) {
+                ObjectNode authenticator = api.createAuthenticator(Json.mapper.createObjectNode().put("alias", alias));
+                for (int i = 0; i < 250; i++) {
+                    api.createUser(Json.mapper.createObjectNode().put("username", alias+i), authenticator);
+                }
+            }
+            for (int threads : new int[] {1, 4}) {
+                JsonNode results = process(api, threads,
+                        "- operation: list\n  authenticator: a\n"+
+                        "- operation: list\n  username: b1\n"+
+                        "- operation: list\n  type: user\n  filter: username sw \"b\" or username eq \"a0\"\n");
+                assertEquals(1+250+1+251, results.size());
+                assertEquals("found authenticator a with 250 users", Json.getSubElementAsText(results.get(0), "result.message"));
+                for (int i = 0; i < 250; i++) {
+                    assertEquals("found authenticator a: user "+(i+1)+" of 250",
+                            Json.getSubElementAsText(results.get(1+i), "result.message"));
+                    assertEquals("a"+i, Json.getSubElementAsText(results.get(1+i), "username"));
+                }
+                assertEquals("found user b1", Json.getSubElementAsText(results.get(251), "result.message"));
+                assertEquals("found user a0 (1 of 251)", Json.getSubElementAsText(results.get(252), "result.message"));
+                assertEquals("found user b249 (251 of 251)", Json.getSubElementAsText(results.get(502), "result.message"));
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testStreamedListBehindWaitingRequest() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            api.createConnection(Json.mapper.createObjectNode().put("type", "sftp").put("alias", "c1"));
+            ObjectNode authenticator = api.createAuthenticator(Json.mapper.createObjectNode().put("alias", "a"));
+            for (int i = 0; i < 250; i++) {
+                api.createUser(Json.mapper.createObjectNode().put("username", "a"+i), authenticator);
+            }
+            // the list is run before the second update, which waits for the first,
+            // and fills up its results while the writer waits for the second update
+            String update = "- operation: update\n  connection: c1\n  connect:\n    host: %s\n";
+            JsonNode results = process(api, 1,
+                    String.format(update, "one")+String.format(update, "two")+
+                    "- operation: list\n  authenticator: a\n");
+            assertEquals(2+2+1+250, results.size());
+            assertEquals("found authenticator a with 250 users", Json.getSubElementAsText(results.get(4), "result.message"));
+            assertEquals("two", Json.getSubElementAsText(api.getConnection("c1"), "connect.host"));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testReadFailure() throws Exception {
+        class ReadError extends Error {
+            private static final long serialVersionUID = 1L;
+        }
+        CharSource csv = new CharSource() {
+            @Override
+            public Reader openStream() {
+                return new Reader() {
+                    private Reader rows = new StringReader("alias\nc0\nc1\nc2\n");
+                    @Override
+                    public int read(char[] buffer, int offset, int length) throws IOException {
+                        int read = rows.read(buffer, offset, length);
+                        if (read < 0) {
+                            throw new ReadError(); // not the end of the file
+                        }
+                        return read;
+                    }
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        };
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            BatchProcessor processor = new BatchProcessor(profile -> api.borrowed())
+                    .setTemplate("connection: ${alias}\ntype: sftp\n")
+                    .setThreads(2);
+            try {
+                processor.processFile("csv", csv, new PrintStream(output));
+                fail("the read error should be thrown");
+            } catch (ReadError expected) {
+                // the results so far are written, and the writer is gone
+            } finally {
+                processor.close();
+            }
+            int written = output.toString().split("created c", -1).length-1;
+            assertTrue(output.toString(), written > 0);
+            assertEquals(harmony.list("/api/connections").size(), written);
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertTrue(!thread.getName().equals("batchapi-writer") || !thread.isAlive());
+            }
+        }
+    }
+
+    @Test
+    public void testStreamedListNotFound() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            JsonNode results = process(api, 2, "- operation: list\n  type: connection\n  filter: alias eq \"none\"\n");
+            assertEquals(1, results.size());
+            assertEquals("error", Json.getSubElementAsText(results.get(0), "result.status"));
+            assertTrue(Json.getSubElementAsText(results.get(0), "result.message").contains("returned no connections"));
+        }
+    }
+
+    @Test
+    public void testUnchangedUpdate() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            ObjectNode connection = Json.mapper.createObjectNode().put("type", "sftp").put("alias", "c");
+            connection.with("connect").put("host", "localhost").put("port", 22);
+            api.createConnection(connection);
+            String update = "- operation: update\n  connection: c\n  connect:\n    host: %s\n    port: '22'\n";
+
+            int requests = harmony.requests();
+            JsonNode results = process(api, 1, String.format(update, "localhost"));
+            assertTrue(Json.getSubElementAsText(results.get(1), "result.message").endsWith(" unchanged"));
+            assertEquals(1, harmony.requests()-requests); // the lookup alone
+
+            results = process(api, 1, String.format(update, "remote"));
+            assertTrue(Json.getSubElementAsText(results.get(1), "result.message").endsWith(" updated"));
+            assertEquals("remote", Json.getSubElementAsText(api.getConnection("c"), "connect.host"));
+        }
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            for (String alias : new String[] {"c1", "c2", "c3"}) {
+                ObjectNode connection = Json.mapper.createObjectNode().put("type", "sftp").put("alias", alias);
+                connection.with("connect").put("host", "localhost");
+                connection = api.createConnection(connection);
+                if (alias.equals("c1")) {
+                    ObjectNode action = Json.mapper.createObjectNode().put("alias", "send").put("type", "Commands");
+                    action.putArray("commands").add("PUT *");
+                    action.with("connection").put("href", Json.getHref(connection));
+                    api.createAction(action);
+                }
+            }
+            api.createConnection(Json.mapper.createObjectNode().put("type", "ftp").put("alias", "f1"));
+            String sync =
+                    "- operation: sync\n  type: sftp\n  connection: c1\n  connect:\n    host: localhost\n"+
+                    "  actions:\n  - action: send\n    type: Commands\n    commands:\n    - PUT *\n"+
+                    "- operation: sync\n  type: sftp\n  connection: c2\n  connect:\n    host: remote\n"+
+                    "- operation: sync\n  type: sftp\n  connection: c4\n  connect:\n    host: localhost\n";
+
+            JsonNode results = process(api, sync, processor -> processor.setThreads(4).setSyncDelete(true));
+            assertEquals(results.toString(), 4, results.size());
+            assertEquals("connection c1 unchanged", Json.getSubElementAsText(results.get(0), "result.message"));
+            assertEquals("connection c2 updated", Json.getSubElementAsText(results.get(1), "result.message"));
+            assertEquals("created c4", Json.getSubElementAsText(results.get(2), "result.message"));
+            assertEquals("deleted connection c3", Json.getSubElementAsText(results.get(3), "result.message"));
+            assertEquals("remote", Json.getSubElementAsText(api.getConnection("c2"), "connect.host"));
+            assertNull(api.getConnection("c3"));
+            assertNotNull(api.getConnection("f1")); // not in scope
+
+            // now everything is in sync: one listing, plus the action of c1
+            int requests = harmony.requests();
+            results = process(api, 4, sync);
+            for (JsonNode result : results) {
+                assertTrue(Json.getSubElementAsText(result, "result.message").endsWith(" unchanged"));
+            }
+            assertEquals(2, harmony.requests()-requests);
+        }
+    }
+
+    @Test
+    public void testUpdateActions() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            ObjectNode connection = api.createConnection(Json.mapper.createObjectNode()
+                    .put("type", "sftp").put("alias", "c1"));
+            ObjectNode action = Json.mapper.createObjectNode().put("alias", "send").put("type", "Commands");
+            action.putArray("commands").add("PUT *");
+            action.with("connection").put("href", Json.getHref(connection));
+            api.createAction(action);
+
+            // the action is already there: nothing is sent
+            int requests = harmony.requests();
+            JsonNode results = process(api, 1, "- operation: update\n  connection: c1\n"+
+                    "  actions:\n  - action: send\n    type: Commands\n    commands:\n    - PUT *\n");
+            assertEquals("connection c1 unchanged", Json.getSubElementAsText(results.get(1), "result.message"));
+            assertEquals(2, harmony.requests()-requests); // the connection and its actions
+
+            results = process(api, 1, "- operation: update\n  connection: c1\n"+
+                    "  actions:\n  - action: send\n    type: Commands\n    commands:\n    - PUT -DEL *\n");
+            assertEquals("connection c1 updated", Json.getSubElementAsText(results.get(1), "result.message"));
+            assertEquals("PUT -DEL *", harmony.list("/api/actions").get(0).path("commands").get(0).asText());
+
+            results = process(api, 1, "- operation: update\n  connection: c1\n"+
+                    "  actions:\n  - action: receive\n    type: Commands\n    commands:\n    - GET *\n");
+            assertEquals("connection c1 updated", Json.getSubElementAsText(results.get(1), "result.message"));
+            assertEquals(2, harmony.list("/api/actions").size());
+        }
+    }
+
+    @Test
+    public void testSyncUsers() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            ObjectNode authenticator = api.createAuthenticator(Json.mapper.createObjectNode()
+                    .put("alias", "a").put("type", "nativeUser"));
+            for (String username : new String[] {"u1", "u2"}) {
+                api.createUser(Json.mapper.createObjectNode().put("username", username).put("email", username+"@a"), authenticator);
+            }
+            JsonNode results = process(api, 2,
+                    "- operation: sync\n  authenticator: a\n  username: u1\n  email: u1@a\n"+
+                    "- operation: sync\n  authenticator: a\n  username: u3\n  email: u3@a\n"+
+                    "- operation: sync\n  authenticator: a\n  username: u3\n  email: u3@b\n");
+            assertEquals(results.toString(), 3, results.size()); // without --sync-delete
+            assertEquals("user u1 unchanged", Json.getSubElementAsText(results.get(0), "result.message"));
+            assertEquals("created u3", Json.getSubElementAsText(results.get(1), "result.message"));
+            assertEquals("user u3 updated", Json.getSubElementAsText(results.get(2), "result.message"));
+            assertEquals("u3@b", Json.getSubElementAsText(api.getUser("u3"), "email"));
+            assertNotNull(api.getUser("u2"));
+        }
+    }
+
+    @Test
+    public void testCertExport() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            String pem = CertUtils.export(CertUtils.cert(Paths.get("src", "test", "resources", "chain.p7b")).cert());
+            String href = Json.getHref(api.importOrGetCert(Json.mapper.createObjectNode().put("certificate", pem)));
+            for (int i = 0; i < 10; i++) {
+                ObjectNode connection = Json.mapper.createObjectNode().put("type", "as2").put("alias", "c"+i);
+                connection.with("accept").with("security").with("encryptionCert").put("href", href);
+                api.createConnection(connection);
+            }
+            int requests = harmony.requests();
+            String output = process(api, 1, "- operation: list\n  type: connection\n  filter: alias pr\n").toString();
+            assertEquals(output, 10, output.split("BEGIN CERTIFICATE", -1).length-1);
+            assertEquals(2, harmony.requests()-requests); // the list and the cert, once
+
+            // certs are kept in the resource cache, within its bounds
+            requests = harmony.requests();
+            output = process(api, "- operation: list\n  type: connection\n  filter: alias pr\n",
+                    p -> p.setThreads(1).setResourceCache(0, 60)).toString();
+            assertEquals(output, 10, output.split("BEGIN CERTIFICATE", -1).length-1);
+            assertEquals(11, harmony.requests()-requests); // the list and the cert for each connection
+        }
+    }
+
+    @Test
+    public void testActionHydration() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            for (int i = 0; i < 10; i++) {
+                ObjectNode connection = api.createConnection(Json.mapper.createObjectNode()
+                        .put("type", "sftp").put("alias", "c"+i));
+                for (String alias : new String[] {"send", "receive"}) {
+                    ObjectNode action = Json.mapper.createObjectNode().put("alias", alias).put("type", "Commands");
+                    action.with("connection").put("href", Json.getHref(connection));
+                    api.createAction(action);
+                }
+            }
+            int requests = harmony.requests();
+            String output = process(api, 1, "- operation: list\n  type: connection\n  filter: alias pr\n").toString();
+            assertEquals(output, 10, output.split("\"action\":\"send\"", -1).length-1);
+            assertEquals(output, 10, output.split("\"action\":\"receive\"", -1).length-1);
+            assertEquals(2, harmony.requests()-requests); // the connections and their actions, vs. 21
+        }
+    }
+}
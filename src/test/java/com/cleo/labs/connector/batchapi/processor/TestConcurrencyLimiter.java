@@ -0,0 +1,110 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestConcurrencyLimiter {
+
+    @Test
+    public void testIncreaseAndDecrease() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, 1, 8);
+        assertEquals(4, limiter.limit());
+        // fast successes at full use grow the limit about one per round
+        for (int round = 0; round < 20; round++) {
+            int limit = limiter.limit();
+            long[] started = new long[limit];
+            for (int i = 0; i < limit; i++) {
+                started[i] = limiter.acquire();
+            }
+            for (int i = 0; i < limit; i++) {
+                limiter.release(started[i], false, null);
+            }
+        }
+        assertEquals(8, limiter.limit());
+        // drops shrink it, but not below the minimum
+        for (int i = 0; i < 100; i++) {
+            limiter.release(limiter.acquire(), true, "GET");
+        }
+        assertEquals(1, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+        // a limiter less than half used does not grow
+        limiter = new ConcurrencyLimiter("test", 4, 1, 8);
+        for (int i = 0; i < 100; i++) {
+            limiter.release(limiter.acquire(), false, null);
+        }
+        assertEquals(4, limiter.limit());
+    }
+
+    @Test
+    public void testSlowResponses() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, 1, 8);
+        limiter.release(limiter.acquire(), false, "GET");
+        long started = limiter.acquire();
+        Thread.sleep(20);
+        limiter.release(started, false, "GET");
+        assertEquals(3, limiter.limit());
+        // untimed requests are judged only on failure
+        started = limiter.acquire();
+        Thread.sleep(20);
+        limiter.release(started, false, null);
+        assertEquals(3, limiter.limit());
+        // nor are requests compared with those of another kind
+        started = limiter.acquire();
+        Thread.sleep(20);
+        limiter.release(started, false, "GET collection/512");
+        assertEquals(3, limiter.limit());
+    }
+
+    @Test
+    public void testAcquireWaits() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, 1);
+        long started = limiter.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.release(limiter.acquire(), false, null);
+                acquired.countDown();
+            } catch (InterruptedException e) {
+            }
+        });
+        waiter.start();
+        assertTrue(!acquired.await(50, TimeUnit.MILLISECONDS));
+        limiter.release(started, false, null);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testApiClientFamilies() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false,
+                    new ApiClient.HttpOptions().adaptiveConcurrency(true).retries(0));
+            ObjectNode connection = Json.mapper.createObjectNode().put("type", "sftp").put("alias", "one");
+            api.createConnection(connection);
+            api.withPageSize(10).getConnections(null);
+            api.getAuthenticators(null);
+            assertEquals(2, api.concurrencyLimits().size());
+            assertTrue(api.concurrencyLimits().get(0).startsWith("authenticators: limit "));
+            assertTrue(api.concurrencyLimits().get(1).startsWith("connections: limit "));
+            // held until each response is read, and then released
+            api.delete(api.getConnection("one"));
+            api.concurrencyLimits().forEach(limit -> assertTrue(limit, limit.endsWith(", 0 in flight")));
+
+            harmony.errorRate(1.0, 503);
+            for (int i = 0; i < 10; i++) {
+                try {
+                    api.getConnections(null);
+                } catch (Exception e) {
+                }
+            }
+            assertTrue(api.concurrencyLimits().get(1).startsWith("connections: limit 1,"));
+            api.concurrencyLimits().forEach(limit -> assertTrue(limit, limit.endsWith(", 0 in flight")));
+        }
+    }
+}
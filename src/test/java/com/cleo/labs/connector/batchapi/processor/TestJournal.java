@@ -0,0 +1,123 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class TestJournal {
+
+    @Test
+    public void testResume() throws Exception {
+        Path path = Files.createTempFile("journal", ".txt");
+        try {
+            String a = Journal.hash(Json.mapper.createObjectNode().put("username", "a"));
+            String b = Journal.hash(Json.mapper.createObjectNode().put("username", "b"));
+            try (Journal journal = new Journal(path, false, 2, 60000)) {
+                journal.record("f", 1, a, true);
+                journal.record("f", 2, b, true);
+                journal.record("f", 2, b, false); // failed on a later run
+                journal.record("g", 1, b, true);
+            }
+            Files.write(path, "3\tdeadbeef\tsucc".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+            try (Journal journal = new Journal(path, true)) {
+                assertTrue(journal.completed("f", 1, a));
+                assertFalse(journal.completed("f", 1, b)); // changed
+                assertFalse(journal.completed("f", 2, b)); // failed
+                assertTrue(journal.completed("g", 1, b));
+                assertFalse(journal.completed("f", 3, "deadbeef")); // torn
+                assertEquals(2, journal.skipped());
+            }
+            try (Journal journal = new Journal(path, false)) {
+                assertFalse(journal.completed("f", 1, a)); // started over
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static JsonNode process(ApiClient api, Path journal, boolean resume, String requests) throws Exception {
+        return TestBatchProcessor.process(api, requests, processor -> processor.setThreads(4).setJournal(journal, resume));
+    }
+
+    @Test
+    public void testBatchProcessor() throws Exception {
+        Path path = Files.createTempFile("journal", ".txt");
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            api.createAuthenticator(Json.mapper.createObjectNode().put("alias", "a"));
+            StringBuilder users = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                users.append("- username: u").append(i).append('\n')
+                     .append("  authenticator: ").append(i == 6 ? "b" : "a").append('\n');
+            }
+            JsonNode results = process(api, path, false, users.toString());
+            assertEquals(10, results.size());
+            assertEquals("error", Json.getSubElementAsText(results.get(6), "result.status"));
+
+            // the rerun adds only the user that failed
+            api.createAuthenticator(Json.mapper.createObjectNode().put("alias", "b"));
+            int requests = harmony.requests();
+            results = process(api, path, true, users.toString());
+            assertEquals(10, results.size());
+            for (int i = 0; i < 10; i++) {
+                String message = Json.getSubElementAsText(results.get(i), "result.message");
+                assertEquals(i == 6 ? "created u6" : "skipped: completed in a previous run", message);
+            }
+            assertEquals(2, harmony.requests()-requests); // the authenticator and the user
+            assertEquals(1, api.getUsers("alias eq \"b\"", null).size());
+
+            // and now there is nothing left to do
+            results = process(api, path, true, users.toString());
+            for (JsonNode result : results) {
+                assertEquals("skipped: completed in a previous run", Json.getSubElementAsText(result, "result.message"));
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void testDefaultUserTemplate() throws Exception {
+        Path path = Files.createTempFile("journal", ".txt");
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            StringBuilder csv = new StringBuilder("Host,UserID,Password,Email,DefaultHomeDir,CustomHomeDir\n");
+            for (int i = 0; i < 5; i++) {
+                csv.append("h,u").append(i).append(",secret,u").append(i).append("@example.com,Yes,local/u").append(i).append('\n');
+            }
+            // the first line adds the authenticator along with its first user
+            JsonNode results = process(api, path, false, csv.toString());
+            assertEquals(6, count(results, "created "));
+
+            // which now exists, so the first line expands to the user alone
+            int requests = harmony.requests();
+            results = process(api, path, true, csv.toString());
+            assertEquals(results.toString(), 5, count(results, "skipped: completed in a previous run"));
+            assertEquals(0, count(results, "created "));
+            assertEquals(1, harmony.requests()-requests); // looking up the authenticator for the template
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static int count(JsonNode results, String message) {
+        int count = 0;
+        for (JsonNode result : results) {
+            String text = Json.getSubElementAsText(result, "result.message", "");
+            if (text.startsWith(message)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,98 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.ResourceClass;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestLookupBatcher {
+
+    private static void connections(ApiClient api, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            ObjectNode connection = Json.mapper.createObjectNode();
+            connection.put("type", "sftp");
+            connection.put("alias", "c"+i);
+            connection.with("connect").put("host", "localhost");
+            api.createConnection(connection);
+        }
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            connections(api, 120);
+            LookupBatcher lookups = new LookupBatcher(50, 1500);
+            for (int i = 0; i < 120; i++) {
+                lookups.expect(null, ResourceClass.connection, null, "c"+i);
+            }
+            lookups.expect(null, ResourceClass.connection, null, "missing");
+            lookups.expect(null, ResourceClass.connection, null, "c0");
+            for (int i = 0; i < 120; i++) {
+                assertEquals("c"+i, lookups.lookup(api, null, ResourceClass.connection, null, "c"+i).path("alias").asText());
+            }
+            assertEquals(3, lookups.reads());
+            assertNull(lookups.lookup(api, null, ResourceClass.connection, null, "missing"));
+            assertEquals(3, lookups.reads()); // read along with c100-c119
+
+            // the second c0 was expected, but c0 changed in the meantime
+            ObjectNode c0 = api.getConnection("c0");
+            c0.with("connect").put("host", "remote");
+            api.put(c0, c0);
+            lookups.invalidate(null, ResourceClass.connection, "c0");
+            assertEquals("remote", Json.getSubElementAsText(
+                    lookups.lookup(api, null, ResourceClass.connection, null, "c0"), "connect.host"));
+            assertEquals(4, lookups.reads());
+        }
+    }
+
+    @Test
+    public void testFilterLength() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            connections(api, 40);
+            LookupBatcher lookups = new LookupBatcher(50, 300);
+            for (int i = 0; i < 40; i++) {
+                lookups.expect(null, ResourceClass.connection, null, "c"+i);
+            }
+            for (int i = 0; i < 40; i++) {
+                assertEquals("c"+i, lookups.lookup(api, null, ResourceClass.connection, null, "c"+i).path("alias").asText());
+            }
+            assertTrue(lookups.reads() > 1);
+            assertTrue(lookups.reads() < 40);
+        }
+    }
+
+    @Test
+    public void testBatchProcessor() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            connections(api, 100);
+            StringBuilder updates = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                updates.append("- connection: c").append(i).append('\n')
+                       .append("  connect:\n    host: host").append(i).append('\n');
+            }
+            int requests = harmony.requests();
+            JsonNode results = TestBatchProcessor.process(api, updates.toString(),
+                    processor -> processor.setDefaultOperation(Operation.update).setLookupBatch(50).setThreads(4));
+            int updated = 0;
+            for (JsonNode result : results) {
+                if (Json.getSubElementAsText(result, "result.message", "").endsWith(" updated")) {
+                    updated++;
+                }
+            }
+            assertEquals(results.toString(), 100, updated);
+            assertTrue(harmony.requests()-requests < 120); // vs. 200 looking up each name
+            for (int i = 0; i < 100; i++) {
+                assertEquals("host"+i, Json.getSubElementAsText(api.getConnection("c"+i), "connect.host"));
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestRequestExecutor {
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testSameKeyInOrder() {
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        try (RequestExecutor executor = new RequestExecutor(4)) {
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i=0; i<10; i++) {
+                final int n = i;
+                futures.add(executor.submit(null, Arrays.asList("connection:a"), () -> {
+                    sleep(10-n);
+                    order.add(n);
+                    return n;
+                }));
+            }
+            futures.forEach(CompletableFuture::join);
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), order);
+    }
+
+    @Test
+    public void testDifferentKeysConcurrent() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        try (RequestExecutor executor = new RequestExecutor(2)) {
+            // each task waits for the other: only completes if they run at the same time
+            CompletableFuture<Boolean> a = executor.submit(null, Arrays.asList("connection:a"), () -> {
+                latch.countDown();
+                try {
+                    return latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            });
+            CompletableFuture<Boolean> b = executor.submit(null, Arrays.asList("connection:b"), () -> {
+                latch.countDown();
+                try {
+                    return latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            });
+            assertTrue(a.get());
+            assertTrue(b.get());
+        }
+    }
+
+    @Test
+    public void testReadersWaitForWriter() {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        try (RequestExecutor executor = new RequestExecutor(4)) {
+            CompletableFuture<?> add = executor.submit(null, Arrays.asList("authenticator:Users"), () -> {
+                sleep(50);
+                order.add("add");
+                return null;
+            });
+            CompletableFuture<?> user1 = executor.submit(Arrays.asList("authenticator:Users"), Arrays.asList("user:a"), () -> {
+                order.add("user");
+                return null;
+            });
+            CompletableFuture<?> user2 = executor.submit(Arrays.asList("authenticator:Users"), Arrays.asList("user:b"), () -> {
+                order.add("user");
+                return null;
+            });
+            CompletableFuture<?> delete = executor.submit(null, Arrays.asList("authenticator:Users"), () -> {
+                order.add("delete");
+                return null;
+            });
+            CompletableFuture.allOf(add, user1, user2, delete).join();
+        }
+        assertEquals(Arrays.asList("add", "user", "user", "delete"), order);
+    }
+
+    @Test
+    public void testBarrier() {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        try (RequestExecutor executor = new RequestExecutor(4)) {
+            CompletableFuture<?> a = executor.submit(null, Arrays.asList("connection:a"), () -> {
+                sleep(50);
+                order.add("a");
+                return null;
+            });
+            CompletableFuture<?> barrier = executor.submitBarrier(() -> {
+                order.add("barrier");
+                return null;
+            });
+            CompletableFuture<?> b = executor.submit(null, Arrays.asList("connection:b"), () -> {
+                order.add("b");
+                return null;
+            });
+            CompletableFuture.allOf(a, barrier, b).join();
+        }
+        assertEquals(Arrays.asList("a", "barrier", "b"), order);
+    }
+
+    @Test
+    public void testCompletedTasksForgotten() {
+        try (RequestExecutor executor = new RequestExecutor(4)) {
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+            for (int i=0; i<1000; i++) {
+                futures.add(executor.submit(Arrays.asList("authenticator:"+(i%10)), Arrays.asList("user:"+i), () -> null));
+            }
+            futures.forEach(CompletableFuture::join);
+            // completion callbacks may still be running just after join
+            long deadline = System.currentTimeMillis() + 5000;
+            while (executor.tracked() > 0 && System.currentTimeMillis() < deadline) {
+                sleep(10);
+            }
+            assertEquals(0, executor.tracked());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.cleo.labs.connector.batchapi.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.cleo.labs.connector.batchapi.processor.BatchProcessor.Operation;
+import com.cleo.labs.connector.batchapi.processor.ResourceCache.Kind;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestResourceCache {
+
+    private static ObjectNode resource(String href, String alias) {
+        ObjectNode resource = Json.mapper.createObjectNode().put("alias", alias);
+        resource.with("_links").with("self").put("href", href);
+        return resource;
+    }
+
+    @Test
+    public void testAliasAndHref() throws Exception {
+        ResourceCache cache = new ResourceCache(100, 60);
+        AtomicInteger loads = new AtomicInteger();
+        ResourceCache.Loader a1 = () -> {
+            loads.incrementAndGet();
+            return resource("/api/authenticators/1", "a1");
+        };
+        assertEquals("a1", cache.get(null, Kind.authenticator, "a1", a1).path("alias").asText());
+        assertEquals("a1", cache.get("", "/api/authenticators/1", a1).path("alias").asText());
+        assertEquals("a1", cache.get(null, Kind.authenticator, "a1", a1).path("alias").asText());
+        assertEquals(1, loads.get());
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+
+        // profiles are separate, and callers get copies
+        cache.get("other", Kind.authenticator, "a1", a1).put("alias", "changed");
+        assertEquals(2, loads.get());
+        assertEquals("a1", cache.get("other", Kind.authenticator, "a1", a1).path("alias").asText());
+
+        // renamed through write-through, and invalidated
+        cache.put(null, resource("/api/authenticators/1", "renamed"));
+        assertEquals("renamed", cache.get(null, Kind.authenticator, "renamed", a1).path("alias").asText());
+        assertEquals(2, loads.get());
+        cache.invalidate(null, Kind.authenticator, "renamed");
+        cache.get(null, "/api/authenticators/1", a1);
+        assertEquals(3, loads.get());
+
+        // not found is not cached
+        assertNull(cache.get(null, Kind.connection, "missing", () -> null));
+        assertNull(cache.get(null, Kind.connection, "missing", () -> null));
+        assertEquals(5, cache.misses());
+    }
+
+    private static int addUsers(FakeHarmony harmony, ApiClient api, String prefix, long cacheSize) throws Exception {
+        StringBuilder users = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            users.append("- username: ").append(prefix).append(i).append('\n')
+                 .append("  authenticator: a\n");
+        }
+        int requests = harmony.requests();
+        JsonNode results = TestBatchProcessor.process(api, users.toString(),
+                processor -> processor.setDefaultOperation(Operation.add).setResourceCache(cacheSize, 60));
+        for (JsonNode result : results) {
+            assertTrue(results.toString(), Json.getSubElementAsText(result, "result.message").startsWith("created"));
+        }
+        assertEquals(20, results.size());
+        return harmony.requests()-requests;
+    }
+
+    @Test
+    public void testBatchProcessor() throws Exception {
+        try (FakeHarmony harmony = new FakeHarmony()) {
+            ApiClient api = new ApiClient(harmony.url(), "any", "thing", false);
+            api.createAuthenticator(Json.mapper.createObjectNode().put("alias", "a"));
+            int uncached = addUsers(harmony, api, "u", 0);
+            int cached = addUsers(harmony, api, "v", 100);
+            assertEquals(39, uncached-cached); // the authenticator is read once instead of twice per user
+            assertEquals(40, api.getUsers(null, null).size());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.cleo.labs.connector.batchapi.processor.template;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cleo.labs.connector.batchapi.processor.Json;
+import com.cleo.labs.connector.batchapi.processor.template.TemplateExpander.ExpanderResult;
+
+public class TestTemplateExpander {
+
+    private static List<ExpanderResult> expand(String template, String csv) throws Exception {
+        TemplateExpander expander = new TemplateExpander()
+                .template(template)
+                .loadCsv(csv);
+        List<ExpanderResult> results = new ArrayList<>();
+        expander.expand().forEach(results::add);
+        return results;
+    }
+
+    @Test
+    public void testConditions() throws Exception {
+        String template = "---\n"+
+            "name: ${name}\n"+
+            "${if:kind=='a'}:\n"+
+            "  kind: first\n"+
+            "${else if:kind=='b'}:\n"+
+            "  kind: second\n"+
+            "${else}:\n"+
+            "  kind: other\n"+
+            "";
+        List<ExpanderResult> results = expand(template, "name,kind\nx,a\ny,b\nz,c\n");
+        assertEquals(3, results.size());
+        assertEquals(Json.mapper.readTree("{\"name\":\"x\",\"kind\":\"first\"}"), results.get(0).expanded());
+        assertEquals(Json.mapper.readTree("{\"name\":\"y\",\"kind\":\"second\"}"), results.get(1).expanded());
+        assertEquals(Json.mapper.readTree("{\"name\":\"z\",\"kind\":\"other\"}"), results.get(2).expanded());
+    }
+
+    @Test
+    public void testLoopsAndVars() throws Exception {
+        String template = "---\n"+
+            "- ${var prefix}: pre-${name}\n"+
+            "- ${for column n:f(\\d+)}:\n"+
+            "    field: ${prefix}-${n}\n"+
+            "    value: ${column['f'+n]}\n"+
+            "- ${for x:['p','q']}: ${x}\n"+
+            "";
+        List<ExpanderResult> results = expand(template, "name,f1,f2\nx,one,two\n");
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).success());
+        assertEquals(Json.mapper.readTree("[{\"field\":\"pre-x-1\",\"value\":\"one\"},"+
+                "{\"field\":\"pre-x-2\",\"value\":\"two\"},\"p\",\"q\"]"),
+                results.get(0).expanded());
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        String template = "---\n"+
+            "name: ${name}\n"+
+            "${if:name=='bad'}:\n"+
+            "  ${error}: ${name} is not allowed\n"+
+            "";
+        List<ExpanderResult> results = expand(template, "name\ngood\nbad\n");
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).success());
+        assertFalse(results.get(1).success());
+        assertEquals("bad is not allowed", results.get(1).exception().getMessage());
+
+        results = expand("---\n${else}:\n  a: b\n", "name\nx\n");
+        assertEquals("${if} required before ${else}", results.get(0).exception().getMessage());
+    }
+}